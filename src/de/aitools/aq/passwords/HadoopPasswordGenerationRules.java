@@ -1,23 +1,69 @@
 package de.aitools.aq.passwords;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.function.Function;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
+import de.aitools.aq.passwords.index.PasswordIndexBuilder;
+import de.aitools.aq.passwords.rules.AsciiBytes;
+import de.aitools.aq.passwords.rules.TokenReplacements;
+import de.aitools.aq.passwords.stats.HyperLogLog;
+import de.aitools.aq.passwords.stats.Reservoir;
+import de.aitools.aq.passwords.stats.SpaceSaving;
+import de.aitools.aq.passwords.util.LongLinePolicy;
+
 /**
  * Class for applying {@link PasswordGenerationRules} on Hadoop.
  * 
@@ -38,8 +84,93 @@ public class HadoopPasswordGenerationRules implements Tool {
   protected static final String CONF_MAX_PASSWORD_LENGTH =
       "max-password-length";
 
-  private static final String CONFIGURATION_SEPARATOR =
-      "_";
+  protected static final String CONF_SAMPLE_SIZE =
+      "sample-size";
+
+  protected static final String CONF_SEED =
+      "seed";
+
+  protected static final String CONF_THREADS =
+      "threads";
+
+  protected static final String CONF_DISTINCT_PRECISION =
+      "distinct-precision";
+
+  protected static final String CONF_SOURCES =
+      "sources";
+
+  protected static final String CONF_TOP_K =
+      "top-k";
+
+  protected static final String CONF_TOP_COUNTERS =
+      "top-counters";
+
+  protected static final String CONF_LONG_LINES =
+      "long-lines";
+
+  protected static final String CONF_MAX_LINE_BYTES =
+      "max-line-bytes";
+
+  protected static final String CONF_SORT_SPLIT_POINTS =
+      "sort-split-points";
+
+  /**
+   * Command line option for the number of threads per map task.
+   */
+  public static final String OPTION_THREADS = "--threads";
+
+  /**
+   * Command line option for writing sorted passwords with a number of
+   * reducers.
+   */
+  public static final String OPTION_SORT = "--sort";
+
+  /**
+   * Command line option for the number of input lines to sample for the
+   * split points of {@link #OPTION_SORT}.
+   */
+  public static final String OPTION_SORT_SAMPLE = "--sort-sample";
+
+  /**
+   * Name of the link to the replacement dictionary of the rule in the working
+   * directory of the tasks (see {@link #addDictionaryToCache(Job, String[])}).
+   */
+  private static final String DICTIONARY_LINK =
+      "replacement-dictionary";
+
+  /**
+   * Separates the summary type from the base output path in the keys of
+   * mapper outputs for the {@link SummaryReducer}.
+   */
+  private static final String SUMMARY_SEPARATOR =
+      ":";
+
+  private static final String SUMMARY_SAMPLE =
+      "sample";
+
+  private static final String SUMMARY_DISTINCT =
+      "distinct";
+
+  private static final String SUMMARY_TOP =
+      "top";
+
+  /**
+   * Base output path of the sources of the passwords.
+   */
+  private static final String SOURCES_OUTPUT =
+      "sources";
+
+  private static final int DEFAULT_DISTINCT_PRECISION = 12;
+
+  private static final String LONG_LINES_COUNTER_GROUP = "long-lines";
+
+  private static final int DEFAULT_SORT_SAMPLE = 100000;
+
+  /**
+   * Maximum number of input splits from which lines are sampled for
+   * {@link #OPTION_SORT}.
+   */
+  private static final int MAX_SORT_SAMPLE_SPLITS = 20;
 
   private Configuration configuration;
 
@@ -59,55 +190,308 @@ public class HadoopPasswordGenerationRules implements Tool {
 
   @Override
   public int run(final String[] args) throws Exception {
-    if (args.length < 8 || args.length > 9) {
-      printHelp(System.err);
-      System.exit(1);
-    }
-
+    int sampleSize = 0;
+    long seed = 0;
+    int numThreads = 1;
+    int distinctPrecision = 0;
+    LongLinePolicy.Action longLineAction = LongLinePolicy.Action.STREAM;
+    int maxLineBytes = LongLinePolicy.DEFAULT_MAX_BYTES;
+    boolean sources = false;
+    int topK = 0;
+    int topCounters = PasswordGenerationRules.DEFAULT_TOP_COUNTERS;
+    int numSortReducers = 0;
+    int sortSample = DEFAULT_SORT_SAMPLE;
+    int a = 0;
     try {
-      PasswordGenerationRules.create(args, 4);
+      for (; a < args.length && args[a].startsWith("--"); ++a) {
+        switch (args[a]) {
+        case PasswordGenerationRules.OPTION_SAMPLE:
+          sampleSize = Integer.parseInt(getOptionValue(args, a++));
+          if (sampleSize < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive sample size: " + sampleSize);
+          }
+          break;
+        case PasswordGenerationRules.OPTION_SEED:
+          seed = Long.parseLong(getOptionValue(args, a++));
+          break;
+        case OPTION_THREADS:
+          numThreads = Integer.parseInt(getOptionValue(args, a++));
+          if (numThreads < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive number of threads: " + numThreads);
+          }
+          break;
+        case PasswordGenerationRules.OPTION_DISTINCT:
+          if (distinctPrecision == 0) {
+            distinctPrecision = DEFAULT_DISTINCT_PRECISION;
+          }
+          break;
+        case PasswordGenerationRules.OPTION_DISTINCT_PRECISION:
+          distinctPrecision = Integer.parseInt(getOptionValue(args, a++));
+          HyperLogLog.checkPrecision(distinctPrecision);
+          break;
+        case PasswordGenerationRules.OPTION_SOURCES:
+          sources = true;
+          break;
+        case PasswordGenerationRules.OPTION_TOP:
+          if (topK == 0) {
+            topK = PasswordGenerationRules.DEFAULT_TOP_K;
+          }
+          break;
+        case PasswordGenerationRules.OPTION_TOP_K:
+          topK = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case PasswordGenerationRules.OPTION_TOP_COUNTERS:
+          topCounters = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case PasswordGenerationRules.OPTION_LONG_LINES:
+          longLineAction =
+              LongLinePolicy.Action.forName(getOptionValue(args, a++));
+          break;
+        case PasswordGenerationRules.OPTION_MAX_LINE_BYTES:
+          maxLineBytes = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case OPTION_SORT:
+          numSortReducers = Integer.parseInt(getOptionValue(args, a++));
+          if (numSortReducers < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive number of reducers: " + numSortReducers);
+          }
+          break;
+        case OPTION_SORT_SAMPLE:
+          sortSample = Integer.parseInt(getOptionValue(args, a++));
+          if (sortSample < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive sample size: " + sortSample);
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[a]);
+        }
+      }
+
+      if (args.length - a < 8 || args.length - a > 9) {
+        printHelp(System.err);
+        System.exit(1);
+      }
+      if (topK > 0) {
+        PasswordGenerationRules.checkTopParameters(topK, topCounters);
+      }
+      if (numSortReducers > 0
+          && (sampleSize > 0 || distinctPrecision > 0 || topK > 0)) {
+        throw new IllegalArgumentException(OPTION_SORT
+            + " can not be combined with "
+            + PasswordGenerationRules.OPTION_SAMPLE + ", "
+            + PasswordGenerationRules.OPTION_DISTINCT + ", or "
+            + PasswordGenerationRules.OPTION_TOP);
+      }
+      PasswordGenerationRules.create(args, a + 4);
+      LongLinePolicy.checkMaxBytes(maxLineBytes);
     } catch (final IllegalArgumentException e) {
       System.err.println(e.getMessage());
       printHelp(System.err);
       System.exit(1);
     }
 
-    final Path inputPath = new Path(args[0]);
-    final Path outputPath = new Path(args[1]);
-    final int minPasswordLength = Integer.parseInt(args[2]);
-    final int maxPasswordLength = Integer.parseInt(args[3]);
-    final StringBuilder configBuilder = new StringBuilder();
-    for (int a = 4; a < args.length; ++a) {
-      if (a > 4) {
-        configBuilder.append(CONFIGURATION_SEPARATOR);
-      }
-      configBuilder.append(args[a]);
-    }
-    final String configuration = configBuilder.toString();
+    final Path inputPath = new Path(args[a]);
+    final Path outputPath = new Path(args[a + 1]);
+    final int minPasswordLength = Integer.parseInt(args[a + 2]);
+    final int maxPasswordLength = Integer.parseInt(args[a + 3]);
+    final String[] ruleArgs = Arrays.copyOfRange(args, a + 4, args.length);
+    final String configuration = String.join(" ", ruleArgs);
 
     final Configuration jobConf = new Configuration();
-    jobConf.set(CONFIGURATION_KEY, configuration);
     jobConf.setInt(CONF_MIN_PASSWORD_LENGTH, minPasswordLength);
     jobConf.setInt(CONF_MAX_PASSWORD_LENGTH, maxPasswordLength);
+    jobConf.setInt(CONF_SAMPLE_SIZE, sampleSize);
+    jobConf.setLong(CONF_SEED, seed);
+    jobConf.setInt(CONF_THREADS, numThreads);
+    jobConf.setInt(CONF_DISTINCT_PRECISION, distinctPrecision);
+    jobConf.setBoolean(CONF_SOURCES, sources);
+    jobConf.setInt(CONF_TOP_K, topK);
+    jobConf.setInt(CONF_TOP_COUNTERS, topCounters);
+    jobConf.set(CONF_LONG_LINES, longLineAction.getName());
+    jobConf.setInt(CONF_MAX_LINE_BYTES, maxLineBytes);
+    if (longLineAction == LongLinePolicy.Action.SKIP) {
+      // let the record reader skip long lines without storing them; its
+      // lengths include the terminator of up to two bytes
+      jobConf.setInt(LineRecordReader.MAX_LINE_LENGTH,
+          (int) Math.min(Integer.MAX_VALUE, maxLineBytes + 3L));
+    }
     final Job job = Job.getInstance(
         jobConf, "password generator " + configuration);
     job.setJarByClass(HadoopPasswordGenerationRules.class);
+    setRuleArgs(job.getConfiguration(), addDictionaryToCache(job, ruleArgs));
     job.setMapperClass(PasswordGenerationRuleMapper.class);
-    job.setNumReduceTasks(0);
+    if (numSortReducers > 0) {
+      job.setPartitionerClass(SortPartitioner.class);
+      job.setReducerClass(SortReducer.class);
+      job.setNumReduceTasks(numSortReducers);
+    } else if (sampleSize > 0 || distinctPrecision > 0 || topK > 0) {
+      job.setReducerClass(SummaryReducer.class);
+      job.setNumReduceTasks(1);
+      job.setMapOutputValueClass(BytesWritable.class);
+    } else {
+      job.setNumReduceTasks(0);
+    }
     job.setOutputKeyClass(Text.class);
     job.setOutputValueClass(Text.class);
     LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
 
     FileInputFormat.addInputPath(job, inputPath);
     FileOutputFormat.setOutputPath(job, outputPath);
+    if (numSortReducers > 0) {
+      job.getConfiguration().setStrings(CONF_SORT_SPLIT_POINTS,
+          sampleSplitPoints(job, ruleArgs,
+              new LongLinePolicy(longLineAction, maxLineBytes),
+              numSortReducers, sortSample));
+    }
 
     // Run it
     return job.waitForCompletion(true) ? 0 : 1;
   }
+
+  private static String getOptionValue(final String[] args, final int a)
+  throws IllegalArgumentException {
+    if (a + 1 >= args.length) {
+      throw new IllegalArgumentException("Missing value for " + args[a]);
+    }
+    return args[a + 1];
+  }
+
+  /**
+   * Stores the rule parameters in the configuration, each under its own key
+   * so that they may contain any character.
+   */
+  private static void setRuleArgs(
+      final Configuration conf, final String[] ruleArgs) {
+    conf.setInt(CONFIGURATION_KEY, ruleArgs.length);
+    for (int r = 0; r < ruleArgs.length; ++r) {
+      conf.set(CONFIGURATION_KEY + "." + r, ruleArgs[r]);
+    }
+  }
+
+  /**
+   * Gets the rule parameters stored by
+   * {@link #setRuleArgs(Configuration, String[])}.
+   */
+  private static String[] getRuleArgs(final Configuration conf) {
+    final String[] ruleArgs = new String[conf.getInt(CONFIGURATION_KEY, 0)];
+    for (int r = 0; r < ruleArgs.length; ++r) {
+      ruleArgs[r] = conf.getRaw(CONFIGURATION_KEY + "." + r);
+    }
+    return ruleArgs;
+  }
+
+  /**
+   * Ships the replacement dictionary of the rule (if any) to the tasks
+   * through the distributed cache, so that each node reads it from its local
+   * disk. Dictionaries are local files of the client and are first copied to
+   * the default file system if that is not the local one.
+   * @return The rule parameters for the tasks, which refer to the dictionary
+   * by the link {@link #DICTIONARY_LINK} in their working directory
+   */
+  private static String[] addDictionaryToCache(
+      final Job job, final String[] ruleArgs)
+  throws IOException {
+    final String replacement = ruleArgs[1];
+    if (!replacement.startsWith(TokenReplacements.REPLACE_DICTIONARY_PREFIX)) {
+      return ruleArgs;
+    }
+    final Configuration conf = job.getConfiguration();
+    Path dictionary = new Path(new File(replacement.substring(
+        TokenReplacements.REPLACE_DICTIONARY_PREFIX.length()))
+        .getAbsoluteFile().toURI());
+    final FileSystem fileSystem = FileSystem.get(conf);
+    if (!(fileSystem instanceof LocalFileSystem)) {
+      final Path copy = fileSystem.makeQualified(new Path(
+          fileSystem.getHomeDirectory(), ".password-generation-rules-"
+              + UUID.randomUUID() + "-" + dictionary.getName()));
+      fileSystem.copyFromLocalFile(dictionary, copy);
+      fileSystem.deleteOnExit(copy);
+      dictionary = copy;
+    }
+    final URI uri = dictionary.toUri();
+    try {
+      job.addCacheFile(new URI(uri.getScheme(), uri.getAuthority(),
+          uri.getPath(), null, DICTIONARY_LINK));
+    } catch (final URISyntaxException e) {
+      throw new IOException(e);
+    }
+
+    final String[] taskRuleArgs = ruleArgs.clone();
+    taskRuleArgs[1] = TokenReplacements.REPLACE_DICTIONARY_PREFIX
+        + DICTIONARY_LINK;
+    return taskRuleArgs;
+  }
+
+  private static long getSampleSeed(final long seed, final int length) {
+    return seed * 31 + length;
+  }
+
+  /**
+   * Applies the rule to lines from the start of evenly spaced input splits
+   * and selects the passwords that divide the sample into parts of equal
+   * size, ordered as by {@link SplitPoint#compare(int, byte[], int, int)}.
+   * @return The encoded split points (see {@link SplitPoint#toString()})
+   */
+  private static String[] sampleSplitPoints(final Job job,
+      final String[] ruleArgs, final LongLinePolicy longLines,
+      final int numReducers, final int numLines)
+  throws IOException, InterruptedException {
+    final Configuration conf = job.getConfiguration();
+    final StagedRule rule = StagedRule.create(ruleArgs, 0);
+    final int minLength = conf.getInt(CONF_MIN_PASSWORD_LENGTH, 1);
+    final int maxLength =
+        conf.getInt(CONF_MAX_PASSWORD_LENGTH, Integer.MAX_VALUE);
+
+    final TextInputFormat inputFormat = new TextInputFormat();
+    final List<InputSplit> splits = inputFormat.getSplits(job);
+    final int numSampledSplits =
+        Math.min(splits.size(), MAX_SORT_SAMPLE_SPLITS);
+    final int numLinesPerSplit =
+        (numLines + numSampledSplits - 1) / Math.max(numSampledSplits, 1);
+    final List<SplitPoint> samples = new ArrayList<>();
+    for (int s = 0; s < numSampledSplits; ++s) {
+      final InputSplit split =
+          splits.get((int) ((long) s * splits.size() / numSampledSplits));
+      final TaskAttemptContext context =
+          new TaskAttemptContextImpl(conf, new TaskAttemptID());
+      try (final RecordReader<LongWritable, Text> reader =
+          inputFormat.createRecordReader(split, context)) {
+        reader.initialize(split, context);
+        for (int l = 0; l < numLinesPerSplit && reader.nextKeyValue(); ++l) {
+          final Text value = reader.getCurrentValue();
+          final int length = longLines.getLengthToProcess(
+              value.getBytes(), 0, value.getLength());
+          if (length < 0) { continue; }
+          final String password = rule.applyInLengthRange(
+              Text.decode(value.getBytes(), 0, length, true),
+              minLength, maxLength);
+          if (password != null) {
+            samples.add(new SplitPoint(
+                PasswordGenerationRules.getPasswordLength(password),
+                password));
+          }
+        }
+      }
+    }
+
+    Collections.sort(samples);
+    final String[] splitPoints =
+        new String[samples.isEmpty() ? 0 : numReducers - 1];
+    for (int p = 0; p < splitPoints.length; ++p) {
+      splitPoints[p] = samples.get(
+          (int) ((p + 1L) * samples.size() / numReducers)).toString();
+    }
+    return splitPoints;
+  }
   
   public static void printHelp(final PrintStream out) {
     out.println("Usage:");
-    out.print("  <input> <output> ");
+    out.print("  [<options>] <input> <output> ");
+    out.print("<min-password-length> <max-password-length> ");
     PasswordGenerationRules.printParameters(out);
     out.println("Where:");
     out.println("  <input>");
@@ -123,6 +507,74 @@ public class HadoopPasswordGenerationRules implements Tool {
     out.println("  <max-password-length>");
     out.println("    Maximum password length to consider the password.");
     PasswordGenerationRules.printParametersHelp(out);
+    out.println("Options:");
+    out.println("  " + PasswordGenerationRules.OPTION_SAMPLE + " <size>");
+    out.println("    Only write a uniform random sample of at most <size>");
+    out.println("    passwords per length (merged in one reducer).");
+    out.println("  " + PasswordGenerationRules.OPTION_SEED + " <number>");
+    out.println("    Seed for the random sampling (default: 0). The samples");
+    out.println("    depend on the order of processing, which is not");
+    out.println("    reproducible with " + OPTION_THREADS + ".");
+    out.println("  " + PasswordGenerationRules.OPTION_DISTINCT);
+    out.println("    Also write estimates of the number of distinct passwords");
+    out.println("    per length (HyperLogLog, merged in one reducer) as");
+    out.println("    tab-separated length, estimate, and number of passwords");
+    out.println("    to \"" + SUMMARY_DISTINCT + "\" files.");
+    out.println("  " + PasswordGenerationRules.OPTION_DISTINCT_PRECISION
+        + " <bits>");
+    out.println("    Use 2^<bits> bytes per length for the estimates (default:");
+    out.println("    " + DEFAULT_DISTINCT_PRECISION + ", implies "
+        + PasswordGenerationRules.OPTION_DISTINCT + ").");
+    out.println("  " + PasswordGenerationRules.OPTION_TOP);
+    out.println("    Also write the most frequent passwords per length");
+    out.println("    (Space-Saving, merged in one reducer) as tab-separated");
+    out.println("    length, password, count, and maximum overestimation of");
+    out.println("    the count to \"" + SUMMARY_TOP + "\" files.");
+    out.println("  " + PasswordGenerationRules.OPTION_TOP_K + " <number>");
+    out.println("    Number of most frequent passwords per length (default:");
+    out.println("    " + PasswordGenerationRules.DEFAULT_TOP_K + ", implies "
+        + PasswordGenerationRules.OPTION_TOP + ").");
+    out.println("  " + PasswordGenerationRules.OPTION_TOP_COUNTERS
+        + " <number>");
+    out.println("    Number of counters per length and map task (default:");
+    out.println("    " + PasswordGenerationRules.DEFAULT_TOP_COUNTERS + ").");
+    out.println("  " + PasswordGenerationRules.OPTION_SOURCES);
+    out.println("    Also write the input file and byte offset of the line");
+    out.println("    of each password as tab-separated password, file, and");
+    out.println("    offset to \"" + SOURCES_OUTPUT
+        + "\" files, from which PasswordIndexBuilder");
+    out.println("    " + PasswordIndexBuilder.OPTION_SOURCES
+        + " builds an index of the sources.");
+    out.println("  " + PasswordGenerationRules.OPTION_LONG_LINES
+        + " stream|truncate|skip");
+    out.println("    What to do with input lines longer than "
+        + PasswordGenerationRules.OPTION_MAX_LINE_BYTES + ":");
+    out.println("    process them in chunks (stream, default), only process");
+    out.println("    their first bytes (truncate), or write no password for");
+    out.println("    them (skip). Such lines are counted in the \""
+        + LONG_LINES_COUNTER_GROUP + "\"");
+    out.println("    counters, except for skipped lines that the record");
+    out.println("    reader already drops (and logs). Hadoop reads entire");
+    out.println("    records into memory for stream and truncate.");
+    out.println("  " + PasswordGenerationRules.OPTION_MAX_LINE_BYTES
+        + " <bytes>");
+    out.println("    Maximum length of input lines in bytes (default: "
+        + LongLinePolicy.DEFAULT_MAX_BYTES + ").");
+    out.println("  " + OPTION_THREADS + " <number>");
+    out.println("    Number of threads per map task, each with its own rule");
+    out.println("    instance (default: 1).");
+    out.println("  " + OPTION_SORT + " <reducers>");
+    out.println("    Write the passwords sorted by their UTF-8 bytes using");
+    out.println("    <reducers> reducers. Each reducer receives a range of");
+    out.println("    lengths and passwords according to split points from");
+    out.println("    a sample, so that the files \"length-<length>-r-*\" are");
+    out.println("    sorted in the order of their names. Can not be combined");
+    out.println("    with " + PasswordGenerationRules.OPTION_SAMPLE + " or "
+        + PasswordGenerationRules.OPTION_DISTINCT + ".");
+    out.println("  " + OPTION_SORT_SAMPLE + " <lines>");
+    out.println("    Number of input lines to sample for the split points of");
+    out.println("    " + OPTION_SORT + " (default: " + DEFAULT_SORT_SAMPLE
+        + ", from up to " + MAX_SORT_SAMPLE_SPLITS + " input splits).");
   }
 
   public static void main(final String[] args) throws Exception {
@@ -131,51 +583,181 @@ public class HadoopPasswordGenerationRules implements Tool {
   }
 
   public static class PasswordGenerationRuleMapper
-  extends Mapper<LongWritable, Text, Text, Text> {
+  extends Mapper<LongWritable, Text, Text, Writable> {
     
     private static final String COUNTER_GROUP = "passwords";
 
-    private Function<String, String> rule;
+    private static final int BATCH_SIZE = 1024;
+
+    private StagedRule rule;
+
+    private StagedRule convertedRule;
+
+    private AsciiBytes.Converter asciiConverter;
     
     private int minLength;
     
     private int maxLength;
 
-    private MultipleOutputs<Text, Text> output;
+    private MultipleOutputs<Text, Writable> output;
 
     private int cntr;
 
+    private int sampleSize;
+
+    private long seed;
+
+    private int taskId;
+
+    private Map<Integer, Reservoir> samples;
+
+    private int distinctPrecision;
+
+    private Map<Integer, HyperLogLog> distinct;
+
+    private int topCounters;
+
+    private Map<Integer, SpaceSaving> top;
+
+    private LongLinePolicy longLines;
+
+    private String sourceFile;
+
+    private boolean sort;
+
+    private ExecutorService executor;
+
+    private Semaphore batchSlots;
+
+    private List<byte[]> batch;
+
+    private long[] batchOffsets;
+
+    private ThreadLocal<StagedRule> threadRules;
+
+    private ThreadLocal<StagedRule> threadConvertedRules;
+
+    private final Text outputText;
+
+    private byte[] outputBytes;
+
+    private String[] baseOutputPaths;
+
+    private Text[] lengthTexts;
+
+    private final Object outputLock;
+
+    private Exception workerException;
+
     public PasswordGenerationRuleMapper() {
       this.rule = null;
+      this.convertedRule = null;
+      this.asciiConverter = null;
       this.minLength = 0;
       this.maxLength = 0;
       this.output = null;
       this.cntr = 0;
+      this.sampleSize = 0;
+      this.seed = 0;
+      this.taskId = 0;
+      this.samples = null;
+      this.distinctPrecision = 0;
+      this.distinct = null;
+      this.topCounters = 0;
+      this.top = null;
+      this.longLines = null;
+      this.sourceFile = null;
+      this.sort = false;
+      this.executor = null;
+      this.batchSlots = null;
+      this.batch = null;
+      this.batchOffsets = null;
+      this.threadRules = null;
+      this.threadConvertedRules = null;
+      this.outputText = new Text();
+      this.outputBytes = new byte[64];
+      this.baseOutputPaths = new String[0];
+      this.lengthTexts = new Text[0];
+      this.outputLock = new Object();
+      this.workerException = null;
     }
 
     @Override
     protected void setup(final Context context)
     throws IOException, InterruptedException {
       final Configuration conf = context.getConfiguration();
-      final String configuration = conf.get(CONFIGURATION_KEY);
-      
-      final String[] args = configuration.split(CONFIGURATION_SEPARATOR);
-      this.rule = PasswordGenerationRules.create(args, 0);
+      final String[] args = getRuleArgs(conf);
+      this.rule = StagedRule.create(args, 0);
+      this.convertedRule = StagedRule.create(args, 0, false);
+      this.asciiConverter = AsciiBytes.getConverter(args[0]);
       this.minLength = conf.getInt(CONF_MIN_PASSWORD_LENGTH, 1);
       this.maxLength = conf.getInt(CONF_MAX_PASSWORD_LENGTH, Integer.MAX_VALUE);
-      this.output = new MultipleOutputs<Text, Text>(context);
+      this.output = new MultipleOutputs<Text, Writable>(context);
+      this.sampleSize = conf.getInt(CONF_SAMPLE_SIZE, 0);
+      this.seed = conf.getLong(CONF_SEED, 0);
+      this.taskId = context.getTaskAttemptID().getTaskID().getId();
+      this.samples = new TreeMap<>();
+      this.distinctPrecision = conf.getInt(CONF_DISTINCT_PRECISION, 0);
+      this.distinct = new TreeMap<>();
+      if (conf.getInt(CONF_TOP_K, 0) > 0) {
+        this.topCounters = conf.getInt(CONF_TOP_COUNTERS,
+            PasswordGenerationRules.DEFAULT_TOP_COUNTERS);
+      }
+      this.top = new TreeMap<>();
+      this.longLines = new LongLinePolicy(
+          LongLinePolicy.Action.forName(conf.get(
+              CONF_LONG_LINES, LongLinePolicy.Action.STREAM.getName())),
+          conf.getInt(CONF_MAX_LINE_BYTES, LongLinePolicy.DEFAULT_MAX_BYTES));
+      if (conf.getBoolean(CONF_SOURCES, false)) {
+        this.sourceFile =
+            ((FileSplit) context.getInputSplit()).getPath().toString();
+      }
+      this.sort = context.getNumReduceTasks() > 0
+          && conf.get(CONF_SORT_SPLIT_POINTS) != null;
+
+      final int numThreads = conf.getInt(CONF_THREADS, 1);
+      if (numThreads > 1) {
+        this.executor = Executors.newFixedThreadPool(numThreads);
+        this.batchSlots = new Semaphore(2 * numThreads);
+        this.batch = new ArrayList<>(BATCH_SIZE);
+        this.batchOffsets = new long[BATCH_SIZE];
+        this.threadRules = ThreadLocal.withInitial(
+            () -> StagedRule.create(args, 0));
+        this.threadConvertedRules = ThreadLocal.withInitial(
+            () -> StagedRule.create(args, 0, false));
+      }
     }
 
     @Override
     public void map(
         final LongWritable key, final Text value, final Context context)
     throws IOException, InterruptedException {
-      final String password = this.rule.apply(value.toString());
-      final int length = password.replaceAll("\\s", "").length();
-      if (length >= this.minLength && length <= this.maxLength) {
-        final String baseOutputPath = "length-" + length;
-        context.getCounter(COUNTER_GROUP, baseOutputPath).increment(1);
-        this.output.write(new Text(password), null, baseOutputPath);
+      final int recordLength = value.getLength();
+      final int inputLength = this.longLines.getLengthToProcess(
+          value.getBytes(), 0, recordLength);
+      if (recordLength > this.longLines.getMaxBytes()) {
+        context.getCounter(LONG_LINES_COUNTER_GROUP,
+            this.longLines.getAction().getName()).increment(1);
+        if (inputLength < 0) { return; }
+      }
+
+      if (this.executor == null) {
+        final String password = this.apply(this.rule, this.convertedRule,
+            value.getBytes(), inputLength);
+        if (password != null) {
+          final int length =
+              PasswordGenerationRules.getPasswordLength(password);
+          final String baseOutputPath = this.getBaseOutputPath(length);
+          context.getCounter(COUNTER_GROUP, baseOutputPath).increment(1);
+          this.write(password, length, baseOutputPath, context);
+          this.writeSource(password, key.get());
+        }
+      } else {
+        this.batchOffsets[this.batch.size()] = key.get();
+        this.batch.add(Arrays.copyOf(value.getBytes(), inputLength));
+        if (this.batch.size() >= BATCH_SIZE) {
+          this.submitBatch(context);
+        }
       }
 
       ++this.cntr;
@@ -185,6 +767,490 @@ public class HadoopPasswordGenerationRules implements Tool {
       }
     }
 
+    /**
+     * Applies a rule to the UTF-8 bytes of a record. Records of only US-ASCII
+     * characters are converted to the character set directly on the bytes,
+     * others are decoded and processed by the complete rule. Returns
+     * <tt>null</tt> if the password would not be within the length range, in
+     * which case the rule may stop early (see
+     * {@link StagedRule#applyInLengthRange(String, int, int)}).
+     */
+    private String apply(final StagedRule rule,
+        final StagedRule convertedRule,
+        final byte[] bytes, final int length)
+    throws CharacterCodingException {
+      if (AsciiBytes.isAscii(bytes, 0, length)) {
+        return convertedRule.applyInLengthRange(
+            this.asciiConverter.convert(bytes, 0, length),
+            this.minLength, this.maxLength);
+      } else {
+        return rule.applyInLengthRange(Text.decode(bytes, 0, length, true),
+            this.minLength, this.maxLength);
+      }
+    }
+
+    private String getBaseOutputPath(final int length) {
+      synchronized (this.outputLock) {
+        if (length >= this.baseOutputPaths.length) {
+          final int size = this.baseOutputPaths.length;
+          this.baseOutputPaths = Arrays.copyOf(
+              this.baseOutputPaths, Math.max(length + 1, 2 * size));
+          this.lengthTexts = Arrays.copyOf(
+              this.lengthTexts, this.baseOutputPaths.length);
+          for (int l = size; l < this.baseOutputPaths.length; ++l) {
+            this.baseOutputPaths[l] =
+                PasswordGenerationRules.LENGTH_SHARD_PREFIX + l;
+            this.lengthTexts[l] = new Text(String.valueOf(l));
+          }
+        }
+        return this.baseOutputPaths[length];
+      }
+    }
+
+    /**
+     * Processes the current batch in a worker thread, blocking if too many
+     * batches are pending.
+     */
+    private void submitBatch(final Context context)
+    throws IOException, InterruptedException {
+      final List<byte[]> mnemonics = this.batch;
+      final long[] offsets = this.batchOffsets;
+      this.batch = new ArrayList<>(BATCH_SIZE);
+      this.batchOffsets = new long[BATCH_SIZE];
+      this.batchSlots.acquire();
+      this.checkWorkerException();
+      this.executor.execute(() -> {
+        try {
+          this.processBatch(mnemonics, offsets, context);
+        } catch (final Exception e) {
+          synchronized (this.outputLock) {
+            if (this.workerException == null) {
+              this.workerException = e;
+            }
+          }
+        } finally {
+          this.batchSlots.release();
+        }
+      });
+    }
+
+    /**
+     * Applies the rule instance of the current thread to a batch and writes
+     * the results, aggregating the counter increments of the batch.
+     */
+    private void processBatch(final List<byte[]> mnemonics,
+        final long[] offsets, final Context context)
+    throws IOException, InterruptedException {
+      final StagedRule threadRule = this.threadRules.get();
+      final StagedRule threadConvertedRule = this.threadConvertedRules.get();
+      final String[] passwords = new String[mnemonics.size()];
+      final int[] lengths = new int[mnemonics.size()];
+      for (int m = 0; m < passwords.length; ++m) {
+        final byte[] mnemonic = mnemonics.get(m);
+        passwords[m] = this.apply(
+            threadRule, threadConvertedRule, mnemonic, mnemonic.length);
+        if (passwords[m] != null) {
+          lengths[m] = PasswordGenerationRules.getPasswordLength(passwords[m]);
+        }
+      }
+
+      final Map<String, Long> counts = new HashMap<>();
+      synchronized (this.outputLock) {
+        for (int m = 0; m < passwords.length; ++m) {
+          final int length = lengths[m];
+          if (passwords[m] != null) {
+            final String baseOutputPath = this.getBaseOutputPath(length);
+            counts.merge(baseOutputPath, 1L, Long::sum);
+            this.write(passwords[m], length, baseOutputPath, context);
+            this.writeSource(passwords[m], offsets[m]);
+          }
+        }
+        for (final Map.Entry<String, Long> count : counts.entrySet()) {
+          context.getCounter(COUNTER_GROUP, count.getKey())
+            .increment(count.getValue());
+        }
+      }
+    }
+
+    private void checkWorkerException() throws IOException {
+      synchronized (this.outputLock) {
+        if (this.workerException != null) {
+          throw new IOException("Worker failed", this.workerException);
+        }
+      }
+    }
+
+    private void write(final String password, final int length,
+        final String baseOutputPath, final Context context)
+    throws IOException, InterruptedException {
+      if (this.distinctPrecision > 0) {
+        HyperLogLog sketch = this.distinct.get(length);
+        if (sketch == null) {
+          sketch = new HyperLogLog(this.distinctPrecision);
+          this.distinct.put(length, sketch);
+        }
+        sketch.add(password);
+      }
+      if (this.topCounters > 0) {
+        SpaceSaving sketch = this.top.get(length);
+        if (sketch == null) {
+          sketch = new SpaceSaving(this.topCounters);
+          this.top.put(length, sketch);
+        }
+        sketch.add(password);
+      }
+      if (this.sampleSize > 0) {
+        this.sample(password, length);
+      } else {
+        // the record writers write the text immediately, so it can be reused
+        if (AsciiBytes.isAscii(password)) {
+          this.outputBytes = AsciiBytes.toBytes(password, this.outputBytes);
+          this.outputText.set(this.outputBytes, 0, password.length());
+        } else {
+          this.outputText.set(password);
+        }
+        if (this.sort) {
+          // the length for the partitioner (getBaseOutputPath created it)
+          context.write(this.outputText, this.lengthTexts[length]);
+        } else {
+          this.output.write(this.outputText, null, baseOutputPath);
+        }
+      }
+    }
+
+    private void writeSource(final String password, final long offset)
+    throws IOException, InterruptedException {
+      if (this.sourceFile != null) {
+        this.output.write(new Text(password),
+            new Text(this.sourceFile + "\t" + offset), SOURCES_OUTPUT);
+      }
+    }
+
+    private void sample(final String password, final int length) {
+      Reservoir sample = this.samples.get(length);
+      if (sample == null) {
+        sample = new Reservoir(this.sampleSize,
+            getSampleSeed(this.seed, length) * 31 + this.taskId);
+        this.samples.put(length, sample);
+      }
+      sample.add(password);
+    }
+
+    @Override
+    protected void cleanup(final Context context)
+    throws IOException, InterruptedException {
+      if (this.executor != null) {
+        if (!this.batch.isEmpty()) {
+          this.submitBatch(context);
+        }
+        this.executor.shutdown();
+        while (!this.executor.awaitTermination(10, TimeUnit.SECONDS)) {
+          context.progress();
+        }
+        this.checkWorkerException();
+      }
+
+      for (final Map.Entry<Integer, Reservoir> sample
+          : this.samples.entrySet()) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream summary = new DataOutputStream(bytes)) {
+          summary.writeInt(this.taskId);
+          sample.getValue().write(summary);
+        }
+        context.write(
+            new Text(SUMMARY_SAMPLE + SUMMARY_SEPARATOR
+                + "length-" + sample.getKey()),
+            new BytesWritable(bytes.toByteArray()));
+      }
+      for (final Map.Entry<Integer, HyperLogLog> sketch
+          : this.distinct.entrySet()) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream summary = new DataOutputStream(bytes)) {
+          summary.writeInt(this.taskId);
+          sketch.getValue().write(summary);
+        }
+        context.write(
+            new Text(SUMMARY_DISTINCT + SUMMARY_SEPARATOR
+                + "length-" + sketch.getKey()),
+            new BytesWritable(bytes.toByteArray()));
+      }
+      for (final Map.Entry<Integer, SpaceSaving> sketch
+          : this.top.entrySet()) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream summary = new DataOutputStream(bytes)) {
+          summary.writeInt(this.taskId);
+          sketch.getValue().write(summary);
+        }
+        context.write(
+            new Text(SUMMARY_TOP + SUMMARY_SEPARATOR
+                + "length-" + sketch.getKey()),
+            new BytesWritable(bytes.toByteArray()));
+      }
+      this.output.close();
+    }
+  }
+
+  /**
+   * Merges the summaries of all mappers for one type and output path and
+   * writes the result to that output path (samples) or to one file for all
+   * lengths (distinct estimates and most frequent passwords).
+   */
+  public static class SummaryReducer
+  extends Reducer<Text, BytesWritable, Text, Text> {
+
+    private MultipleOutputs<Text, Text> output;
+
+    private long seed;
+
+    public SummaryReducer() {
+      this.output = null;
+      this.seed = 0;
+    }
+
+    @Override
+    protected void setup(final Context context)
+    throws IOException, InterruptedException {
+      this.output = new MultipleOutputs<Text, Text>(context);
+      this.seed = context.getConfiguration().getLong(CONF_SEED, 0);
+    }
+
+    @Override
+    protected void reduce(final Text key,
+        final Iterable<BytesWritable> values, final Context context)
+    throws IOException, InterruptedException {
+      final String[] typeAndPath = key.toString().split(SUMMARY_SEPARATOR, 2);
+      final String baseOutputPath = typeAndPath[1];
+      final int length = Integer.parseInt(
+          baseOutputPath.substring(baseOutputPath.indexOf('-') + 1));
+
+      // Sort by task ID to make the merge reproducible
+      final Map<Integer, DataInputStream> summaries = new TreeMap<>();
+      for (final BytesWritable value : values) {
+        // the iterator reuses the value, so its bytes have to be copied
+        final DataInputStream summary = new DataInputStream(
+            new ByteArrayInputStream(value.copyBytes()));
+        summaries.put(summary.readInt(), summary);
+      }
+
+      switch (typeAndPath[0]) {
+      case SUMMARY_SAMPLE:
+        Reservoir merged = null;
+        for (final DataInputStream summary : summaries.values()) {
+          final Reservoir sample =
+              Reservoir.read(summary, getSampleSeed(this.seed, length));
+          if (merged == null) {
+            merged = sample;
+          } else {
+            merged.merge(sample);
+          }
+        }
+        for (final String password : merged.getSamples()) {
+          this.output.write(new Text(password), null, baseOutputPath);
+        }
+        break;
+      case SUMMARY_DISTINCT:
+        final HyperLogLog sketch = new HyperLogLog(
+            context.getConfiguration().getInt(CONF_DISTINCT_PRECISION, 0));
+        for (final DataInputStream summary : summaries.values()) {
+          sketch.merge(HyperLogLog.read(summary));
+        }
+        this.output.write(new Text(String.format(Locale.ROOT, "%d\t%.0f\t%d",
+            length, sketch.getEstimate(), sketch.getCount())),
+            null, SUMMARY_DISTINCT);
+        break;
+      case SUMMARY_TOP:
+        SpaceSaving top = null;
+        for (final DataInputStream summary : summaries.values()) {
+          final SpaceSaving counts = SpaceSaving.read(summary);
+          if (top == null) {
+            top = counts;
+          } else {
+            top.merge(counts);
+          }
+        }
+        // formatted lines end with a line feed, which the writer adds
+        final String lines = PasswordGenerationRules.formatTop(length, top,
+            context.getConfiguration().getInt(CONF_TOP_K, 0));
+        this.output.write(new Text(lines.substring(0, lines.length() - 1)),
+            null, SUMMARY_TOP);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown summary: " + key);
+      }
+    }
+
+    @Override
+    protected void cleanup(final Context context)
+    throws IOException, InterruptedException {
+      this.output.close();
+    }
+  }
+
+  /**
+   * A password and its length as a point in the order of the output of
+   * {@link HadoopPasswordGenerationRules#OPTION_SORT}: by length, then by the
+   * UTF-8 bytes of the password.
+   */
+  protected static class SplitPoint implements Comparable<SplitPoint> {
+
+    private static final String SEPARATOR = ":";
+
+    private final int length;
+
+    private final byte[] password;
+
+    public SplitPoint(final int length, final String password) {
+      this(length, password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private SplitPoint(final int length, final byte[] password) {
+      this.length = length;
+      this.password = password;
+    }
+
+    /**
+     * Compares this split point to a password.
+     * @param length The length of the password
+     * @param bytes The array containing the UTF-8 encoded password
+     * @param offset The index of the first byte of the password
+     * @param numBytes The number of bytes of the password
+     * @return A negative integer, zero, or a positive integer if this split
+     * point is before, equal to, or after the password
+     */
+    public int compare(final int length,
+        final byte[] bytes, final int offset, final int numBytes) {
+      if (this.length != length) {
+        return Integer.compare(this.length, length);
+      }
+      return WritableComparator.compareBytes(this.password, 0,
+          this.password.length, bytes, offset, numBytes);
+    }
+
+    @Override
+    public int compareTo(final SplitPoint other) {
+      return this.compare(
+          other.length, other.password, 0, other.password.length);
+    }
+
+    /**
+     * @return The length and the Base64-encoded password, which contains no
+     * commas
+     */
+    @Override
+    public String toString() {
+      return this.length + SEPARATOR
+          + Base64.getEncoder().encodeToString(this.password);
+    }
+
+    /**
+     * Parses a split point from its {@link #toString()}.
+     * @param encoded The encoded split point
+     * @return The split point
+     */
+    public static SplitPoint parse(final String encoded) {
+      final String[] lengthAndPassword = encoded.split(SEPARATOR, 2);
+      return new SplitPoint(Integer.parseInt(lengthAndPassword[0]),
+          Base64.getDecoder().decode(lengthAndPassword[1]));
+    }
+
+  }
+
+  /**
+   * Assigns each password to the reducer of the range between two split
+   * points it falls into, so that the reducers receive consecutive ranges of
+   * lengths and passwords. The map output values are the password lengths.
+   */
+  public static class SortPartitioner
+  extends Partitioner<Text, Text> implements Configurable {
+
+    private Configuration configuration;
+
+    private SplitPoint[] splitPoints;
+
+    public SortPartitioner() {
+      this.configuration = null;
+      this.splitPoints = new SplitPoint[0];
+    }
+
+    @Override
+    public Configuration getConf() {
+      return this.configuration;
+    }
+
+    @Override
+    public void setConf(final Configuration configuration) {
+      this.configuration = configuration;
+      final String[] encoded =
+          configuration.getStrings(CONF_SORT_SPLIT_POINTS, new String[0]);
+      this.splitPoints = new SplitPoint[encoded.length];
+      for (int p = 0; p < encoded.length; ++p) {
+        this.splitPoints[p] = SplitPoint.parse(encoded[p]);
+      }
+    }
+
+    @Override
+    public int getPartition(
+        final Text password, final Text length, final int numPartitions) {
+      final int passwordLength = SortPartitioner.parseLength(length);
+      // number of split points that are not after the password
+      int min = 0;
+      int max = this.splitPoints.length;
+      while (min < max) {
+        final int mid = (min + max) >>> 1;
+        if (this.splitPoints[mid].compare(passwordLength,
+            password.getBytes(), 0, password.getLength()) <= 0) {
+          min = mid + 1;
+        } else {
+          max = mid;
+        }
+      }
+      return Math.min(min, numPartitions - 1);
+    }
+
+    private static int parseLength(final Text length) {
+      final byte[] digits = length.getBytes();
+      int value = 0;
+      for (int d = 0; d < length.getLength(); ++d) {
+        value = value * 10 + (digits[d] - '0');
+      }
+      return value;
+    }
+
+  }
+
+  /**
+   * Writes the passwords it receives in sorted order to one output path per
+   * length, once for each time a mapper generated it.
+   */
+  public static class SortReducer
+  extends Reducer<Text, Text, Text, Text> {
+
+    private MultipleOutputs<Text, Text> output;
+
+    public SortReducer() {
+      this.output = null;
+    }
+
+    @Override
+    protected void setup(final Context context)
+    throws IOException, InterruptedException {
+      this.output = new MultipleOutputs<Text, Text>(context);
+    }
+
+    @Override
+    protected void reduce(final Text password, final Iterable<Text> lengths,
+        final Context context)
+    throws IOException, InterruptedException {
+      String baseOutputPath = null;
+      for (final Text length : lengths) {
+        if (baseOutputPath == null) {
+          baseOutputPath =
+              PasswordGenerationRules.LENGTH_SHARD_PREFIX + length.toString();
+        }
+        this.output.write(password, null, baseOutputPath);
+      }
+    }
+
     @Override
     protected void cleanup(final Context context)
     throws IOException, InterruptedException {
@@ -2,21 +2,50 @@ package de.aitools.aq.passwords;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
+import de.aitools.aq.passwords.corpus.DocumentPasswords;
+import de.aitools.aq.passwords.index.PasswordIndexBuilder;
+import de.aitools.aq.passwords.rules.AsciiBytes;
 import de.aitools.aq.passwords.rules.CharacterIndicesFilter;
 import de.aitools.aq.passwords.rules.CharacterSets;
 import de.aitools.aq.passwords.rules.EveryNthTokenFilter;
 import de.aitools.aq.passwords.rules.TokenReplacements;
-import de.aitools.aq.passwords.rules.Tokenizer;
-import de.aitools.aq.passwords.util.ApplyOnList;
+import de.aitools.aq.passwords.stats.BloomFilter;
+import de.aitools.aq.passwords.stats.HyperLogLog;
+import de.aitools.aq.passwords.stats.PackedPasswords;
+import de.aitools.aq.passwords.stats.PasswordSet;
+import de.aitools.aq.passwords.stats.Reservoir;
+import de.aitools.aq.passwords.stats.SpaceSaving;
+import de.aitools.aq.passwords.util.BoundedInputStream;
+import de.aitools.aq.passwords.util.Checkpoint;
+import de.aitools.aq.passwords.util.LinePipeline;
+import de.aitools.aq.passwords.util.LineReader;
+import de.aitools.aq.passwords.util.LongLinePolicy;
+import de.aitools.aq.passwords.util.Manifest;
+import de.aitools.aq.passwords.util.ProgressReporter;
+import de.aitools.aq.passwords.util.ShardedWriter;
 
 /**
  * Utility class for composing password generation rules. Contains a main method
@@ -28,6 +57,230 @@ import de.aitools.aq.passwords.util.ApplyOnList;
  */
 public class PasswordGenerationRules {
 
+  /**
+   * Command line option for writing a checkpoint every given number of input
+   * lines.
+   */
+  public static final String OPTION_CHECKPOINT = "--checkpoint";
+
+  /**
+   * Command line option for resuming from the last checkpoint.
+   */
+  public static final String OPTION_RESUME = "--resume";
+
+  /**
+   * Command line option for processing only new or changed files of an input
+   * directory.
+   */
+  public static final String OPTION_INCREMENTAL = "--incremental";
+
+  /**
+   * Command line option for writing one output file per password length.
+   */
+  public static final String OPTION_SHARD_BY_LENGTH = "--shard-by-length";
+
+  /**
+   * Command line option for the minimum password length of sharded output.
+   */
+  public static final String OPTION_MIN_LENGTH = "--min-length";
+
+  /**
+   * Command line option for the maximum password length of sharded output.
+   */
+  public static final String OPTION_MAX_LENGTH = "--max-length";
+
+  /**
+   * Command line option for the maximum number of open files of sharded
+   * output.
+   */
+  public static final String OPTION_MAX_OPEN_FILES = "--max-open-files";
+
+  /**
+   * Command line option for the maximum buffer memory of sharded output in
+   * megabytes.
+   */
+  public static final String OPTION_BUFFER_MEMORY = "--buffer-memory";
+
+  /**
+   * Command line option for writing the buffers of sharded output in a
+   * background thread.
+   */
+  public static final String OPTION_ASYNC_FLUSH = "--async-flush";
+
+  /**
+   * Command line option for writing only a uniform random sample of given
+   * size for each password length.
+   */
+  public static final String OPTION_SAMPLE = "--sample";
+
+  /**
+   * Command line option for the seed of the random number generators.
+   */
+  public static final String OPTION_SEED = "--seed";
+
+  /**
+   * Command line option for dropping repeated passwords using a Bloom filter
+   * sized for given number of distinct passwords.
+   */
+  public static final String OPTION_DEDUP = "--dedup";
+
+  /**
+   * Command line option for the targeted false positive rate of the Bloom
+   * filter for dropping repeated passwords.
+   */
+  public static final String OPTION_DEDUP_FPP = "--dedup-fpp";
+
+  /**
+   * Command line option for the maximum memory of the Bloom filter for
+   * dropping repeated passwords in megabytes.
+   */
+  public static final String OPTION_DEDUP_MEMORY = "--dedup-memory";
+
+  /**
+   * Command line option for dropping repeated passwords using an exact set of
+   * the passwords (see {@link PasswordSet}).
+   */
+  public static final String OPTION_DEDUP_EXACT = "--dedup-exact";
+
+  /**
+   * Command line option for reporting the progress to the standard error
+   * output every given number of seconds.
+   */
+  public static final String OPTION_PROGRESS = "--progress";
+
+  /**
+   * Command line option for writing a summary of the run as JSON to given
+   * file.
+   */
+  public static final String OPTION_SUMMARY = "--summary";
+
+  /**
+   * Command line option for writing the state after each stage of the rule
+   * instead of only the password.
+   */
+  public static final String OPTION_TRACE = "--trace";
+
+  /**
+   * Command line option for writing estimates of the number of distinct
+   * passwords per length to given file.
+   */
+  public static final String OPTION_DISTINCT = "--distinct";
+
+  /**
+   * Command line option for the precision of the distinct estimates.
+   */
+  public static final String OPTION_DISTINCT_PRECISION = "--distinct-precision";
+
+  /**
+   * Command line option for writing the most frequent passwords per length
+   * to given file.
+   */
+  public static final String OPTION_TOP = "--top";
+
+  /**
+   * Command line option for the number of most frequent passwords per length.
+   */
+  public static final String OPTION_TOP_K = "--top-k";
+
+  /**
+   * Command line option for the number of counters per length for finding
+   * the most frequent passwords.
+   */
+  public static final String OPTION_TOP_COUNTERS = "--top-counters";
+
+  /**
+   * Command line option for what to do with input lines that are longer than
+   * the maximum (see {@link LongLinePolicy.Action}).
+   */
+  public static final String OPTION_LONG_LINES = "--long-lines";
+
+  /**
+   * Command line option for the maximum number of bytes of input lines that
+   * are not handled as long lines.
+   */
+  public static final String OPTION_MAX_LINE_BYTES = "--max-line-bytes";
+
+  /**
+   * Command line option for writing an index of the source lines of each
+   * password to given file.
+   */
+  public static final String OPTION_SOURCES = "--sources";
+
+  /**
+   * Command line option for writing each password directly after its input
+   * line was read.
+   */
+  public static final String OPTION_LINE_BUFFERED = "--line-buffered";
+
+  /**
+   * Command line option for generating passwords from each window of given
+   * number of consecutive tokens of documents instead of from each line.
+   */
+  public static final String OPTION_WINDOWS = "--windows";
+
+  /**
+   * Command line option for generating passwords from each sentence of
+   * documents instead of from each line.
+   */
+  public static final String OPTION_SENTENCES = "--sentences";
+
+  /**
+   * Name of the input or output for reading from the standard input or
+   * writing to the standard output.
+   */
+  public static final String STANDARD_STREAM = "-";
+
+  /**
+   * Prefix of the output file names for passwords of one length (followed by
+   * the length).
+   */
+  public static final String LENGTH_SHARD_PREFIX = "length-";
+
+  private static final long DEFAULT_CHECKPOINT_INTERVAL = 1000000;
+
+  private static final int DEFAULT_MAX_OPEN_FILES = 64;
+
+  private static final int DEFAULT_BUFFER_MEMORY = 64;
+
+  private static final double DEFAULT_DEDUP_FPP = 0.01;
+
+  /**
+   * The maximum (and default) memory of the Bloom filter in megabytes, so
+   * that the number of bits fits in a <tt>long</tt>.
+   */
+  private static final long MAX_DEDUP_MEMORY = Long.MAX_VALUE / 8 / 1024 / 1024;
+
+  private static final int DEFAULT_DISTINCT_PRECISION = 12;
+
+  /**
+   * The default number of most frequent passwords per length.
+   */
+  public static final int DEFAULT_TOP_K = 100;
+
+  /**
+   * The default number of counters per length for finding the most frequent
+   * passwords.
+   */
+  public static final int DEFAULT_TOP_COUNTERS = 4096;
+
+  private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+  private static final String MANIFEST_NAME = ".manifest";
+
+  /**
+   * Number of files after which {@link #OPTION_INCREMENTAL} writes the
+   * manifest.
+   */
+  private static final int MANIFEST_WRITE_FILES = 100;
+
+  /**
+   * Milliseconds after which {@link #OPTION_INCREMENTAL} writes the manifest
+   * if a file has been processed since the last write.
+   */
+  private static final long MANIFEST_WRITE_MILLIS = 10000;
+
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
   private PasswordGenerationRules() { }
 
   /**
@@ -56,13 +309,40 @@ public class PasswordGenerationRules {
       final String charIndices,
       final boolean addSpacesBetweenCharacters)
   throws NullPointerException, IllegalArgumentException {
-     return CharacterSets.getConverter(charset)
-       .andThen(new Tokenizer())
-       .andThen(TokenReplacements.getListReplacer(replacement))
-       .andThen(EveryNthTokenFilter.create(nthToken))
-       .andThen(new ApplyOnList<>(CharacterIndicesFilter.create(
-           charIndices, false, false)))
-       .andThen(input -> join(input, addSpacesBetweenCharacters));
+    return new StagedRule(charset, replacement, nthToken, charIndices,
+        addSpacesBetweenCharacters);
+  }
+
+  /**
+   * Creates a new password generation rule for input that has already been
+   * converted to the character set (e.g., using {@link AsciiBytes}).
+   * @param charset Configuration parameter for the character set (see
+   * {@link CharacterSets#getConverter(String)}), which is used to select the
+   * tokenizer
+   * @param replacement Configuration parameter for the token replacements (see
+   * {@link TokenReplacements#getListReplacer(String)})
+   * @param nthToken Configuration parameter for selecting the nth token for the
+   * password (see {@link EveryNthTokenFilter#create(String)})
+   * @param charIndices Configuration parameter for selecting the characters of
+   * each token for the password (see
+   * {@link CharacterIndicesFilter#create(String, boolean, boolean)},
+   * outputDuplicates and roundRobin are false for this version)
+   * @param addSpacesBetweenCharacters If spaces should be added between the
+   * password characters at the end (as needed for n-gram counting) 
+   * @return The rule without the character set conversion
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value
+   */
+  public static Function<String, String> createForConverted(
+      final String charset,
+      final String replacement,
+      final String nthToken,
+      final String charIndices,
+      final boolean addSpacesBetweenCharacters)
+  throws NullPointerException, IllegalArgumentException {
+    return new StagedRule(charset, replacement, nthToken, charIndices,
+        addSpacesBetweenCharacters, false);
   }
 
   /**
@@ -78,6 +358,30 @@ public class PasswordGenerationRules {
    */
   public static Function<String, String> create(
       final String[] args, final int start)
+  throws NullPointerException, IllegalArgumentException {
+    return PasswordGenerationRules.create(args, start, true);
+  }
+
+  /**
+   * Creates a new password generation rule for input that has already been
+   * converted to the character set.
+   * @param args The parameters of
+   * {@link #createForConverted(String, String, String, String, boolean)},
+   * starting at index start
+   * @param start The first index in args to treat as parameter
+   * @return The rule without the character set conversion
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value, or the number of parameters is less than 4 or more than 5
+   */
+  public static Function<String, String> createForConverted(
+      final String[] args, final int start)
+  throws NullPointerException, IllegalArgumentException {
+    return PasswordGenerationRules.create(args, start, false);
+  }
+
+  private static Function<String, String> create(
+      final String[] args, final int start, final boolean convert)
   throws NullPointerException, IllegalArgumentException {
     final int numArgs = args.length - start;
     if (numArgs < 4 || numArgs > 5) {
@@ -92,9 +396,15 @@ public class PasswordGenerationRules {
     final boolean addSpacesBetweenCharacters =
         numArgs == 4 ? false : Boolean.parseBoolean(args[start + 4]);
     
-    return PasswordGenerationRules.create(
-        charset, replacement, nthToken, charIndices,
-        addSpacesBetweenCharacters);
+    if (convert) {
+      return PasswordGenerationRules.create(
+          charset, replacement, nthToken, charIndices,
+          addSpacesBetweenCharacters);
+    } else {
+      return PasswordGenerationRules.createForConverted(
+          charset, replacement, nthToken, charIndices,
+          addSpacesBetweenCharacters);
+    }
   }
 
   /**
@@ -122,26 +432,11 @@ public class PasswordGenerationRules {
       final String nthToken,
       final String charIndices)
   throws NullPointerException, IllegalArgumentException {
-    final List<String> outputs = new ArrayList<>();
-
-    String current = CharacterSets.getConverter(charset).apply(mnemonic);
-    List<String> currents = new Tokenizer().apply(current);
-    outputs.add(joinSpacesBetweenTokens(currents));
-    
-    currents = TokenReplacements.getListReplacer(replacement).apply(currents);
-    outputs.add(joinSpacesBetweenTokens(currents));
-    
-    currents = EveryNthTokenFilter.create(nthToken).apply(currents);
-    outputs.add(joinSpacesBetweenTokens(currents));
-    
-    currents = new ApplyOnList<>(CharacterIndicesFilter.create(
-        charIndices, false, false)).apply(currents);
-    outputs.add(join(currents, false));
-
-    return outputs;
+    return new StagedRule(charset, replacement, nthToken, charIndices, false)
+      .trace(mnemonic).getSteps();
   }
   
-  private static String joinSpacesBetweenTokens(final List<String> inputs) {
+  static String joinSpacesBetweenTokens(final List<String> inputs) {
     final StringBuilder output = new StringBuilder();
     for (final String input : inputs) {
       if (output.length() > 0) {
@@ -152,7 +447,14 @@ public class PasswordGenerationRules {
     return output.toString();
   }
   
-  private static String join(final List<String> inputs,
+  /**
+   * Joins the selected characters of the tokens to a password.
+   * @param inputs The selected characters of each token
+   * @param spacesBetweenCharacters If spaces should be added between the
+   * password characters
+   * @return The password
+   */
+  public static String join(final List<String> inputs,
       final boolean spacesBetweenCharacters) {
     final StringBuilder output = new StringBuilder();
     for (final String input : inputs) {
@@ -166,6 +468,33 @@ public class PasswordGenerationRules {
     }
   }
   
+  /**
+   * Gets the length of a password, not counting white space characters (as
+   * added between password characters on request).
+   * @param password The password
+   * @return The number of characters in the password that are not in
+   * <tt>[ \t\n\x0B\f\r]</tt>
+   */
+  public static int getPasswordLength(final String password) {
+    final int numChars = password.length();
+    int length = 0;
+    for (int i = 0; i < numChars; ++i) {
+      switch (password.charAt(i)) {
+      case ' ':
+      case '\t':
+      case '\n':
+      case '\u000B':
+      case '\f':
+      case '\r':
+        break;
+      default:
+        ++length;
+        break;
+      }
+    }
+    return length;
+  }
+
   public static void printParameters(final PrintStream out) {
     out.println("<character set> <replacement> <word> <character position> "
         + "[<add spaces between characters>]");
@@ -178,8 +507,10 @@ public class PasswordGenerationRules {
         + CharacterSets.CHARSET_LOWERCASE_LETTERS + "'");
     out.println("  <replacement>");
     out.println("    Specifies whether to replace certain character sequences.");
-    out.println("    Either '" + TokenReplacements.REPLACE_NONE + "' or '"
-        + TokenReplacements.REPLACE_WORD_PREFIXES + "'");
+    out.println("    Either '" + TokenReplacements.REPLACE_NONE + "', '"
+        + TokenReplacements.REPLACE_WORD_PREFIXES + "', or '"
+        + TokenReplacements.REPLACE_DICTIONARY_PREFIX + "<file>' (whole");
+    out.println("    tokens, file compiled with ReplacementDictionary)");
     out.println("  <word>");
     out.println("    Specifies which tokens to take.");
     out.println("    Possible values: 'every', 'every2nd', ...");
@@ -196,39 +527,1136 @@ public class PasswordGenerationRules {
   
   public static void printHelp(final PrintStream out) {
     out.println("Usage:");
-    out.print("  <input> <output> "); printParameters(out);
+    out.print("  [<options>] <input> <output> "); printParameters(out);
     out.println("Where:");
     out.println("  <input>");
-    out.println("    A file with one input string per line.");
+    out.println("    A file with one input string per line, or \""
+        + STANDARD_STREAM + "\" for the");
+    out.println("    standard input.");
     out.println("  <output>");
-    out.println("    Output file which will contain one output string per line.");
+    out.println("    Output file which will contain one output string per line,");
+    out.println("    or \"" + STANDARD_STREAM
+        + "\" for the standard output. Reading, applying the");
+    out.println("    rule, and writing then happen in separate threads.");
     printParametersHelp(out);
+    out.println("Options:");
+    out.println("  " + OPTION_CHECKPOINT + " <lines>");
+    out.println("    Writes a checkpoint to <output>" + CHECKPOINT_SUFFIX
+        + " every <lines> input");
+    out.println("    lines. The checkpoint is deleted when the run completes.");
+    out.println("  " + OPTION_RESUME);
+    out.println("    Continues from the checkpoint (if it exists) by truncating");
+    out.println("    the output to the checkpoint and skipping the processed");
+    out.println("    input. Writes checkpoints every " + DEFAULT_CHECKPOINT_INTERVAL
+        + " lines unless");
+    out.println("    " + OPTION_CHECKPOINT + " is given.");
+    out.println("  " + OPTION_INCREMENTAL);
+    out.println("    <input> and <output> are directories. Each input file is");
+    out.println("    processed to the output file of the same relative path.");
+    out.println("    A manifest in <output>/" + MANIFEST_NAME
+        + " records size, modification");
+    out.println("    time, and content hash of processed files, so that only");
+    out.println("    new or changed files are processed (appended files");
+    out.println("    only for the appended lines) and outputs of removed files");
+    out.println("    are deleted. Input files must not change during a run.");
+    out.println("  " + OPTION_SHARD_BY_LENGTH);
+    out.println("    <output> is a directory that will contain one file");
+    out.println("    \"" + LENGTH_SHARD_PREFIX
+        + "<length>\" per password length.");
+    out.println("  " + OPTION_MIN_LENGTH + " <length>, "
+        + OPTION_MAX_LENGTH + " <length>");
+    out.println("    Only write passwords of at least / at most <length>");
+    out.println("    characters (requires " + OPTION_SHARD_BY_LENGTH + " or "
+        + OPTION_SAMPLE + ").");
+    out.println("  " + OPTION_MAX_OPEN_FILES + " <number>");
+    out.println("    Maximum number of output files open at the same time");
+    out.println("    for " + OPTION_SHARD_BY_LENGTH + " (default: "
+        + DEFAULT_MAX_OPEN_FILES + ").");
+    out.println("  " + OPTION_BUFFER_MEMORY + " <megabytes>");
+    out.println("    Maximum memory for buffering output for "
+        + OPTION_SHARD_BY_LENGTH);
+    out.println("    (default: " + DEFAULT_BUFFER_MEMORY + ").");
+    out.println("  " + OPTION_ASYNC_FLUSH);
+    out.println("    Write buffered output for " + OPTION_SHARD_BY_LENGTH
+        + " in a");
+    out.println("    background thread.");
+    out.println("  " + OPTION_SAMPLE + " <size>");
+    out.println("    Only write a uniform random sample of at most <size>");
+    out.println("    passwords per length, ordered by length (or one file per");
+    out.println("    length with " + OPTION_SHARD_BY_LENGTH + ").");
+    out.println("  " + OPTION_SEED + " <number>");
+    out.println("    Seed for the random sampling (default: 0).");
+    out.println("  " + OPTION_DEDUP + " <number>");
+    out.println("    Write each password only once, using a Bloom filter");
+    out.println("    sized for <number> distinct passwords. Passwords are");
+    out.println("    dropped wrongly with the false positive rate of the");
+    out.println("    filter, which is estimated at the end of the run.");
+    out.println("  " + OPTION_DEDUP_EXACT);
+    out.println("    Write each password only once, using an exact set of");
+    out.println("    the passwords. Passwords of up to "
+        + PackedPasswords.MAX_LENGTH + " lowercase letters");
+    out.println("    take 11 to 21 bytes each, others about 100 bytes.");
+    out.println("  " + OPTION_DEDUP_FPP + " <rate>");
+    out.println("    Targeted false positive rate of the Bloom filter");
+    out.println("    (default: " + DEFAULT_DEDUP_FPP + ").");
+    out.println("  " + OPTION_DEDUP_MEMORY + " <megabytes>");
+    out.println("    Maximum memory of the Bloom filter (default: as needed");
+    out.println("    for the rate).");
+    out.println("  " + OPTION_PROGRESS + " <seconds>");
+    out.println("    Report lines and bytes per second, estimated time until");
+    out.println("    the end of the input, and percentiles of the time per");
+    out.println("    line every <seconds> to the standard error output.");
+    out.println("  " + OPTION_SUMMARY + " <file>");
+    out.println("    Write a summary of the run as JSON to <file>.");
+    out.println("  " + OPTION_DISTINCT + " <file>");
+    out.println("    Write estimates of the number of distinct passwords per");
+    out.println("    length (HyperLogLog) as tab-separated length, estimate,");
+    out.println("    and number of passwords to <file>.");
+    out.println("  " + OPTION_DISTINCT_PRECISION + " <bits>");
+    out.println("    Use 2^<bits> bytes per length for the estimates (default:");
+    out.println("    " + DEFAULT_DISTINCT_PRECISION
+        + ", relative standard error about 1.04 / sqrt(2^<bits>)).");
+    out.println("  " + OPTION_TOP + " <file>");
+    out.println("    Write the most frequent passwords per length");
+    out.println("    (Space-Saving) as tab-separated length, password, count,");
+    out.println("    and maximum overestimation of the count to <file>.");
+    out.println("  " + OPTION_TOP_K + " <number>");
+    out.println("    Number of most frequent passwords per length (default:");
+    out.println("    " + DEFAULT_TOP_K + ").");
+    out.println("  " + OPTION_TOP_COUNTERS + " <number>");
+    out.println("    Number of counters per length (default: "
+        + DEFAULT_TOP_COUNTERS + "). Counts");
+    out.println("    are overestimated by at most the number of passwords of");
+    out.println("    the length divided by <number>.");
+    out.println("  " + OPTION_SOURCES + " <file>");
+    out.println("    Write an index of the file and byte offset of the input");
+    out.println("    lines of each password to <file> (see PasswordIndex;");
+    out.println("    within the length range, but including passwords");
+    out.println("    dropped by " + OPTION_DEDUP + ", " + OPTION_DEDUP_EXACT
+        + ", or not in");
+    out.println("    the sample).");
+    out.println("  " + OPTION_LONG_LINES + " stream|truncate|skip");
+    out.println("    What to do with input lines longer than "
+        + OPTION_MAX_LINE_BYTES + ":");
+    out.println("    process them in chunks (stream, default), only process");
+    out.println("    their first bytes (truncate), or write no password for");
+    out.println("    them (skip). The number of such lines is reported at");
+    out.println("    the end. Streamed lines are read in pieces of at most");
+    out.println("    " + LineReader.PIECE_BYTES + " bytes, except with "
+        + OPTION_TRACE + ", which reads");
+    out.println("    them at once as its output contains them.");
+    out.println("  " + OPTION_MAX_LINE_BYTES + " <bytes>");
+    out.println("    Maximum length of input lines in bytes (default: "
+        + LongLinePolicy.DEFAULT_MAX_BYTES + ").");
+    out.println("  " + OPTION_TRACE);
+    out.println("    Write the state after each stage of the rule as");
+    out.println("    tab-separated values instead of only the password:");
+    out.println("    " + String.join(", ", StagedRule.TRACE_COLUMNS));
+    out.println("    (tokens separated by spaces; tabs, line breaks, and");
+    out.println("    backslashes escaped as \\t, \\n, \\r, and \\\\).");
+    out.println("  " + OPTION_LINE_BUFFERED);
+    out.println("    Write and flush each password as soon as its line was");
+    out.println("    read instead of buffering the output (requires <input>");
+    out.println("    or <output> to be \"" + STANDARD_STREAM + "\").");
+    out.println("  " + OPTION_WINDOWS + " <tokens>");
+    out.println("    <input> contains documents separated by empty lines.");
+    out.println("    Write the password of each window of <tokens>");
+    out.println("    consecutive tokens of a document (across lines) instead");
+    out.println("    of one password per line (see DocumentPasswords).");
+    out.println("  " + OPTION_SENTENCES);
+    out.println("    <input> contains documents separated by empty lines.");
+    out.println("    Write the password of each sentence of a document");
+    out.println("    (across lines) instead of one password per line.");
   }
   
   public static void main(final String[] args) throws IOException {
-    if (args.length < 6 || args.length > 7) {
-      printHelp(System.err);
-      System.exit(1);
-    }
-
+    long checkpointInterval = 0;
+    boolean resume = false;
+    boolean incremental = false;
+    boolean shardByLength = false;
+    int minLength = 1;
+    int maxLength = Integer.MAX_VALUE;
+    int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+    long bufferMemory = DEFAULT_BUFFER_MEMORY;
+    boolean asyncFlush = false;
+    int sampleSize = 0;
+    long seed = 0;
+    long dedupExpected = 0;
+    double dedupRate = DEFAULT_DEDUP_FPP;
+    long dedupMemory = MAX_DEDUP_MEMORY;
+    boolean dedupExact = false;
+    long progressInterval = 0;
+    File summaryFile = null;
+    boolean trace = false;
+    File distinctFile = null;
+    int distinctPrecision = DEFAULT_DISTINCT_PRECISION;
+    File topFile = null;
+    int topK = DEFAULT_TOP_K;
+    int topCounters = DEFAULT_TOP_COUNTERS;
+    LongLinePolicy.Action longLineAction = LongLinePolicy.Action.STREAM;
+    int maxLineBytes = LongLinePolicy.DEFAULT_MAX_BYTES;
+    File sourcesFile = null;
+    boolean lineBuffered = false;
+    int windowSize = 0;
+    boolean sentences = false;
+    DocumentPasswords documents = null;
+    int a = 0;
     Function<String, String> rule = null;
+    Consumer<String> pieces = null;
+    BloomFilter dedupFilter = null;
+    PasswordSet dedupSet = null;
+    Predicate<String> dedup = null;
+    LongLinePolicy longLines = null;
     try {
-      rule = PasswordGenerationRules.create(args, 2);
+      for (; a < args.length && args[a].startsWith("--"); ++a) {
+        switch (args[a]) {
+        case OPTION_CHECKPOINT:
+          checkpointInterval = Long.parseLong(getOptionValue(args, a++));
+          if (checkpointInterval < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive checkpoint interval: " + checkpointInterval);
+          }
+          break;
+        case OPTION_RESUME:
+          resume = true;
+          break;
+        case OPTION_INCREMENTAL:
+          incremental = true;
+          break;
+        case OPTION_SHARD_BY_LENGTH:
+          shardByLength = true;
+          break;
+        case OPTION_MIN_LENGTH:
+          minLength = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case OPTION_MAX_LENGTH:
+          maxLength = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case OPTION_MAX_OPEN_FILES:
+          maxOpenFiles = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case OPTION_BUFFER_MEMORY:
+          bufferMemory = Long.parseLong(getOptionValue(args, a++));
+          break;
+        case OPTION_ASYNC_FLUSH:
+          asyncFlush = true;
+          break;
+        case OPTION_SAMPLE:
+          sampleSize = Integer.parseInt(getOptionValue(args, a++));
+          if (sampleSize < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive sample size: " + sampleSize);
+          }
+          break;
+        case OPTION_SEED:
+          seed = Long.parseLong(getOptionValue(args, a++));
+          break;
+        case OPTION_DEDUP:
+          dedupExpected = Long.parseLong(getOptionValue(args, a++));
+          if (dedupExpected < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive number of distinct passwords: " + dedupExpected);
+          }
+          break;
+        case OPTION_DEDUP_FPP:
+          dedupRate = Double.parseDouble(getOptionValue(args, a++));
+          break;
+        case OPTION_DEDUP_MEMORY:
+          dedupMemory = Long.parseLong(getOptionValue(args, a++));
+          if (dedupMemory < 1 || dedupMemory > MAX_DEDUP_MEMORY) {
+            throw new IllegalArgumentException(
+                "Invalid Bloom filter memory: " + dedupMemory);
+          }
+          break;
+        case OPTION_DEDUP_EXACT:
+          dedupExact = true;
+          break;
+        case OPTION_PROGRESS:
+          progressInterval = Long.parseLong(getOptionValue(args, a++));
+          if (progressInterval < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive progress interval: " + progressInterval);
+          }
+          break;
+        case OPTION_SUMMARY:
+          summaryFile = new File(getOptionValue(args, a++));
+          break;
+        case OPTION_TRACE:
+          trace = true;
+          break;
+        case OPTION_DISTINCT:
+          distinctFile = new File(getOptionValue(args, a++));
+          break;
+        case OPTION_DISTINCT_PRECISION:
+          distinctPrecision = Integer.parseInt(getOptionValue(args, a++));
+          HyperLogLog.checkPrecision(distinctPrecision);
+          break;
+        case OPTION_TOP:
+          topFile = new File(getOptionValue(args, a++));
+          break;
+        case OPTION_TOP_K:
+          topK = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case OPTION_TOP_COUNTERS:
+          topCounters = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case OPTION_LONG_LINES:
+          longLineAction =
+              LongLinePolicy.Action.forName(getOptionValue(args, a++));
+          break;
+        case OPTION_MAX_LINE_BYTES:
+          maxLineBytes = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case OPTION_SOURCES:
+          sourcesFile = new File(getOptionValue(args, a++));
+          break;
+        case OPTION_LINE_BUFFERED:
+          lineBuffered = true;
+          break;
+        case OPTION_WINDOWS:
+          windowSize = Integer.parseInt(getOptionValue(args, a++));
+          if (windowSize < 1) {
+            throw new IllegalArgumentException(
+                "Non-positive window size: " + windowSize);
+          }
+          break;
+        case OPTION_SENTENCES:
+          sentences = true;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[a]);
+        }
+      }
+      if (resume && checkpointInterval == 0) {
+        checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+      }
+      if (incremental && checkpointInterval > 0) {
+        throw new IllegalArgumentException(OPTION_INCREMENTAL
+            + " can not be combined with checkpoints");
+      }
+      if (shardByLength && (incremental || checkpointInterval > 0)) {
+        throw new IllegalArgumentException(OPTION_SHARD_BY_LENGTH
+            + " can not be combined with " + OPTION_INCREMENTAL
+            + " or checkpoints");
+      }
+      if (sampleSize > 0 && (incremental || checkpointInterval > 0)) {
+        throw new IllegalArgumentException(OPTION_SAMPLE
+            + " can not be combined with " + OPTION_INCREMENTAL
+            + " or checkpoints");
+      }
+      if (dedupExact && dedupExpected > 0) {
+        throw new IllegalArgumentException(OPTION_DEDUP_EXACT
+            + " can not be combined with " + OPTION_DEDUP);
+      }
+      if ((dedupExpected > 0 || dedupExact)
+          && (incremental || checkpointInterval > 0)) {
+        throw new IllegalArgumentException(OPTION_DEDUP + " and "
+            + OPTION_DEDUP_EXACT + " can not be combined with "
+            + OPTION_INCREMENTAL + " or checkpoints");
+      }
+      if (trace && (shardByLength || sampleSize > 0
+          || dedupExpected > 0 || dedupExact)) {
+        throw new IllegalArgumentException(OPTION_TRACE
+            + " can not be combined with " + OPTION_SHARD_BY_LENGTH + ", "
+            + OPTION_SAMPLE + ", " + OPTION_DEDUP + ", or "
+            + OPTION_DEDUP_EXACT);
+      }
+      checkTopParameters(topK, topCounters);
+      if (topFile != null && (incremental || resume || trace)) {
+        throw new IllegalArgumentException(OPTION_TOP
+            + " can not be combined with " + OPTION_INCREMENTAL + ", "
+            + OPTION_RESUME + ", or " + OPTION_TRACE);
+      }
+      if (distinctFile != null && (incremental || resume || trace)) {
+        throw new IllegalArgumentException(OPTION_DISTINCT
+            + " can not be combined with " + OPTION_INCREMENTAL + ", "
+            + OPTION_RESUME + ", or " + OPTION_TRACE);
+      }
+      if (sourcesFile != null
+          && (incremental || checkpointInterval > 0 || trace)) {
+        throw new IllegalArgumentException(OPTION_SOURCES
+            + " can not be combined with " + OPTION_INCREMENTAL + ", "
+            + OPTION_TRACE + ", or checkpoints");
+      }
+      if (!shardByLength && sampleSize == 0
+          && (minLength != 1 || maxLength != Integer.MAX_VALUE)) {
+        throw new IllegalArgumentException(OPTION_MIN_LENGTH + " and "
+            + OPTION_MAX_LENGTH + " require " + OPTION_SHARD_BY_LENGTH
+            + " or " + OPTION_SAMPLE);
+      }
+
+      if (args.length - a < 6 || args.length - a > 7) {
+        printHelp(System.err);
+        System.exit(1);
+      }
+      final boolean streamed = args[a].equals(STANDARD_STREAM)
+          || args[a + 1].equals(STANDARD_STREAM);
+      if (streamed && (incremental || checkpointInterval > 0
+          || shardByLength || sampleSize > 0 || sourcesFile != null)) {
+        throw new IllegalArgumentException("\"" + STANDARD_STREAM
+            + "\" can not be combined with " + OPTION_INCREMENTAL + ", "
+            + OPTION_SHARD_BY_LENGTH + ", " + OPTION_SAMPLE + ", "
+            + OPTION_SOURCES + ", or checkpoints");
+      }
+      if (lineBuffered && !streamed) {
+        throw new IllegalArgumentException(OPTION_LINE_BUFFERED
+            + " requires <input> or <output> to be \"" + STANDARD_STREAM
+            + "\"");
+      }
+      if (windowSize > 0 && sentences) {
+        throw new IllegalArgumentException(OPTION_WINDOWS
+            + " can not be combined with " + OPTION_SENTENCES);
+      }
+      if ((windowSize > 0 || sentences) && (incremental
+          || checkpointInterval > 0 || resume || shardByLength
+          || sampleSize > 0 || sourcesFile != null || trace || lineBuffered)) {
+        throw new IllegalArgumentException(OPTION_WINDOWS + " and "
+            + OPTION_SENTENCES + " can not be combined with "
+            + OPTION_INCREMENTAL + ", " + OPTION_SHARD_BY_LENGTH + ", "
+            + OPTION_SAMPLE + ", " + OPTION_SOURCES + ", " + OPTION_TRACE
+            + ", " + OPTION_LINE_BUFFERED + ", or checkpoints");
+      }
+      if (windowSize > 0) {
+        documents = DocumentPasswords.forWindows(args, a + 2, windowSize);
+        rule = Function.identity();
+      } else if (sentences) {
+        documents = DocumentPasswords.forSentences(args, a + 2);
+        rule = Function.identity();
+      } else if (trace) {
+        final StagedRule stages = StagedRule.create(args, a + 2);
+        rule = mnemonic -> stages.trace(mnemonic).toTsv();
+      } else {
+        final StagedRule stages = StagedRule.create(args, a + 2);
+        rule = stages;
+        pieces = stages::addPiece;
+      }
+      longLines = new LongLinePolicy(longLineAction, maxLineBytes);
+      if (dedupExpected > 0) {
+        dedupFilter = BloomFilter.create(
+            dedupExpected, dedupRate, dedupMemory * 8 * 1024 * 1024);
+        dedup = dedupFilter::add;
+      } else if (dedupExact) {
+        dedupSet = new PasswordSet();
+        dedup = dedupSet::add;
+      }
     } catch (final IllegalArgumentException e) {
       System.err.println(e.getMessage());
       printHelp(System.err);
       System.exit(1);
     }
 
-    final Iterator<String> passwords =
-        Files.lines(new File(args[0]).toPath()).map(rule).iterator();
-    try (final BufferedWriter writer =
-        new BufferedWriter(new FileWriter(args[1]))) {
-      while (passwords.hasNext()) {
-        writer.write(passwords.next());
-        writer.write('\n');
+    final File input = new File(args[a]);
+    final File output = new File(args[a + 1]);
+    final StringBuilder configuration = new StringBuilder();
+    for (int c = a + 2; c < args.length; ++c) {
+      if (c > a + 2) {
+        configuration.append(' ');
+      }
+      configuration.append(args[c]);
+    }
+
+    final PasswordIndexBuilder sources = sourcesFile == null ? null
+        : new PasswordIndexBuilder(sourcesFile, configuration.toString(),
+            PasswordIndexBuilder.DEFAULT_BLOCK_SIZE,
+            PasswordIndexBuilder.DEFAULT_MEMORY * 1024L * 1024L, true);
+
+    final Map<Integer, HyperLogLog> distinct = new TreeMap<>();
+    if (distinctFile != null) {
+      final int precision = distinctPrecision;
+      rule = rule.andThen(password -> {
+        distinct.computeIfAbsent(
+            PasswordGenerationRules.getPasswordLength(password),
+            length -> new HyperLogLog(precision)).add(password);
+        return password;
+      });
+    }
+
+    final Map<Integer, SpaceSaving> top = new TreeMap<>();
+    if (topFile != null) {
+      final int counters = topCounters;
+      rule = rule.andThen(password -> {
+        top.computeIfAbsent(
+            PasswordGenerationRules.getPasswordLength(password),
+            length -> new SpaceSaving(counters)).add(password);
+        return password;
+      });
+    }
+
+    ProgressReporter progress = null;
+    if (progressInterval > 0 || summaryFile != null) {
+      long totalBytes = 0;
+      if (!input.getPath().equals(STANDARD_STREAM)) {
+        for (final File file : Manifest.listFiles(input).values()) {
+          totalBytes += file.length();
+        }
+      }
+      progress = new ProgressReporter(
+          input.isFile() ? input.length() : totalBytes, System.err);
+      if (resume) {
+        final Checkpoint checkpoint = Checkpoint.read(
+            new File(output.getPath() + CHECKPOINT_SUFFIX));
+        if (checkpoint != null) {
+          progress.skip(checkpoint.getInputOffset());
+        }
+      }
+      if (documents == null) {
+        rule = progress.wrap(rule);
+        if (pieces != null) {
+          pieces = progress.wrapPieces(pieces);
+        }
+      }
+      if (progressInterval > 0) {
+        progress.start(progressInterval);
+      }
+    }
+
+    if (documents != null) {
+      PasswordGenerationRules.generateDocuments(documents, rule, input,
+          output, dedup, longLines, progress);
+    } else if (incremental) {
+      PasswordGenerationRules.generateIncrementally(
+          rule, pieces, configuration.toString(), input, output, longLines);
+    } else if (sampleSize > 0) {
+      final Map<Integer, Reservoir> samples = PasswordGenerationRules.sample(
+          rule, pieces, input, sampleSize, seed, minLength, maxLength, dedup,
+          longLines, sources);
+      if (shardByLength) {
+        try (final ShardedWriter writer = new ShardedWriter(output,
+            maxOpenFiles, bufferMemory * 1024 * 1024, asyncFlush)) {
+          for (final Map.Entry<Integer, Reservoir> sample
+              : samples.entrySet()) {
+            for (final String password : sample.getValue().getSamples()) {
+              writer.write(LENGTH_SHARD_PREFIX + sample.getKey(), password);
+            }
+          }
+        }
+      } else {
+        try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(output), StandardCharsets.UTF_8))) {
+          for (final Reservoir sample : samples.values()) {
+            for (final String password : sample.getSamples()) {
+              writer.write(password);
+              writer.write('\n');
+            }
+          }
+        }
+      }
+    } else if (shardByLength) {
+      try (final ShardedWriter writer = new ShardedWriter(output,
+          maxOpenFiles, bufferMemory * 1024 * 1024, asyncFlush)) {
+        PasswordGenerationRules.generateSharded(
+            rule, pieces, input, writer, minLength, maxLength, dedup, longLines,
+            sources);
       }
+    } else if (input.getPath().equals(STANDARD_STREAM)
+        || output.getPath().equals(STANDARD_STREAM)) {
+      PasswordGenerationRules.generateStreaming(
+          rule, pieces, input, output, lineBuffered, dedup, longLines);
+    } else {
+      PasswordGenerationRules.generate(
+          rule, pieces, input, output, checkpointInterval, resume, dedup,
+          longLines, sources);
+    }
+
+    if (progress != null) {
+      progress.finish();
+    }
+    if (longLines.getNumLongLines() > 0) {
+      System.err.println(longLines.getReport());
+    }
+    if (dedupFilter != null) {
+      PasswordGenerationRules.printDedupReport(dedupFilter, System.err);
+    }
+    if (dedupSet != null) {
+      PasswordGenerationRules.printDedupReport(dedupSet, System.err);
+    }
+    if (sources != null) {
+      final long numPasswords = sources.build();
+      System.err.println("Indexed the sources of " + numPasswords
+          + " distinct passwords in " + sourcesFile);
+    }
+    if (distinctFile != null) {
+      PasswordGenerationRules.writeDistinct(
+          distinct, configuration.toString(), distinctFile);
+    }
+    if (topFile != null) {
+      PasswordGenerationRules.writeTop(
+          top, topK, configuration.toString(), topFile);
+    }
+    if (summaryFile != null) {
+      final StringBuilder summary = new StringBuilder();
+      summary.append("{\"input\":").append(toJson(input.getPath()));
+      summary.append(",\"output\":").append(toJson(output.getPath()));
+      summary.append(",\"configuration\":")
+        .append(toJson(configuration.toString()));
+      summary.append(",\"run\":").append(progress.toJson());
+      summary.append(String.format(Locale.ROOT,
+          ",\"long_lines\":{\"action\":%s,\"max_bytes\":%d,\"lines\":%d}",
+          toJson(longLines.getAction().getName()), longLines.getMaxBytes(),
+          longLines.getNumLongLines()));
+      if (dedupFilter != null) {
+        summary.append(String.format(Locale.ROOT,
+            ",\"dedup\":{\"passwords\":%d,\"kept\":%d,\"bits\":%d,"
+            + "\"hashes\":%d,\"false_positive_rate\":%.6g}",
+            dedupFilter.getNumAdded(), dedupFilter.getNumNew(),
+            dedupFilter.getNumBits(), dedupFilter.getNumHashes(),
+            dedupFilter.getFalsePositiveRate()));
+      }
+      if (dedupSet != null) {
+        summary.append(String.format(Locale.ROOT,
+            ",\"dedup\":{\"passwords\":%d,\"kept\":%d,\"packed\":%d,"
+            + "\"bytes\":%d}",
+            dedupSet.getNumAdded(), dedupSet.size(),
+            dedupSet.getNumPacked(), dedupSet.getNumBytes()));
+      }
+      if (distinctFile != null) {
+        summary.append(",\"distinct\":{");
+        for (final Map.Entry<Integer, HyperLogLog> sketch
+            : distinct.entrySet()) {
+          if (summary.charAt(summary.length() - 1) != '{') {
+            summary.append(',');
+          }
+          summary.append(String.format(Locale.ROOT, "\"%d\":%.0f",
+              sketch.getKey(), sketch.getValue().getEstimate()));
+        }
+        summary.append('}');
+      }
+      summary.append("}\n");
+      Files.write(summaryFile.toPath(),
+          summary.toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Writes estimates of the number of distinct passwords per length as
+   * tab-separated values: length, estimate, and number of passwords. The
+   * first line contains the configuration and the last line the sums over
+   * all lengths.
+   * @param distinct The sketches per length
+   * @param configuration The rule configuration
+   * @param file The file to write to
+   * @throws IOException If writing failed
+   */
+  public static void writeDistinct(final Map<Integer, HyperLogLog> distinct,
+      final String configuration, final File file)
+  throws IOException {
+    try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file), StandardCharsets.UTF_8))) {
+      writer.write("# configuration: " + configuration + "\n");
+      double totalEstimate = 0;
+      long totalCount = 0;
+      for (final Map.Entry<Integer, HyperLogLog> sketch : distinct.entrySet()) {
+        final double estimate = sketch.getValue().getEstimate();
+        final long count = sketch.getValue().getCount();
+        writer.write(String.format(Locale.ROOT, "%d\t%.0f\t%d\n",
+            sketch.getKey(), estimate, count));
+        totalEstimate += estimate;
+        totalCount += count;
+      }
+      writer.write(String.format(Locale.ROOT, "all\t%.0f\t%d\n",
+          totalEstimate, totalCount));
+    }
+  }
+
+  /**
+   * Checks the parameters for finding the most frequent passwords.
+   * @param k The number of most frequent passwords per length
+   * @param counters The number of counters per length
+   * @throws IllegalArgumentException If k is not positive or larger than the
+   * number of counters
+   */
+  public static void checkTopParameters(final int k, final int counters)
+  throws IllegalArgumentException {
+    if (k < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive number of passwords: " + k);
+    }
+    if (counters < k) {
+      throw new IllegalArgumentException("Fewer counters (" + counters
+          + ") than passwords (" + k + ")");
+    }
+  }
+
+  /**
+   * Writes the most frequent passwords per length, each length starting with
+   * a comment line (see {@link #formatTop(int, SpaceSaving, int)}). The first
+   * line contains the configuration.
+   * @param top The sketches per length
+   * @param k The maximum number of passwords per length
+   * @param configuration The rule configuration
+   * @param file The file to write to
+   * @throws IOException If writing failed
+   */
+  public static void writeTop(final Map<Integer, SpaceSaving> top,
+      final int k, final String configuration, final File file)
+  throws IOException {
+    try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file), StandardCharsets.UTF_8))) {
+      writer.write("# configuration: " + configuration + "\n");
+      for (final Map.Entry<Integer, SpaceSaving> sketch : top.entrySet()) {
+        writer.write(PasswordGenerationRules.formatTop(
+            sketch.getKey(), sketch.getValue(), k));
+      }
+    }
+  }
+
+  /**
+   * Formats the most frequent passwords of one length as a comment line with
+   * the number of passwords and the maximum count of passwords that are not
+   * listed, followed by tab-separated length, password, count, and maximum
+   * overestimation of the count, by decreasing count.
+   * @param length The password length
+   * @param sketch The sketch of the passwords of the length
+   * @param k The maximum number of passwords
+   * @return The lines (each terminated by a line feed)
+   */
+  public static String formatTop(
+      final int length, final SpaceSaving sketch, final int k) {
+    final StringBuilder lines = new StringBuilder();
+    lines.append(String.format(Locale.ROOT,
+        "# length %d: %d passwords, others occur at most %d times\n",
+        length, sketch.getCount(), sketch.getMaxError()));
+    for (final SpaceSaving.Counter counter : sketch.getTop(k)) {
+      lines.append(length).append('\t').append(counter.getString())
+        .append('\t').append(counter.getCount())
+        .append('\t').append(counter.getError()).append('\n');
+    }
+    return lines.toString();
+  }
+
+  private static String toJson(final String string) {
+    final StringBuilder json = new StringBuilder("\"");
+    for (final char c : string.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < ' ') {
+        json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  private static void printDedupReport(
+      final BloomFilter dedup, final PrintStream out) {
+    final double estimatedDistinct = dedup.getEstimatedNumStrings();
+    out.println("Deduplication: kept " + dedup.getNumNew() + " of "
+        + dedup.getNumAdded() + " passwords");
+    out.println(String.format(Locale.ROOT,
+        "  Bloom filter: %d bits (%.1f MB), %d hashes, %.4f filled",
+        dedup.getNumBits(), dedup.getNumBits() / 8.0 / 1024 / 1024,
+        dedup.getNumHashes(), dedup.getFillRatio()));
+    out.println(String.format(Locale.ROOT,
+        "  Estimated false positive rate at the end: %.6f",
+        dedup.getFalsePositiveRate()));
+    out.println(String.format(Locale.ROOT,
+        "  Estimated distinct passwords: %.0f (%.0f dropped wrongly)",
+        estimatedDistinct,
+        Math.max(0, estimatedDistinct - dedup.getNumNew())));
+  }
+
+  private static void printDedupReport(
+      final PasswordSet dedup, final PrintStream out) {
+    out.println("Deduplication: kept " + dedup.size() + " of "
+        + dedup.getNumAdded() + " passwords");
+    out.println(String.format(Locale.ROOT,
+        "  Exact set: %d packed and %d other passwords (%.1f MB)",
+        dedup.getNumPacked(), dedup.size() - dedup.getNumPacked(),
+        dedup.getNumBytes() / 1024.0 / 1024));
+  }
+
+  /**
+   * Applies a rule to each line of an input file, writing checkpoints if the
+   * interval is positive.
+   * @param pieces Receives the pieces of streamed lines for the rule (see
+   * {@link LineReader#setPieces(Consumer)}), or <tt>null</tt>
+   */
+  private static void generate(final Function<String, String> rule,
+      final Consumer<String> pieces, final File inputFile,
+      final File outputFile, final long checkpointInterval,
+      final boolean resume,
+      final Predicate<String> dedup, final LongLinePolicy longLines,
+      final PasswordIndexBuilder sources)
+  throws IOException {
+    final File checkpointFile =
+        new File(outputFile.getPath() + CHECKPOINT_SUFFIX);
+    Checkpoint checkpoint = resume ? Checkpoint.read(checkpointFile) : null;
+    if (checkpoint == null) {
+      checkpoint = new Checkpoint(0, 0, 0);
+    } else {
+      System.err.println("Resuming from " + checkpoint);
+    }
+
+    try (final FileInputStream inputStream = new FileInputStream(inputFile);
+        final FileOutputStream outputStream = new FileOutputStream(
+            outputFile, checkpoint.getOutputOffset() > 0)) {
+      if (checkpoint.getOutputOffset() > 0) {
+        if (outputStream.getChannel().size() < checkpoint.getOutputOffset()) {
+          throw new IOException("Output is shorter than in the checkpoint: "
+              + outputFile);
+        }
+        outputStream.getChannel().truncate(checkpoint.getOutputOffset());
+      }
+      inputStream.getChannel().position(checkpoint.getInputOffset());
+
+      final LineReader reader = new LineReader(
+          inputStream, checkpoint.getInputOffset(), longLines);
+      reader.setPieces(pieces);
+      final BufferedWriter writer = new BufferedWriter(
+          new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+      long lines = checkpoint.getLines();
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        final String password = rule.apply(line);
+        if (sources != null
+            && PasswordGenerationRules.getPasswordLength(password) > 0) {
+          sources.add(password, inputFile.getPath(), reader.getLineOffset());
+        }
+        if (dedup == null || dedup.test(password)) {
+          writer.write(password);
+          writer.write('\n');
+        }
+        ++lines;
+
+        if (checkpointInterval > 0 && lines % checkpointInterval == 0) {
+          writer.flush();
+          outputStream.getChannel().force(false);
+          new Checkpoint(lines, reader.getOffset(),
+              outputStream.getChannel().position()).write(checkpointFile);
+        }
+      }
+      writer.flush();
+    }
+
+    if (checkpointInterval > 0) {
+      Files.deleteIfExists(checkpointFile.toPath());
+    }
+  }
+
+  /**
+   * Applies a rule to each line of an input file or the standard input,
+   * writing to an output file or the standard output (see
+   * {@link LinePipeline}).
+   */
+  private static void generateStreaming(final Function<String, String> rule,
+      final Consumer<String> pieces, final File inputFile,
+      final File outputFile, final boolean lineBuffered,
+      final Predicate<String> dedup, final LongLinePolicy longLines)
+  throws IOException {
+    // unbuffered streams, as the pipeline buffers itself
+    try (final InputStream inputStream =
+            inputFile.getPath().equals(STANDARD_STREAM)
+            ? new FileInputStream(FileDescriptor.in)
+            : new FileInputStream(inputFile);
+        final OutputStream outputStream =
+            outputFile.getPath().equals(STANDARD_STREAM)
+            ? new FileOutputStream(FileDescriptor.out)
+            : new FileOutputStream(outputFile)) {
+      final LinePipeline pipeline = new LinePipeline(
+          new LineReader(inputStream, 0, longLines), outputStream,
+          lineBuffered);
+      pipeline.run(line -> {
+        final String password = rule.apply(line);
+        return dedup == null || dedup.test(password) ? password : null;
+      }, pieces);
+    }
+  }
+
+  /**
+   * Generates the passwords of the windows or sentences of the documents in an
+   * input file or the standard input, and writes them to an output file or the
+   * standard output.
+   * @param observer Function that is applied to each password (and returns
+   * it) before it is deduplicated
+   * @param progress Reporter that is updated per input line, or
+   * <tt>null</tt>
+   */
+  private static void generateDocuments(final DocumentPasswords documents,
+      final Function<String, String> observer, final File inputFile,
+      final File outputFile, final Predicate<String> dedup,
+      final LongLinePolicy longLines, final ProgressReporter progress)
+  throws IOException {
+    try (final InputStream inputStream =
+            inputFile.getPath().equals(STANDARD_STREAM)
+            ? new FileInputStream(FileDescriptor.in)
+            : new FileInputStream(inputFile);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+            outputFile.getPath().equals(STANDARD_STREAM)
+            ? new FileOutputStream(FileDescriptor.out)
+            : new FileOutputStream(outputFile), StandardCharsets.UTF_8),
+            1 << 20)) {
+      final Consumer<String> output = generated -> {
+        final String password = observer.apply(generated);
+        if (dedup == null || dedup.test(password)) {
+          try {
+            writer.write(password);
+            writer.write('\n');
+          } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+      };
+      Function<String, String> addLine = line -> {
+        documents.add(line, output);
+        return null;
+      };
+      Consumer<String> addPiece = piece -> documents.addPiece(piece, output);
+      if (progress != null) {
+        addLine = progress.wrap(addLine);
+        addPiece = progress.wrapPieces(addPiece);
+      }
+
+      final LineReader reader = new LineReader(inputStream, 0, longLines);
+      reader.setPieces(addPiece);
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        addLine.apply(line);
+      }
+      documents.endDocument(output);
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Applies a rule to each line of an input file, writing the passwords to one
+   * shard per length.
+   */
+  private static void generateSharded(final Function<String, String> rule,
+      final Consumer<String> pieces, final File input,
+      final ShardedWriter writer, final int minLength, final int maxLength,
+      final Predicate<String> dedup,
+      final LongLinePolicy longLines, final PasswordIndexBuilder sources)
+  throws IOException {
+    try (final LineReader reader =
+        new LineReader(new FileInputStream(input), 0, longLines)) {
+      reader.setPieces(pieces);
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        final String password = rule.apply(line);
+        final int length = PasswordGenerationRules.getPasswordLength(password);
+        if (length < minLength || length > maxLength) { continue; }
+        if (sources != null) {
+          sources.add(password, input.getPath(), reader.getLineOffset());
+        }
+        if (dedup == null || dedup.test(password)) {
+          writer.write(LENGTH_SHARD_PREFIX + length, password);
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies a rule to each line of an input file, sampling the passwords of
+   * each length.
+   * @return Map from password length to the sample
+   */
+  private static Map<Integer, Reservoir> sample(
+      final Function<String, String> rule, final Consumer<String> pieces,
+      final File input, final int sampleSize, final long seed,
+      final int minLength, final int maxLength, final Predicate<String> dedup,
+      final LongLinePolicy longLines, final PasswordIndexBuilder sources)
+  throws IOException {
+    final Map<Integer, Reservoir> samples = new TreeMap<>();
+    try (final LineReader reader =
+        new LineReader(new FileInputStream(input), 0, longLines)) {
+      reader.setPieces(pieces);
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        final String password = rule.apply(line);
+        final int length = PasswordGenerationRules.getPasswordLength(password);
+        if (length < minLength || length > maxLength) { continue; }
+        if (sources != null) {
+          sources.add(password, input.getPath(), reader.getLineOffset());
+        }
+        if (dedup == null || dedup.test(password)) {
+          Reservoir sample = samples.get(length);
+          if (sample == null) {
+            sample = new Reservoir(sampleSize, seed * 31 + length);
+            samples.put(length, sample);
+          }
+          sample.add(password);
+        }
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Applies a rule to each new or changed file in the input directory,
+   * writing to the output file of the same relative path and keeping track of
+   * processed files in a manifest.
+   * <p>
+   * The manifest is written every {@link #MANIFEST_WRITE_FILES} files or
+   * {@link #MANIFEST_WRITE_MILLIS} milliseconds and at the end. If a run is
+   * interrupted, the files processed since the last write are processed
+   * again by the next run, which replaces (or truncates and appends to) their
+   * outputs.
+   * </p>
+   */
+  private static void generateIncrementally(
+      final Function<String, String> rule, final Consumer<String> pieces,
+      final String configuration, final File inputDirectory,
+      final File outputDirectory,
+      final LongLinePolicy longLines)
+  throws IOException {
+    if (!inputDirectory.isDirectory()) {
+      throw new IOException("Not a directory: " + inputDirectory);
+    }
+    outputDirectory.mkdirs();
+    final File manifestFile = new File(outputDirectory, MANIFEST_NAME);
+    Manifest manifest = Manifest.read(manifestFile);
+
+    final Map<String, File> inputs = Manifest.listFiles(inputDirectory);
+    int numRemoved = 0;
+    int numUnchanged = 0;
+    int numAppended = 0;
+    int numProcessed = 0;
+    int numUnwritten = 0;
+    long lastWrite = System.currentTimeMillis();
+    try {
+      // remove outputs of removed inputs before the manifest may be replaced
+      if (manifest != null) {
+        for (final String path : new ArrayList<>(manifest.getPaths())) {
+          if (!inputs.containsKey(path)) {
+            Files.deleteIfExists(new File(outputDirectory, path).toPath());
+            manifest.remove(path);
+            ++numUnwritten;
+            ++numRemoved;
+          }
+        }
+      }
+      if (manifest == null
+          || !manifest.getConfiguration().equals(configuration)) {
+        manifest = new Manifest(configuration);
+        ++numUnwritten;
+      }
+
+      for (final Map.Entry<String, File> entry : inputs.entrySet()) {
+        final String path = entry.getKey();
+        final File input = entry.getValue();
+        final File output = new File(outputDirectory, path);
+        final long size = input.length();
+        final long lastModified = input.lastModified();
+        final Manifest.Entry old = manifest.get(path);
+        final boolean outputIntact =
+            old != null && output.length() == old.getOutputSize();
+        if (outputIntact
+            && old.getSize() == size && old.getLastModified() == lastModified) {
+          ++numUnchanged;
+          continue;
+        }
+
+        final String[] hashes =
+            Manifest.hash(input, old == null ? 0 : old.getSize(), size);
+        final long outputSize;
+        if (outputIntact && hashes[1].equals(old.getHash())) {
+          outputSize = old.getOutputSize();
+          ++numUnchanged;
+        } else if (old != null && old.getSize() > 0
+            && old.getHash().equals(hashes[0])
+            && output.length() >= old.getOutputSize()
+            && PasswordGenerationRules.endsWithLineFeed(input, old.getSize())) {
+          outputSize = PasswordGenerationRules.generatePartition(
+              rule, pieces, input, old.getSize(), size, output,
+              old.getOutputSize(), longLines);
+          ++numAppended;
+        } else {
+          outputSize = PasswordGenerationRules.generatePartition(
+              rule, pieces, input, 0, size, output, -1, longLines);
+          ++numProcessed;
+        }
+        manifest.put(path,
+            new Manifest.Entry(size, lastModified, hashes[1], outputSize));
+        final long now = System.currentTimeMillis();
+        if (++numUnwritten >= MANIFEST_WRITE_FILES
+            || now - lastWrite >= MANIFEST_WRITE_MILLIS) {
+          manifest.write(manifestFile);
+          numUnwritten = 0;
+          lastWrite = now;
+        }
+      }
+    } finally {
+      if (numUnwritten > 0) {
+        manifest.write(manifestFile);
+      }
+    }
+    System.err.println("Processed " + numProcessed + " new or changed files, "
+        + numAppended + " appended files, skipped " + numUnchanged
+        + " unchanged files, removed " + numRemoved + " outputs");
+  }
+
+  /**
+   * Applies a rule to the lines of an input file from given offset up to
+   * given size, ignoring bytes appended since the size was taken (the next
+   * run appends them). If the output offset is negative, the output file is
+   * replaced. Otherwise it is truncated to the offset and appended to.
+   * @return The size of the output file
+   */
+  private static long generatePartition(final Function<String, String> rule,
+      final Consumer<String> pieces, final File input, final long inputOffset,
+      final long inputSize, final File output, final long outputOffset,
+      final LongLinePolicy longLines)
+  throws IOException {
+    output.getAbsoluteFile().getParentFile().mkdirs();
+    final boolean append = outputOffset >= 0;
+    final File target =
+        append ? output : new File(output.getPath() + TEMPORARY_SUFFIX);
+    try (final FileInputStream inputStream = new FileInputStream(input);
+        final FileOutputStream outputStream =
+            new FileOutputStream(target, append)) {
+      if (append) {
+        outputStream.getChannel().truncate(outputOffset);
+      }
+      inputStream.getChannel().position(inputOffset);
+      final Writer writer = new BufferedWriter(
+          new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+      final LineReader reader = new LineReader(
+          new BoundedInputStream(inputStream, inputSize - inputOffset),
+          inputOffset, longLines);
+      reader.setPieces(pieces);
+      PasswordGenerationRules.generate(rule, reader, writer);
+      writer.flush();
+    }
+    if (!append) {
+      Files.move(target.toPath(), output.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    return output.length();
+  }
+
+  /**
+   * Applies a rule to each line of a reader and writes one output per line.
+   * @return The number of lines
+   */
+  private static long generate(final Function<String, String> rule,
+      final LineReader reader, final Writer writer)
+  throws IOException {
+    long lines = 0;
+    String line = null;
+    while ((line = reader.readLine()) != null) {
+      writer.write(rule.apply(line));
+      writer.write('\n');
+      ++lines;
+    }
+    return lines;
+  }
+
+  private static boolean endsWithLineFeed(final File file, final long size)
+  throws IOException {
+    try (final RandomAccessFile reader = new RandomAccessFile(file, "r")) {
+      reader.seek(size - 1);
+      return reader.read() == '\n';
+    }
+  }
+
+  private static String getOptionValue(final String[] args, final int a)
+  throws IllegalArgumentException {
+    if (a + 1 >= args.length) {
+      throw new IllegalArgumentException("Missing value for " + args[a]);
     }
+    return args[a + 1];
   }
 
 }
@@ -0,0 +1,539 @@
+package de.aitools.aq.passwords;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.aitools.aq.passwords.util.LatencyHistogram;
+
+/**
+ * An embedded HTTP server for applying {@link PasswordGenerationRules}. Uses
+ * the HTTP server of the JDK and binds to the loopback interface only.
+ * <p>
+ * Endpoints (the rule is configured by the query parameters
+ * <tt>charset</tt>, <tt>replacement</tt>, <tt>word</tt>, <tt>position</tt>,
+ * and optionally <tt>spaces</tt>, see
+ * {@link PasswordGenerationRules#printParametersHelp(PrintStream)}):
+ * </p><ul>
+ * <li><tt>GET /generate?mnemonic=...</tt>: The password for one mnemonic.
+ * Concurrent requests are collected into micro-batches.</li>
+ * <li><tt>POST /batch</tt>: The passwords for a request body with one mnemonic
+ * per line, one password per line.</li>
+ * <li><tt>GET /steps?mnemonic=...</tt>: The output of
+ * {@link PasswordGenerationRules#applyInSteps(String, String, String, String, String)},
+ * one step per line.</li>
+ * <li><tt>GET /metrics</tt>: Latency and throughput metrics as JSON.</li>
+ * </ul><p>
+ * Compiled rules are cached per configuration.
+ * </p>
+ *
+ * Run without arguments to get the usage message.
+ *
+ * @author agent@local
+ */
+public class PasswordGenerationServer {
+
+  public static final String PARAMETER_MNEMONIC = "mnemonic";
+
+  public static final String PARAMETER_CHARSET = "charset";
+
+  public static final String PARAMETER_REPLACEMENT = "replacement";
+
+  public static final String PARAMETER_WORD = "word";
+
+  public static final String PARAMETER_POSITION = "position";
+
+  public static final String PARAMETER_SPACES = "spaces";
+
+  private static final String CONTENT_TYPE_TEXT = "text/plain; charset=utf-8";
+
+  private static final String CONTENT_TYPE_JSON =
+      "application/json; charset=utf-8";
+
+  private static final String[] ENDPOINTS = {
+    "/generate", "/batch", "/steps"
+  };
+
+  private final HttpServer server;
+
+  private final ExecutorService handlerExecutor;
+
+  private final ExecutorService batchExecutor;
+
+  private final MicroBatcher batcher;
+
+  private final Map<String, StagedRule> rules;
+
+  private final Map<String, LatencyHistogram> latencies;
+
+  private final AtomicLong processedMnemonics;
+
+  private final AtomicLong failedRequests;
+
+  private final long startTime;
+
+  /**
+   * Creates a new server that is not yet started.
+   * @param port The port to bind to on the loopback interface
+   * @param numThreads The number of threads for handling requests and for
+   * processing micro-batches, respectively
+   * @param maxBatchSize The maximum number of mnemonics of single
+   * <tt>/generate</tt> requests that are processed together
+   * @param maxBatchDelayMillis The maximum time in milliseconds to wait for
+   * filling a micro-batch
+   * @throws IOException If the port can not be bound
+   * @throws IllegalArgumentException If one of the numbers is not positive
+   * (or negative for the delay)
+   */
+  public PasswordGenerationServer(final int port, final int numThreads,
+      final int maxBatchSize, final long maxBatchDelayMillis)
+  throws IOException, IllegalArgumentException {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Non-positive threads: " + numThreads);
+    }
+    this.server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    this.handlerExecutor = Executors.newFixedThreadPool(numThreads);
+    this.batchExecutor = Executors.newFixedThreadPool(numThreads);
+    this.batcher = new MicroBatcher(
+        this.batchExecutor, maxBatchSize, maxBatchDelayMillis);
+    this.rules = new ConcurrentHashMap<>();
+    this.latencies = new HashMap<>();
+    for (final String endpoint : ENDPOINTS) {
+      this.latencies.put(endpoint, new LatencyHistogram());
+    }
+    this.processedMnemonics = new AtomicLong();
+    this.failedRequests = new AtomicLong();
+    this.startTime = System.nanoTime();
+
+    this.server.setExecutor(this.handlerExecutor);
+    this.server.createContext("/generate",
+        this.timed("/generate", this::handleGenerate));
+    this.server.createContext("/batch",
+        this.timed("/batch", this::handleBatch));
+    this.server.createContext("/steps",
+        this.timed("/steps", this::handleSteps));
+    this.server.createContext("/metrics", this::handleMetrics);
+  }
+
+  /**
+   * Starts the server in background threads.
+   */
+  public void start() {
+    this.batcher.start();
+    this.server.start();
+  }
+
+  /**
+   * Stops the server, waiting at most given number of seconds for running
+   * requests.
+   * @param delaySeconds The maximum time to wait
+   */
+  public void stop(final int delaySeconds) {
+    this.server.stop(delaySeconds);
+    this.batcher.interrupt();
+    this.handlerExecutor.shutdown();
+    this.batchExecutor.shutdown();
+  }
+
+  /**
+   * @return The port the server is bound to
+   */
+  public int getPort() {
+    return this.server.getAddress().getPort();
+  }
+
+  /**
+   * Gets the rule for the configuration in given query parameters, creating
+   * and caching it if necessary.
+   */
+  private StagedRule getRule(final Map<String, String> parameters)
+  throws IllegalArgumentException {
+    final String[] args = PasswordGenerationServer.getRuleArgs(parameters);
+    final String key = String.join(" ", args);
+    StagedRule rule = this.rules.get(key);
+    if (rule == null) {
+      rule = StagedRule.create(args, 0);
+      this.rules.putIfAbsent(key, rule);
+    }
+    return rule;
+  }
+
+  private void handleGenerate(final HttpExchange exchange)
+  throws IOException, IllegalArgumentException {
+    final Map<String, String> parameters =
+        PasswordGenerationServer.getParameters(exchange);
+    final String mnemonic = PasswordGenerationServer.getRequired(
+        parameters, PARAMETER_MNEMONIC);
+    final Function<String, String> rule = this.getRule(parameters);
+    try {
+      final String password = this.batcher.submit(rule, mnemonic).get();
+      this.processedMnemonics.incrementAndGet();
+      PasswordGenerationServer.respond(
+          exchange, 200, CONTENT_TYPE_TEXT, password + "\n");
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (final ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private void handleBatch(final HttpExchange exchange)
+  throws IOException, IllegalArgumentException {
+    if (!"POST".equals(exchange.getRequestMethod())) {
+      throw new IllegalArgumentException("Use POST for /batch");
+    }
+    final Function<String, String> rule =
+        this.getRule(PasswordGenerationServer.getParameters(exchange));
+    final StringBuilder output = new StringBuilder();
+    long numMnemonics = 0;
+    try (final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(
+            exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+      String mnemonic = null;
+      while ((mnemonic = reader.readLine()) != null) {
+        output.append(rule.apply(mnemonic)).append('\n');
+        ++numMnemonics;
+      }
+    }
+    this.processedMnemonics.addAndGet(numMnemonics);
+    PasswordGenerationServer.respond(
+        exchange, 200, CONTENT_TYPE_TEXT, output.toString());
+  }
+
+  private void handleSteps(final HttpExchange exchange)
+  throws IOException, IllegalArgumentException {
+    final Map<String, String> parameters =
+        PasswordGenerationServer.getParameters(exchange);
+    final String mnemonic = PasswordGenerationServer.getRequired(
+        parameters, PARAMETER_MNEMONIC);
+    final List<String> steps =
+        this.getRule(parameters).trace(mnemonic).getSteps();
+    final StringBuilder output = new StringBuilder();
+    for (final String step : steps) {
+      output.append(step).append('\n');
+    }
+    this.processedMnemonics.incrementAndGet();
+    PasswordGenerationServer.respond(
+        exchange, 200, CONTENT_TYPE_TEXT, output.toString());
+  }
+
+  private void handleMetrics(final HttpExchange exchange) throws IOException {
+    PasswordGenerationServer.respond(
+        exchange, 200, CONTENT_TYPE_JSON, this.getMetrics());
+  }
+
+  /**
+   * @return The current metrics of this server as JSON
+   */
+  public String getMetrics() {
+    final double uptimeSeconds = (System.nanoTime() - this.startTime) / 1e9;
+    final long processed = this.processedMnemonics.get();
+    final StringBuilder json = new StringBuilder();
+    json.append("{\"uptime_s\":").append(String.format(
+        Locale.ROOT, "%.3f", uptimeSeconds));
+    json.append(",\"mnemonics\":").append(processed);
+    json.append(",\"mnemonics_per_s\":").append(String.format(
+        Locale.ROOT, "%.3f", processed / uptimeSeconds));
+    json.append(",\"failed_requests\":").append(this.failedRequests.get());
+    json.append(",\"cached_rules\":").append(this.rules.size());
+    json.append(",\"batches\":").append(this.batcher.getNumBatches());
+    json.append(",\"mean_batch_size\":").append(String.format(
+        Locale.ROOT, "%.3f", this.batcher.getMeanBatchSize()));
+    json.append(",\"latency\":{");
+    boolean first = true;
+    for (final String endpoint : ENDPOINTS) {
+      if (!first) { json.append(','); }
+      json.append('"').append(endpoint).append("\":")
+        .append(this.latencies.get(endpoint).toJson());
+      first = false;
+    }
+    json.append("}}\n");
+    return json.toString();
+  }
+
+  /**
+   * Wraps a handler so that its latency is recorded and errors are answered
+   * with an error status.
+   */
+  private HttpHandler timed(final String endpoint, final Handler handler) {
+    final LatencyHistogram latency = this.latencies.get(endpoint);
+    return exchange -> {
+      final long start = System.nanoTime();
+      try {
+        handler.handle(exchange);
+      } catch (final IllegalArgumentException | NullPointerException e) {
+        this.failedRequests.incrementAndGet();
+        PasswordGenerationServer.respond(exchange, 400, CONTENT_TYPE_TEXT,
+            String.valueOf(e.getMessage()) + "\n");
+      } catch (final IOException | RuntimeException e) {
+        this.failedRequests.incrementAndGet();
+        PasswordGenerationServer.respond(exchange, 500, CONTENT_TYPE_TEXT,
+            String.valueOf(e.getMessage()) + "\n");
+      } finally {
+        exchange.close();
+        latency.record(System.nanoTime() - start);
+      }
+    };
+  }
+
+  private static String[] getRuleArgs(final Map<String, String> parameters)
+  throws IllegalArgumentException {
+    final String spaces = parameters.get(PARAMETER_SPACES);
+    final List<String> args = new ArrayList<>(5);
+    args.add(PasswordGenerationServer.getRequired(
+        parameters, PARAMETER_CHARSET));
+    args.add(PasswordGenerationServer.getRequired(
+        parameters, PARAMETER_REPLACEMENT));
+    args.add(PasswordGenerationServer.getRequired(
+        parameters, PARAMETER_WORD));
+    args.add(PasswordGenerationServer.getRequired(
+        parameters, PARAMETER_POSITION));
+    if (spaces != null) {
+      args.add(spaces);
+    }
+    return args.toArray(new String[args.size()]);
+  }
+
+  private static String getRequired(
+      final Map<String, String> parameters, final String name)
+  throws IllegalArgumentException {
+    final String value = parameters.get(name);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing parameter: " + name);
+    }
+    return value;
+  }
+
+  private static Map<String, String> getParameters(
+      final HttpExchange exchange)
+  throws UnsupportedEncodingException {
+    final Map<String, String> parameters = new HashMap<>();
+    final String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (final String parameter : query.split("&")) {
+        final int equals = parameter.indexOf('=');
+        if (equals > 0) {
+          parameters.put(
+              URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+              URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+      }
+    }
+    return parameters;
+  }
+
+  private static void respond(final HttpExchange exchange, final int status,
+      final String contentType, final String body)
+  throws IOException {
+    final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (final OutputStream output = exchange.getResponseBody()) {
+      output.write(bytes);
+    }
+  }
+
+  public static void printHelp(final PrintStream out) {
+    out.println("Usage:");
+    out.println("  <port> [<threads> [<max-batch-size> [<max-batch-delay>]]]");
+    out.println("Where:");
+    out.println("  <port>");
+    out.println("    Port on the loopback interface to listen on.");
+    out.println("  <threads>");
+    out.println("    Number of request and of processing threads (default:");
+    out.println("    number of processors).");
+    out.println("  <max-batch-size>");
+    out.println("    Maximum number of concurrent /generate requests that");
+    out.println("    are processed together (default: 64).");
+    out.println("  <max-batch-delay>");
+    out.println("    Maximum milliseconds to wait for filling a batch");
+    out.println("    (default: 1).");
+    out.println("Endpoints:");
+    out.println("  GET  /generate?mnemonic=...&<rule>");
+    out.println("  POST /batch?<rule> with one mnemonic per line");
+    out.println("  GET  /steps?mnemonic=...&<rule>");
+    out.println("  GET  /metrics");
+    out.println("  Where <rule> is " + PARAMETER_CHARSET + "=...&"
+        + PARAMETER_REPLACEMENT + "=...&" + PARAMETER_WORD + "=...&"
+        + PARAMETER_POSITION + "=...[&" + PARAMETER_SPACES + "=...]");
+    out.println("  using the following parameters:");
+    PasswordGenerationRules.printParametersHelp(out);
+  }
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 1 || args.length > 4) {
+      printHelp(System.err);
+      System.exit(1);
+    }
+
+    PasswordGenerationServer server = null;
+    try {
+      final int port = Integer.parseInt(args[0]);
+      final int numThreads = args.length > 1
+          ? Integer.parseInt(args[1])
+          : Runtime.getRuntime().availableProcessors();
+      final int maxBatchSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+      final long maxBatchDelay = args.length > 3 ? Long.parseLong(args[3]) : 1;
+      server = new PasswordGenerationServer(
+          port, numThreads, maxBatchSize, maxBatchDelay);
+    } catch (final IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      printHelp(System.err);
+      System.exit(1);
+    }
+
+    final PasswordGenerationServer runningServer = server;
+    Runtime.getRuntime().addShutdownHook(
+        new Thread(() -> runningServer.stop(1)));
+    server.start();
+    System.err.println("Listening on http://localhost:" + server.getPort());
+  }
+
+  /**
+   * Like {@link HttpHandler}, but allowed to throw illegal arguments.
+   */
+  private interface Handler {
+
+    void handle(final HttpExchange exchange)
+    throws IOException, IllegalArgumentException;
+
+  }
+
+  /**
+   * Thread that collects single mnemonics into batches and submits each batch
+   * as one task to an executor.
+   */
+  private static class MicroBatcher extends Thread {
+
+    private final ExecutorService executor;
+
+    private final BlockingQueue<Item> queue;
+
+    private final int maxBatchSize;
+
+    private final long maxBatchDelayNanos;
+
+    private final AtomicLong numBatches;
+
+    private final AtomicLong numItems;
+
+    public MicroBatcher(final ExecutorService executor,
+        final int maxBatchSize, final long maxBatchDelayMillis)
+    throws IllegalArgumentException {
+      super("password-generation-micro-batcher");
+      if (maxBatchSize < 1) {
+        throw new IllegalArgumentException(
+            "Non-positive batch size: " + maxBatchSize);
+      }
+      if (maxBatchDelayMillis < 0) {
+        throw new IllegalArgumentException(
+            "Negative batch delay: " + maxBatchDelayMillis);
+      }
+      this.setDaemon(true);
+      this.executor = executor;
+      this.queue = new LinkedBlockingQueue<>();
+      this.maxBatchSize = maxBatchSize;
+      this.maxBatchDelayNanos =
+          TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+      this.numBatches = new AtomicLong();
+      this.numItems = new AtomicLong();
+    }
+
+    public CompletableFuture<String> submit(
+        final Function<String, String> rule, final String mnemonic) {
+      final Item item = new Item(rule, mnemonic);
+      this.queue.add(item);
+      return item.result;
+    }
+
+    public long getNumBatches() {
+      return this.numBatches.get();
+    }
+
+    public double getMeanBatchSize() {
+      final long batches = this.numBatches.get();
+      return batches == 0 ? 0 : this.numItems.get() / (double) batches;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!this.isInterrupted()) {
+          final List<Item> batch = new ArrayList<>(this.maxBatchSize);
+          batch.add(this.queue.take());
+          final long deadline = System.nanoTime() + this.maxBatchDelayNanos;
+          while (batch.size() < this.maxBatchSize) {
+            final long remaining = deadline - System.nanoTime();
+            final Item item = remaining <= 0
+                ? this.queue.poll()
+                : this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (item == null) { break; }
+            batch.add(item);
+          }
+          this.numBatches.incrementAndGet();
+          this.numItems.addAndGet(batch.size());
+          this.executor.execute(() -> MicroBatcher.process(batch));
+        }
+      } catch (final InterruptedException e) {
+        // Stopped
+      }
+    }
+
+    private static void process(final List<Item> batch) {
+      for (final Item item : batch) {
+        try {
+          item.result.complete(item.rule.apply(item.mnemonic));
+        } catch (final RuntimeException e) {
+          item.result.completeExceptionally(e);
+        }
+      }
+    }
+
+    private static class Item {
+
+      private final Function<String, String> rule;
+
+      private final String mnemonic;
+
+      private final CompletableFuture<String> result;
+
+      public Item(
+          final Function<String, String> rule, final String mnemonic) {
+        this.rule = rule;
+        this.mnemonic = mnemonic;
+        this.result = new CompletableFuture<>();
+      }
+
+    }
+
+  }
+
+}
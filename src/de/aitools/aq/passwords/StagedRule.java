@@ -0,0 +1,537 @@
+package de.aitools.aq.passwords;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import de.aitools.aq.passwords.rules.CharacterIndicesFilter;
+import de.aitools.aq.passwords.rules.CharacterSets;
+import de.aitools.aq.passwords.rules.EveryNthTokenFilter;
+import de.aitools.aq.passwords.rules.TokenReplacements;
+import de.aitools.aq.passwords.rules.Tokenizer;
+import de.aitools.aq.passwords.util.ApplyOnList;
+import de.aitools.aq.passwords.util.Parameters;
+
+/**
+ * A password generation rule (see
+ * {@link PasswordGenerationRules#create(String, String, String, String, boolean)})
+ * that keeps its stages separately, so that the intermediate states of the
+ * input can be traced.
+ * <p>
+ * The stages are created once, so one instance can trace an entire corpus.
+ * </p><p>
+ * Long inputs are processed in chunks of about {@link #CHUNK_SIZE}
+ * characters, so that the memory for the intermediate token lists stays
+ * bounded. Chunks are cut only after a space that is followed by a visible
+ * US-ASCII character. Neither the conversion nor the tokenization combine
+ * characters across such a position, so the result is the same as for
+ * processing the input at once. If there is no such position within another
+ * {@link #CHUNK_SIZE} characters (e.g., for text without spaces), the chunk
+ * is cut after twice that many characters, but not within a surrogate pair.
+ * A token may then be split into two tokens.
+ * </p><p>
+ * Inputs that are too long to be kept in memory at once can be passed in
+ * pieces (see {@link #addPiece(String)}), which are processed in chunks like
+ * one long input. An instance must then be used by one thread at a time.
+ * </p><p>
+ * If only passwords of some lengths are needed, use
+ * {@link #applyInLengthRange(String, int, int)}, which skips the later
+ * stages for inputs whose password can not have such a length.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class StagedRule implements Function<String, String> {
+
+  /**
+   * Names of the columns of {@link Trace#toTsv()}.
+   */
+  public static final List<String> TRACE_COLUMNS =
+      Collections.unmodifiableList(Arrays.asList(
+          "input", "normalized", "tokenized", "replaced", "filtered",
+          "password"));
+
+  /**
+   * The number of characters above which inputs are processed in chunks.
+   */
+  public static final int CHUNK_SIZE = 1 << 16;
+
+  private final Function<String, String> converter;
+
+  private final Function<String, List<String>> tokenizer;
+
+  private final Function<List<String>, List<String>> replacer;
+
+  private final Function<String, String> tokenReplacer;
+
+  private final Function<List<String>, List<String>> tokenFilter;
+
+  private final int everyNthToken;
+
+  private final CharacterIndicesFilter tokenCharacterFilter;
+
+  private final Function<List<String>, List<String>> characterFilter;
+
+  private final boolean addSpacesBetweenCharacters;
+
+  /**
+   * Whether the number of selected characters of the replaced tokens is the
+   * password length (no empty tokens or whitespace after replacement).
+   */
+  private final boolean exactLengths;
+
+  /**
+   * The state of the input whose pieces are passed, or <tt>null</tt>.
+   */
+  private Chunks pieces;
+
+  /**
+   * Creates a new rule.
+   * @param charset Configuration parameter for the character set (see
+   * {@link CharacterSets#getConverter(String)})
+   * @param replacement Configuration parameter for the token replacements (see
+   * {@link TokenReplacements#getListReplacer(String)})
+   * @param nthToken Configuration parameter for selecting the nth token for the
+   * password (see {@link EveryNthTokenFilter#create(String)})
+   * @param charIndices Configuration parameter for selecting the characters of
+   * each token for the password (see
+   * {@link CharacterIndicesFilter#create(String, boolean, boolean)},
+   * outputDuplicates and roundRobin are false for this version)
+   * @param addSpacesBetweenCharacters If spaces should be added between the
+   * password characters at the end (as needed for n-gram counting)
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value
+   */
+  public StagedRule(
+      final String charset,
+      final String replacement,
+      final String nthToken,
+      final String charIndices,
+      final boolean addSpacesBetweenCharacters)
+  throws NullPointerException, IllegalArgumentException {
+    this(charset, replacement, nthToken, charIndices,
+        addSpacesBetweenCharacters, true);
+  }
+
+  /**
+   * Creates a new rule.
+   * @param charset Configuration parameter for the character set (see
+   * {@link CharacterSets#getConverter(String)})
+   * @param replacement Configuration parameter for the token replacements (see
+   * {@link TokenReplacements#getListReplacer(String)})
+   * @param nthToken Configuration parameter for selecting the nth token for the
+   * password (see {@link EveryNthTokenFilter#create(String)})
+   * @param charIndices Configuration parameter for selecting the characters of
+   * each token for the password (see
+   * {@link CharacterIndicesFilter#create(String, boolean, boolean)},
+   * outputDuplicates and roundRobin are false for this version)
+   * @param addSpacesBetweenCharacters If spaces should be added between the
+   * password characters at the end (as needed for n-gram counting)
+   * @param convert Whether to convert the input to the character set, which
+   * can be skipped for input that is already converted
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value
+   */
+  public StagedRule(
+      final String charset,
+      final String replacement,
+      final String nthToken,
+      final String charIndices,
+      final boolean addSpacesBetweenCharacters,
+      final boolean convert)
+  throws NullPointerException, IllegalArgumentException {
+    final Function<String, String> converter =
+        CharacterSets.getConverter(charset);
+    this.converter = convert ? converter : Function.identity();
+    this.tokenizer = Tokenizer.forCharacterSet(charset);
+    this.replacer = TokenReplacements.getListReplacer(replacement);
+    this.tokenReplacer = TokenReplacements.getReplacer(replacement);
+    this.tokenFilter = EveryNthTokenFilter.create(nthToken);
+    this.everyNthToken = Parameters.selectionStringToInt(nthToken);
+    this.tokenCharacterFilter =
+        CharacterIndicesFilter.create(charIndices, false, false);
+    this.characterFilter = new ApplyOnList<>(this.tokenCharacterFilter);
+    this.addSpacesBetweenCharacters = addSpacesBetweenCharacters;
+    this.exactLengths =
+        TokenReplacements.keepsTokensWithoutWhitespace(replacement);
+    this.pieces = null;
+  }
+
+  /**
+   * Creates a new rule.
+   * @param args The parameters of
+   * {@link #StagedRule(String, String, String, String, boolean)}, starting at
+   * index start
+   * @param start The first index in args to treat as parameter
+   * @return The rule
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value, or the number of parameters is less than 4 or more than 5
+   */
+  public static StagedRule create(final String[] args, final int start)
+  throws NullPointerException, IllegalArgumentException {
+    return StagedRule.create(args, start, true);
+  }
+
+  /**
+   * Creates a new rule.
+   * @param args The parameters of
+   * {@link #StagedRule(String, String, String, String, boolean)}, starting at
+   * index start
+   * @param start The first index in args to treat as parameter
+   * @param convert Whether to convert the input to the character set, which
+   * can be skipped for input that is already converted
+   * @return The rule
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value, or the number of parameters is less than 4 or more than 5
+   */
+  public static StagedRule create(
+      final String[] args, final int start, final boolean convert)
+  throws NullPointerException, IllegalArgumentException {
+    final int numArgs = args.length - start;
+    if (numArgs < 4 || numArgs > 5) {
+      throw new IllegalArgumentException(
+          "Invalid number of arguments: " + numArgs);
+    }
+    return new StagedRule(args[start], args[start + 1], args[start + 2],
+        args[start + 3],
+        numArgs == 4 ? false : Boolean.parseBoolean(args[start + 4]),
+        convert);
+  }
+
+  /**
+   * Adds a piece of an input that is passed in pieces (e.g., by
+   * {@link de.aitools.aq.passwords.util.LineReader#setPieces(
+   * java.util.function.Consumer)}). The next call of {@link #apply(String)}
+   * or {@link #applyInLengthRange(String, int, int)} gets the last piece and
+   * returns the password of the entire input. Pieces should end where chunks
+   * end, so that the password is the same as for the entire input.
+   * @param piece The piece
+   */
+  public void addPiece(final String piece) {
+    if (this.pieces == null) {
+      this.pieces = new Chunks();
+    }
+    this.pieces.add(piece);
+  }
+
+  @Override
+  public String apply(final String mnemonic) {
+    if (this.pieces != null || mnemonic.length() > CHUNK_SIZE) {
+      return this.applyInChunks(mnemonic);
+    }
+    final List<String> tokens =
+        this.tokenizer.apply(this.converter.apply(mnemonic));
+    return PasswordGenerationRules.join(
+        this.characterFilter.apply(
+            this.tokenFilter.apply(this.replacer.apply(tokens))),
+        this.addSpacesBetweenCharacters);
+  }
+
+  /**
+   * Applies this rule to a string if the length of the password (see
+   * {@link PasswordGenerationRules#getPasswordLength(String)}) is within a
+   * range.
+   * <p>
+   * The number of characters that are selected from a token depends only on
+   * its length. Directly after the tokenization, the number of tokens bounds
+   * the password length. Then only the selected tokens are replaced and the
+   * password length is computed from their lengths. Characters are selected
+   * and joined only for passwords within the range.
+   * </p>
+   * @param mnemonic The string
+   * @param minLength The minimum password length
+   * @param maxLength The maximum password length
+   * @return The password, or <tt>null</tt> if its length is not within the
+   * range
+   */
+  public String applyInLengthRange(final String mnemonic,
+      final int minLength, final int maxLength) {
+    if (this.pieces != null || mnemonic.length() > CHUNK_SIZE) {
+      return StagedRule.filterLength(
+          this.applyInChunks(mnemonic), minLength, maxLength);
+    }
+
+    final List<String> tokens =
+        this.tokenizer.apply(this.converter.apply(mnemonic));
+    final int numTokens = tokens.size();
+    final long numSelected =
+        (numTokens + this.everyNthToken - 1) / this.everyNthToken;
+    if (numSelected * this.tokenCharacterFilter.getMaxNumCharacters()
+        < minLength) {
+      return null;
+    }
+    if (this.exactLengths
+        && numSelected * this.tokenCharacterFilter.getMinNumCharacters()
+        > maxLength) {
+      return null;
+    }
+
+    final List<String> selectedTokens = new ArrayList<>((int) numSelected);
+    long length = 0;
+    for (int t = 0; t < numTokens; t += this.everyNthToken) {
+      final String token = this.tokenReplacer.apply(tokens.get(t));
+      selectedTokens.add(token);
+      length += this.tokenCharacterFilter.getNumCharacters(token.length());
+    }
+    // whitespace in replacements is selected but not counted
+    if (length < minLength || (this.exactLengths && length > maxLength)) {
+      return null;
+    }
+
+    final String password = PasswordGenerationRules.join(
+        this.characterFilter.apply(selectedTokens),
+        this.addSpacesBetweenCharacters);
+    return this.exactLengths
+        ? password : StagedRule.filterLength(password, minLength, maxLength);
+  }
+
+  private static String filterLength(final String password,
+      final int minLength, final int maxLength) {
+    final int length = PasswordGenerationRules.getPasswordLength(password);
+    return length >= minLength && length <= maxLength ? password : null;
+  }
+
+  /**
+   * Applies this rule to the last piece of the passed pieces, or to a long
+   * input.
+   */
+  private String applyInChunks(final String mnemonic) {
+    final Chunks chunks = this.pieces == null ? new Chunks() : this.pieces;
+    this.pieces = null;
+    chunks.add(mnemonic);
+    return chunks.getPassword();
+  }
+
+  private static int getChunkEnd(final String mnemonic, final int minEnd) {
+    final int length = mnemonic.length();
+    final int maxEnd = (int) Math.min(length, (long) minEnd + CHUNK_SIZE);
+    for (int end = minEnd; end < maxEnd; ++end) {
+      final char next = mnemonic.charAt(end);
+      if (mnemonic.charAt(end - 1) == ' ' && next > ' ' && next < 0x7F) {
+        return end;
+      }
+    }
+    if (maxEnd < length && Character.isLowSurrogate(mnemonic.charAt(maxEnd))
+        && Character.isHighSurrogate(mnemonic.charAt(maxEnd - 1))) {
+      return maxEnd - 1;
+    }
+    return maxEnd;
+  }
+
+  /**
+   * The selected characters of the tokens of an input that is processed in
+   * chunks, counting the tokens across chunks for the nth-token filter.
+   */
+  private final class Chunks {
+
+    private final StringBuilder characters;
+
+    private long numTokens;
+
+    private Chunks() {
+      this.characters = new StringBuilder();
+      this.numTokens = 0;
+    }
+
+    /**
+     * Processes the next part of the input in chunks.
+     */
+    private void add(final String mnemonic) {
+      final int length = mnemonic.length();
+      int start = 0;
+      while (start < length) {
+        final int end = StagedRule.getChunkEnd(mnemonic, start + CHUNK_SIZE);
+        final List<String> tokens = StagedRule.this.replacer.apply(
+            StagedRule.this.tokenizer.apply(StagedRule.this.converter.apply(
+                mnemonic.substring(start, end))));
+        for (final String token : tokens) {
+          if (this.numTokens % StagedRule.this.everyNthToken == 0) {
+            this.characters.append(
+                StagedRule.this.tokenCharacterFilter.apply(token));
+          }
+          ++this.numTokens;
+        }
+        start = end;
+      }
+    }
+
+    private String getPassword() {
+      return PasswordGenerationRules.join(
+          Collections.singletonList(this.characters.toString()),
+          StagedRule.this.addSpacesBetweenCharacters);
+    }
+
+  }
+
+  /**
+   * Converts a string to the character set, tokenizes it, and replaces the
+   * tokens, which are the stages that do not depend on the token and
+   * character selection. Long strings are processed in chunks like by
+   * {@link #apply(String)}.
+   * @param mnemonic The string
+   * @return The replaced tokens
+   */
+  public List<String> getReplacedTokens(final String mnemonic) {
+    final int length = mnemonic.length();
+    if (length <= CHUNK_SIZE) {
+      return this.replacer.apply(
+          this.tokenizer.apply(this.converter.apply(mnemonic)));
+    }
+    final List<String> tokens = new ArrayList<>();
+    int start = 0;
+    while (start < length) {
+      final int end = StagedRule.getChunkEnd(mnemonic, start + CHUNK_SIZE);
+      tokens.addAll(this.replacer.apply(this.tokenizer.apply(
+          this.converter.apply(mnemonic.substring(start, end)))));
+      start = end;
+    }
+    return tokens;
+  }
+
+  /**
+   * Applies this rule to a string and keeps the state after each stage.
+   * @param mnemonic The string
+   * @return The trace
+   */
+  public Trace trace(final String mnemonic) {
+    final String normalized = this.converter.apply(mnemonic);
+    final List<String> tokens = this.tokenizer.apply(normalized);
+    final List<String> replacedTokens = this.replacer.apply(tokens);
+    final List<String> filteredTokens = this.tokenFilter.apply(replacedTokens);
+    final List<String> characters = this.characterFilter.apply(filteredTokens);
+    return new Trace(mnemonic, normalized, tokens, replacedTokens,
+        filteredTokens, characters, this.addSpacesBetweenCharacters);
+  }
+
+  /**
+   * The states of one string after each stage of a rule.
+   */
+  public static class Trace {
+
+    private final String input;
+
+    private final String normalized;
+
+    private final List<String> tokens;
+
+    private final List<String> replacedTokens;
+
+    private final List<String> filteredTokens;
+
+    private final List<String> characters;
+
+    private final boolean addSpacesBetweenCharacters;
+
+    private Trace(final String input, final String normalized,
+        final List<String> tokens, final List<String> replacedTokens,
+        final List<String> filteredTokens, final List<String> characters,
+        final boolean addSpacesBetweenCharacters) {
+      this.input = input;
+      this.normalized = normalized;
+      this.tokens = tokens;
+      this.replacedTokens = replacedTokens;
+      this.filteredTokens = filteredTokens;
+      this.characters = characters;
+      this.addSpacesBetweenCharacters = addSpacesBetweenCharacters;
+    }
+
+    public String getInput() {
+      return this.input;
+    }
+
+    /**
+     * @return The input converted to the character set
+     */
+    public String getNormalized() {
+      return this.normalized;
+    }
+
+    public List<String> getTokens() {
+      return Collections.unmodifiableList(this.tokens);
+    }
+
+    public List<String> getReplacedTokens() {
+      return Collections.unmodifiableList(this.replacedTokens);
+    }
+
+    public List<String> getFilteredTokens() {
+      return Collections.unmodifiableList(this.filteredTokens);
+    }
+
+    /**
+     * @return The selected characters of each filtered token
+     */
+    public List<String> getCharacters() {
+      return Collections.unmodifiableList(this.characters);
+    }
+
+    public String getPassword() {
+      return PasswordGenerationRules.join(
+          this.characters, this.addSpacesBetweenCharacters);
+    }
+
+    /**
+     * @return The steps as returned by
+     * {@link PasswordGenerationRules#applyInSteps(String, String, String, String, String)}
+     */
+    public List<String> getSteps() {
+      final List<String> steps = new ArrayList<>(4);
+      steps.add(PasswordGenerationRules.joinSpacesBetweenTokens(this.tokens));
+      steps.add(PasswordGenerationRules.joinSpacesBetweenTokens(
+          this.replacedTokens));
+      steps.add(PasswordGenerationRules.joinSpacesBetweenTokens(
+          this.filteredTokens));
+      steps.add(PasswordGenerationRules.join(this.characters, false));
+      return steps;
+    }
+
+    /**
+     * Formats this trace as one line of tab-separated values with the
+     * {@link StagedRule#TRACE_COLUMNS}. Tokens are separated by spaces. Tabs,
+     * line breaks, and backslashes in the values are escaped as <tt>\t</tt>,
+     * <tt>\n</tt>, <tt>\r</tt>, and <tt>\\</tt>.
+     * @return The line (without terminator)
+     */
+    public String toTsv() {
+      final StringBuilder tsv = new StringBuilder();
+      Trace.appendEscaped(tsv, this.input);
+      tsv.append('\t');
+      Trace.appendEscaped(tsv, this.normalized);
+      tsv.append('\t');
+      Trace.appendEscaped(tsv,
+          PasswordGenerationRules.joinSpacesBetweenTokens(this.tokens));
+      tsv.append('\t');
+      Trace.appendEscaped(tsv,
+          PasswordGenerationRules.joinSpacesBetweenTokens(this.replacedTokens));
+      tsv.append('\t');
+      Trace.appendEscaped(tsv,
+          PasswordGenerationRules.joinSpacesBetweenTokens(this.filteredTokens));
+      tsv.append('\t');
+      Trace.appendEscaped(tsv, this.getPassword());
+      return tsv.toString();
+    }
+
+    private static void appendEscaped(
+        final StringBuilder tsv, final String value) {
+      final int numChars = value.length();
+      for (int i = 0; i < numChars; ++i) {
+        final char c = value.charAt(i);
+        switch (c) {
+        case '\t': tsv.append("\\t"); break;
+        case '\n': tsv.append("\\n"); break;
+        case '\r': tsv.append("\\r"); break;
+        case '\\': tsv.append("\\\\"); break;
+        default: tsv.append(c); break;
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,385 @@
+package de.aitools.aq.passwords.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.util.ToolRunner;
+
+import de.aitools.aq.passwords.HadoopPasswordGenerationRules;
+import de.aitools.aq.passwords.PasswordGenerationRules;
+
+/**
+ * End-to-end throughput benchmark of {@link PasswordGenerationRules} and
+ * {@link HadoopPasswordGenerationRules} (in the Hadoop local job runner) on a
+ * synthetic corpus from {@link CorpusGenerator}.
+ * <p>
+ * Each rule configuration is run several times after a warm-up run and the
+ * fastest run is reported, which includes reading and writing the files and
+ * the framework overhead. The results can be stored as baseline and later
+ * runs are compared against it: a throughput below the baseline by more than
+ * the tolerance is reported as regression and the program exits with status
+ * 2.
+ * </p>
+ *
+ * Run without arguments to get the usage message.
+ *
+ * @author agent@local
+ */
+public class Benchmark {
+
+  public static final String OPTION_LINES = "--lines";
+
+  public static final String OPTION_SEED = CorpusGenerator.OPTION_SEED;
+
+  public static final String OPTION_LANGUAGES = CorpusGenerator.OPTION_LANGUAGES;
+
+  public static final String OPTION_WORDS = CorpusGenerator.OPTION_WORDS;
+
+  public static final String OPTION_CONFIGURATION = "--configuration";
+
+  public static final String OPTION_REPETITIONS = "--repetitions";
+
+  public static final String OPTION_HADOOP = "--hadoop";
+
+  public static final String OPTION_BASELINE = "--baseline";
+
+  public static final String OPTION_UPDATE_BASELINE = "--update-baseline";
+
+  public static final String OPTION_TOLERANCE = "--tolerance";
+
+  public static final String TARGET_CLI = "cli";
+
+  public static final String TARGET_HADOOP = "hadoop";
+
+  public static final String[] DEFAULT_CONFIGURATIONS = {
+    "ascii none every 1st",
+    "lowercase-letters none every 1st",
+    "ascii word-prefixes every 1st+last",
+    "ascii none every2nd 1st+2nd true"
+  };
+
+  private static final long DEFAULT_LINES = 500000;
+
+  private static final int DEFAULT_REPETITIONS = 3;
+
+  private static final double DEFAULT_TOLERANCE = 0.1;
+
+  private static final int EXIT_REGRESSION = 2;
+
+  // the Hadoop job uses one counter per length, of which only ~120 are allowed
+  private static final int HADOOP_MAX_PASSWORD_LENGTH = 64;
+
+  private static final String CORPUS_NAME = "corpus.txt";
+
+  private static final String OUTPUT_NAME = "output";
+
+  private final File corpus;
+
+  private final File output;
+
+  private final long numLines;
+
+  private final int repetitions;
+
+  /**
+   * Creates a new benchmark.
+   * @param corpus The input file
+   * @param output The file or directory to write the output to (deleted
+   * before each run)
+   * @param numLines The number of lines in the input file
+   * @param repetitions The number of measured runs per configuration
+   * @throws IllegalArgumentException If the number of repetitions is not
+   * positive
+   */
+  public Benchmark(final File corpus, final File output, final long numLines,
+      final int repetitions)
+  throws IllegalArgumentException {
+    if (corpus == null) { throw new NullPointerException(); }
+    if (output == null) { throw new NullPointerException(); }
+    if (repetitions < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive number of repetitions: " + repetitions);
+    }
+    this.corpus = corpus;
+    this.output = output;
+    this.numLines = numLines;
+    this.repetitions = repetitions;
+  }
+
+  /**
+   * Runs one configuration.
+   * @param target Either {@link #TARGET_CLI} or {@link #TARGET_HADOOP}
+   * @param configuration The rule parameters, separated by spaces
+   * @return The fastest run
+   * @throws Exception If running failed
+   */
+  public Result run(final String target, final String configuration)
+  throws Exception {
+    final List<String> args = new ArrayList<>();
+    args.add(this.corpus.getPath());
+    args.add(this.output.getPath());
+    if (target.equals(TARGET_HADOOP)) {
+      args.add("1");
+      args.add(String.valueOf(HADOOP_MAX_PASSWORD_LENGTH));
+    } else if (!target.equals(TARGET_CLI)) {
+      throw new IllegalArgumentException("Unknown target: " + target);
+    }
+    args.addAll(Arrays.asList(configuration.trim().split("\\s+")));
+    final String[] argsArray = args.toArray(new String[args.size()]);
+
+    long fastest = Long.MAX_VALUE;
+    for (int r = 0; r <= this.repetitions; ++r) { // first is warm-up
+      FileUtil.fullyDelete(this.output);
+      final long start = System.nanoTime();
+      if (target.equals(TARGET_HADOOP)) {
+        final int status = ToolRunner.run(new Configuration(),
+            new HadoopPasswordGenerationRules(), argsArray);
+        if (status != 0) {
+          throw new IllegalStateException(
+              "Job failed for " + configuration + ": " + status);
+        }
+      } else {
+        PasswordGenerationRules.main(argsArray);
+      }
+      final long time = System.nanoTime() - start;
+      if (r > 0) {
+        fastest = Math.min(fastest, time);
+      }
+    }
+    FileUtil.fullyDelete(this.output);
+    return new Result(target, configuration,
+        fastest / 1e9, this.numLines, this.corpus.length());
+  }
+
+  /**
+   * The fastest run of one configuration.
+   */
+  public static class Result {
+
+    private final String target;
+
+    private final String configuration;
+
+    private final double seconds;
+
+    private final long numLines;
+
+    private final long numBytes;
+
+    private Result(final String target, final String configuration,
+        final double seconds, final long numLines, final long numBytes) {
+      this.target = target;
+      this.configuration = configuration;
+      this.seconds = seconds;
+      this.numLines = numLines;
+      this.numBytes = numBytes;
+    }
+
+    /**
+     * @return The key of this result in a baseline file
+     */
+    public String getKey() {
+      return this.target + "|" + this.configuration;
+    }
+
+    public double getSeconds() {
+      return this.seconds;
+    }
+
+    public double getLinesPerSecond() {
+      return this.numLines / this.seconds;
+    }
+
+    public double getBytesPerSecond() {
+      return this.numBytes / this.seconds;
+    }
+
+  }
+
+  public static void printHelp(final PrintStream out) {
+    out.println("Usage:");
+    out.println("  [<options>] <directory>");
+    out.println("Where:");
+    out.println("  <directory>");
+    out.println("    Working directory for the corpus and the output.");
+    out.println("Options:");
+    out.println("  " + OPTION_LINES + " <number>");
+    out.println("    Number of sentences in the corpus (default: "
+        + DEFAULT_LINES + ").");
+    out.println("  " + OPTION_SEED + ", " + OPTION_LANGUAGES + ", "
+        + OPTION_WORDS);
+    out.println("    Corpus generation options, see CorpusGenerator.");
+    out.println("  " + OPTION_CONFIGURATION + " <parameters>");
+    out.println("    Rule parameters separated by spaces, like");
+    out.println("    '" + DEFAULT_CONFIGURATIONS[0] + "'. Can be given more");
+    out.println("    than once (default: a set of typical configurations).");
+    out.println("  " + OPTION_REPETITIONS + " <number>");
+    out.println("    Number of measured runs per configuration, the fastest");
+    out.println("    of which is reported (default: " + DEFAULT_REPETITIONS
+        + "). One");
+    out.println("    warm-up run is made before.");
+    out.println("  " + OPTION_HADOOP);
+    out.println("    Also run the Hadoop job in the local job runner.");
+    out.println("  " + OPTION_BASELINE + " <file>");
+    out.println("    Compare the lines per second against the baseline in");
+    out.println("    <file> and exit with status " + EXIT_REGRESSION
+        + " on regressions.");
+    out.println("  " + OPTION_UPDATE_BASELINE);
+    out.println("    Store the results in the " + OPTION_BASELINE
+        + " file instead.");
+    out.println("  " + OPTION_TOLERANCE + " <fraction>");
+    out.println("    Slow-down relative to the baseline that is not reported");
+    out.println("    as regression (default: " + DEFAULT_TOLERANCE + ").");
+  }
+
+  public static void main(final String[] args) throws Exception {
+    long numLines = DEFAULT_LINES;
+    long seed = 0;
+    String languages = CorpusGenerator.DEFAULT_LANGUAGES;
+    String words = CorpusGenerator.DEFAULT_WORDS;
+    final List<String> configurations = new ArrayList<>();
+    int repetitions = DEFAULT_REPETITIONS;
+    boolean hadoop = false;
+    File baselineFile = null;
+    boolean updateBaseline = false;
+    double tolerance = DEFAULT_TOLERANCE;
+    final CorpusGenerator generator;
+    int a = 0;
+    try {
+      for (; a < args.length && args[a].startsWith("--"); ++a) {
+        switch (args[a]) {
+        case OPTION_LINES:
+          numLines = Long.parseLong(getOptionValue(args, a++));
+          break;
+        case OPTION_SEED:
+          seed = Long.parseLong(getOptionValue(args, a++));
+          break;
+        case OPTION_LANGUAGES:
+          languages = getOptionValue(args, a++);
+          break;
+        case OPTION_WORDS:
+          words = getOptionValue(args, a++);
+          break;
+        case OPTION_CONFIGURATION:
+          final String configuration = getOptionValue(args, a++);
+          PasswordGenerationRules.create(configuration.trim().split("\\s+"), 0);
+          configurations.add(configuration.trim());
+          break;
+        case OPTION_REPETITIONS:
+          repetitions = Integer.parseInt(getOptionValue(args, a++));
+          break;
+        case OPTION_HADOOP:
+          hadoop = true;
+          break;
+        case OPTION_BASELINE:
+          baselineFile = new File(getOptionValue(args, a++));
+          break;
+        case OPTION_UPDATE_BASELINE:
+          updateBaseline = true;
+          break;
+        case OPTION_TOLERANCE:
+          tolerance = Double.parseDouble(getOptionValue(args, a++));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[a]);
+        }
+      }
+      if (args.length - a != 1) {
+        printHelp(System.err);
+        System.exit(1);
+      }
+      if (updateBaseline && baselineFile == null) {
+        throw new IllegalArgumentException(OPTION_UPDATE_BASELINE
+            + " requires " + OPTION_BASELINE);
+      }
+      generator = new CorpusGenerator(seed, languages, words);
+    } catch (final IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      printHelp(System.err);
+      System.exit(1);
+      return;
+    }
+    if (configurations.isEmpty()) {
+      configurations.addAll(Arrays.asList(DEFAULT_CONFIGURATIONS));
+    }
+
+    final File directory = new File(args[a]);
+    directory.mkdirs();
+    final File corpus = new File(directory, CORPUS_NAME);
+    generator.write(corpus, numLines);
+    final Benchmark benchmark = new Benchmark(
+        corpus, new File(directory, OUTPUT_NAME), numLines, repetitions);
+
+    final List<Result> results = new ArrayList<>();
+    for (final String configuration : configurations) {
+      results.add(benchmark.run(TARGET_CLI, configuration));
+      if (hadoop) {
+        results.add(benchmark.run(TARGET_HADOOP, configuration));
+      }
+    }
+
+    final Properties baseline = new Properties();
+    if (baselineFile != null && !updateBaseline && baselineFile.exists()) {
+      try (final InputStream input = new FileInputStream(baselineFile)) {
+        baseline.load(input);
+      }
+    }
+
+    int numRegressions = 0;
+    System.out.println(String.format(Locale.ROOT, "%-8s %-40s %9s %11s %8s %9s",
+        "target", "configuration", "seconds", "lines/s", "MB/s", "baseline"));
+    for (final Result result : results) {
+      String comparison = "";
+      final String baselineValue = baseline.getProperty(result.getKey());
+      if (baselineValue != null) {
+        final double change =
+            result.getLinesPerSecond() / Double.parseDouble(baselineValue) - 1;
+        comparison = String.format(Locale.ROOT, "%+8.1f%%", change * 100);
+        if (change < -tolerance) {
+          comparison += " REGRESSION";
+          ++numRegressions;
+        }
+      }
+      System.out.println(String.format(Locale.ROOT,
+          "%-8s %-40s %9.3f %11.0f %8.2f %s",
+          result.target, result.configuration, result.getSeconds(),
+          result.getLinesPerSecond(),
+          result.getBytesPerSecond() / 1024 / 1024, comparison));
+      baseline.setProperty(result.getKey(),
+          String.format(Locale.ROOT, "%.1f", result.getLinesPerSecond()));
+    }
+
+    if (updateBaseline) {
+      try (final OutputStream output = new FileOutputStream(baselineFile)) {
+        baseline.store(output, "lines per second for " + numLines
+            + " lines, " + OPTION_SEED + " " + seed + " " + OPTION_LANGUAGES
+            + " " + languages + " " + OPTION_WORDS + " " + words);
+      }
+    }
+    if (numRegressions > 0) {
+      System.err.println(numRegressions + " regression(s)");
+      System.exit(EXIT_REGRESSION);
+    }
+  }
+
+  private static String getOptionValue(final String[] args, final int a)
+  throws IllegalArgumentException {
+    if (a + 1 >= args.length) {
+      throw new IllegalArgumentException("Missing value for " + args[a]);
+    }
+    return args[a + 1];
+  }
+
+}
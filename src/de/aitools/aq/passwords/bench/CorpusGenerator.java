@@ -0,0 +1,392 @@
+package de.aitools.aq.passwords.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic corpora of sentences for benchmarking, reproducible by
+ * a seed.
+ * <p>
+ * Each sentence is drawn from one language of a configurable mix. Words are
+ * either frequent function words of the language or built from syllables of
+ * the language, so that the vocabulary is large like in real text. The number
+ * of words per sentence follows a configurable distribution.
+ * </p>
+ *
+ * Run without arguments to get the usage message.
+ *
+ * @author agent@local
+ */
+public class CorpusGenerator {
+
+  public static final String OPTION_SEED = "--seed";
+
+  public static final String OPTION_LANGUAGES = "--languages";
+
+  public static final String OPTION_WORDS = "--words";
+
+  public static final String DEFAULT_LANGUAGES = "en=0.7,de=0.2,ru=0.1";
+
+  public static final String DEFAULT_WORDS = "lognormal:10:0.5";
+
+  private static final String DISTRIBUTION_FIXED = "fixed";
+
+  private static final String DISTRIBUTION_UNIFORM = "uniform";
+
+  private static final String DISTRIBUTION_LOGNORMAL = "lognormal";
+
+  private static final double FUNCTION_WORD_PROBABILITY = 0.4;
+
+  private static final double COMMA_PROBABILITY = 0.05;
+
+  private static final double NUMBER_PROBABILITY = 0.02;
+
+  private static final int MAX_WORDS = 1000;
+
+  private static final Map<String, Language> LANGUAGES = new LinkedHashMap<>();
+
+  static {
+    LANGUAGES.put("en", new Language(
+        new String[] { "the", "of", "and", "to", "a", "in", "is", "it", "you",
+            "that", "he", "was", "for", "on", "are", "with", "as", "I", "his",
+            "they", "be", "at", "one", "have", "this", "from", "or", "had",
+            "by", "not", "word", "but", "what", "some", "we", "can", "out",
+            "other", "were", "all", "there", "when", "up", "use", "your" },
+        new String[] { "ba", "be", "ca", "con", "de", "di", "ex", "for", "ger",
+            "in", "ing", "ly", "ma", "ment", "mo", "na", "ness", "o", "pa",
+            "per", "ple", "pro", "re", "sa", "ter", "tion", "ty", "un", "ver",
+            "wa", "ble", "sto", "ry", "cou", "light", "ther", "ous" },
+        new String[] { ".", ".", ".", "!", "?" }));
+    LANGUAGES.put("de", new Language(
+        new String[] { "der", "die", "und", "in", "den", "von", "zu", "das",
+            "mit", "sich", "des", "auf", "f\u00FCr", "ist", "im", "dem",
+            "nicht", "ein", "Die", "eine", "als", "auch", "es", "an", "werden",
+            "aus", "er", "hat", "da\u00DF", "sie", "nach", "wird", "bei",
+            "einer", "Der", "um", "am", "sind", "noch", "wie", "einem",
+            "\u00FCber", "so", "zum" },
+        new String[] { "be", "ge", "ver", "zer", "un", "an", "ab", "aus", "ein",
+            "schaft", "heit", "keit", "ung", "lich", "isch", "bar", "haus",
+            "stra", "\u00DFe", "m\u00E4", "dchen", "gr\u00FC", "\u00DFen",
+            "sch\u00F6", "nen", "wel", "ten", "spra", "che", "k\u00FC", "che",
+            "b\u00FC", "cher", "h\u00F6", "ren", "stadt", "land", "wald",
+            "berg" },
+        new String[] { ".", ".", ".", "!", "?" }));
+    LANGUAGES.put("fr", new Language(
+        new String[] { "le", "de", "un", "\u00EAtre", "et", "\u00E0", "il",
+            "avoir", "ne", "je", "son", "que", "se", "qui", "ce", "dans", "en",
+            "du", "elle", "au", "pour", "pas", "que", "vous", "par", "sur",
+            "faire", "plus", "dire", "me", "on", "mon", "lui", "nous", "comme",
+            "mais", "o\u00F9", "tr\u00E8s", "d\u00E9j\u00E0", "l'homme",
+            "aujourd'hui", "c'est" },
+        new String[] { "b\u00E9", "re", "ment", "tion", "ai", "eau", "\u00E9",
+            "\u00E8", "con", "pr\u00E9", "d\u00E9", "mai", "son", "ch\u00E2",
+            "teau", "f\u00EA", "te", "gar", "\u00E7on", "ver", "ta", "ble",
+            "lu", "mi\u00E8re", "chan", "son", "ro", "man", "pa", "pier", "fo",
+            "r\u00EAt" },
+        new String[] { ".", ".", ".", "!", "?", " !", " ?" }));
+    LANGUAGES.put("es", new Language(
+        new String[] { "de", "la", "que", "el", "en", "y", "a", "los", "se",
+            "del", "las", "un", "por", "con", "no", "una", "su", "para", "es",
+            "al", "lo", "como", "m\u00E1s", "o", "pero", "sus", "le", "ha",
+            "me", "s\u00ED", "sin", "sobre", "este", "ya", "entre", "cuando",
+            "tambi\u00E9n" },
+        new String[] { "ca", "sa", "ci\u00F3n", "mu", "cho", "ni", "\u00F1o",
+            "ma", "\u00F1a", "na", "co", "ra", "z\u00F3n", "\u00E1r", "bol",
+            "p\u00E1", "ja", "ro", "es", "pa", "cio", "ciu", "dad", "v\u00ED",
+            "da", "can", "ci\u00F3n" },
+        new String[] { ".", ".", ".", "!", "?" }));
+    LANGUAGES.put("ru", new Language(
+        new String[] { "\u0438", "\u0432", "\u043D\u0435", "\u043D\u0430",
+            "\u044F", "\u0431\u044B\u0442\u044C", "\u043E\u043D", "\u0441",
+            "\u0447\u0442\u043E", "\u0430", "\u043F\u043E",
+            "\u044D\u0442\u043E", "\u043E\u043D\u0430",
+            "\u044D\u0442\u043E\u0442", "\u043A", "\u043D\u043E",
+            "\u043E\u043D\u0438", "\u043C\u044B", "\u043A\u0430\u043A",
+            "\u0438\u0437", "\u0443",
+            "\u043A\u043E\u0442\u043E\u0440\u044B\u0439", "\u0442\u043E",
+            "\u0437\u0430", "\u0441\u0432\u043E\u0439",
+            "\u0432\u0435\u0441\u044C", "\u0433\u043E\u0434", "\u043E\u0442",
+            "\u0442\u0430\u043A", "\u043E", "\u0434\u043B\u044F",
+            "\u0442\u044B", "\u0436\u0435", "\u0432\u0441\u0435",
+            "\u0442\u043E\u0442", "\u043C\u043E\u0447\u044C", "\u0432\u044B" },
+        new String[] { "\u043A\u0430", "\u043D\u0438", "\u043B\u043E",
+            "\u0432\u0430", "\u0440\u0435", "\u0442\u044C",
+            "\u043F\u0440\u043E", "\u0441\u0442", "\u0440\u0430",
+            "\u043D\u043E", "\u0433\u043E", "\u0432\u043E", "\u043C\u0438",
+            "\u0441\u043A\u043E", "\u0434\u0435\u043D", "\u0436\u0438",
+            "\u0437\u043D", "\u044C", "\u043E\u0439",
+            "\u043E\u0441\u0442\u044C", "\u0435\u043D\u0438\u0435",
+            "\u0441\u043A\u0438\u0439", "\u043F\u0435\u0440\u0435",
+            "\u043F\u0440\u0438", "\u0434\u043E", "\u043C\u0430",
+            "\u0448\u0430", "\u0449\u0438" },
+        new String[] { ".", ".", ".", "!", "?" }));
+  }
+
+  private final Random random;
+
+  private final Language[] languages;
+
+  private final double[] cumulativeWeights;
+
+  private final String distribution;
+
+  private final double[] distributionParameters;
+
+  /**
+   * Creates a new generator.
+   * @param seed The seed for the random decisions
+   * @param languages Comma-separated list of language codes, each followed
+   * by <tt>=</tt> and its weight (see {@link #getLanguages()})
+   * @param words The distribution of the number of words per sentence:
+   * <tt>fixed:&lt;n&gt;</tt>, <tt>uniform:&lt;min&gt;:&lt;max&gt;</tt>, or
+   * <tt>lognormal:&lt;median&gt;:&lt;sigma&gt;</tt>
+   * @throws IllegalArgumentException If a specification is invalid
+   */
+  public CorpusGenerator(
+      final long seed, final String languages, final String words)
+  throws IllegalArgumentException {
+    this.random = new Random(seed);
+
+    final String[] languageSpecs = languages.split(",");
+    this.languages = new Language[languageSpecs.length];
+    this.cumulativeWeights = new double[languageSpecs.length];
+    double totalWeight = 0;
+    for (int l = 0; l < languageSpecs.length; ++l) {
+      final String[] parts = languageSpecs[l].trim().split("=");
+      final Language language = LANGUAGES.get(parts[0]);
+      if (language == null || parts.length > 2) {
+        throw new IllegalArgumentException(
+            "Invalid language: " + languageSpecs[l]);
+      }
+      final double weight = parts.length == 1 ? 1 : Double.parseDouble(parts[1]);
+      if (!(weight >= 0)) {
+        throw new IllegalArgumentException(
+            "Invalid language weight: " + languageSpecs[l]);
+      }
+      totalWeight += weight;
+      this.languages[l] = language;
+      this.cumulativeWeights[l] = totalWeight;
+    }
+    if (!(totalWeight > 0)) {
+      throw new IllegalArgumentException("No language weight: " + languages);
+    }
+    for (int l = 0; l < this.cumulativeWeights.length; ++l) {
+      this.cumulativeWeights[l] /= totalWeight;
+    }
+
+    final String[] parts = words.split(":");
+    this.distribution = parts[0];
+    this.distributionParameters = new double[parts.length - 1];
+    for (int p = 1; p < parts.length; ++p) {
+      this.distributionParameters[p - 1] = Double.parseDouble(parts[p]);
+    }
+    final int numParameters;
+    switch (this.distribution) {
+    case DISTRIBUTION_FIXED: numParameters = 1; break;
+    case DISTRIBUTION_UNIFORM: numParameters = 2; break;
+    case DISTRIBUTION_LOGNORMAL: numParameters = 2; break;
+    default:
+      throw new IllegalArgumentException("Invalid distribution: " + words);
+    }
+    if (this.distributionParameters.length != numParameters
+        || this.distributionParameters[0] < 1) {
+      throw new IllegalArgumentException("Invalid distribution: " + words);
+    }
+  }
+
+  /**
+   * @return The codes of the available languages
+   */
+  public static String[] getLanguages() {
+    return LANGUAGES.keySet().toArray(new String[0]);
+  }
+
+  /**
+   * Generates the next sentence.
+   * @return The sentence
+   */
+  public String next() {
+    final Language language = this.nextLanguage();
+    final int numWords = this.nextNumWords();
+    final StringBuilder sentence = new StringBuilder();
+    for (int w = 0; w < numWords; ++w) {
+      if (w > 0) {
+        if (this.random.nextDouble() < COMMA_PROBABILITY) {
+          sentence.append(',');
+        }
+        sentence.append(' ');
+      }
+      final String word;
+      if (this.random.nextDouble() < NUMBER_PROBABILITY) {
+        word = String.valueOf(this.random.nextInt(2000));
+      } else if (this.random.nextDouble() < FUNCTION_WORD_PROBABILITY) {
+        word = this.choose(language.functionWords);
+      } else {
+        final StringBuilder builder = new StringBuilder();
+        final int numSyllables = 1 + this.random.nextInt(3);
+        for (int s = 0; s < numSyllables; ++s) {
+          builder.append(this.choose(language.syllables));
+        }
+        word = builder.toString();
+      }
+      if (w == 0) {
+        sentence.appendCodePoint(Character.toUpperCase(word.codePointAt(0)));
+        sentence.append(word, Character.charCount(word.codePointAt(0)),
+            word.length());
+      } else {
+        sentence.append(word);
+      }
+    }
+    sentence.append(this.choose(language.endings));
+    return sentence.toString();
+  }
+
+  /**
+   * Writes sentences to a file, one per line.
+   * @param output The file
+   * @param numLines The number of sentences
+   * @return The number of bytes written
+   * @throws IOException If writing failed
+   */
+  public long write(final File output, final long numLines)
+  throws IOException {
+    long numBytes = 0;
+    try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16)) {
+      for (long l = 0; l < numLines; ++l) {
+        final String sentence = this.next();
+        writer.write(sentence);
+        writer.write('\n');
+        numBytes += sentence.getBytes(StandardCharsets.UTF_8).length + 1;
+      }
+    }
+    return numBytes;
+  }
+
+  private Language nextLanguage() {
+    final double value = this.random.nextDouble();
+    for (int l = 0; l < this.languages.length - 1; ++l) {
+      if (value < this.cumulativeWeights[l]) {
+        return this.languages[l];
+      }
+    }
+    return this.languages[this.languages.length - 1];
+  }
+
+  private int nextNumWords() {
+    final double[] parameters = this.distributionParameters;
+    final double numWords;
+    switch (this.distribution) {
+    case DISTRIBUTION_FIXED:
+      numWords = parameters[0];
+      break;
+    case DISTRIBUTION_UNIFORM:
+      numWords = parameters[0]
+        + this.random.nextInt((int) (parameters[1] - parameters[0]) + 1);
+      break;
+    default: // DISTRIBUTION_LOGNORMAL
+      numWords = Math.round(
+          parameters[0] * Math.exp(parameters[1] * this.random.nextGaussian()));
+      break;
+    }
+    return (int) Math.max(1, Math.min(MAX_WORDS, numWords));
+  }
+
+  private String choose(final String[] strings) {
+    return strings[this.random.nextInt(strings.length)];
+  }
+
+  public static void printHelp(final PrintStream out) {
+    out.println("Usage:");
+    out.println("  [<options>] <output> <lines>");
+    out.println("Where:");
+    out.println("  <output>");
+    out.println("    File to write the sentences to, one per line.");
+    out.println("  <lines>");
+    out.println("    Number of sentences to generate.");
+    out.println("Options:");
+    out.println("  " + OPTION_SEED + " <number>");
+    out.println("    Seed for the random generation (default: 0).");
+    out.println("  " + OPTION_LANGUAGES + " <language>=<weight>,...");
+    out.println("    Languages of the sentences and their proportions");
+    out.println("    (default: " + DEFAULT_LANGUAGES + "). Available:");
+    out.println("    " + String.join(", ", getLanguages()));
+    out.println("  " + OPTION_WORDS + " <distribution>");
+    out.println("    Distribution of the number of words per sentence:");
+    out.println("    '" + DISTRIBUTION_FIXED + ":<n>', '"
+        + DISTRIBUTION_UNIFORM + ":<min>:<max>', or '"
+        + DISTRIBUTION_LOGNORMAL + ":<median>:<sigma>'");
+    out.println("    (default: " + DEFAULT_WORDS + ").");
+  }
+
+  public static void main(final String[] args) throws IOException {
+    long seed = 0;
+    String languages = DEFAULT_LANGUAGES;
+    String words = DEFAULT_WORDS;
+    final CorpusGenerator generator;
+    int a = 0;
+    try {
+      for (; a < args.length && args[a].startsWith("--"); ++a) {
+        if (a + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value for " + args[a]);
+        }
+        switch (args[a]) {
+        case OPTION_SEED:
+          seed = Long.parseLong(args[++a]);
+          break;
+        case OPTION_LANGUAGES:
+          languages = args[++a];
+          break;
+        case OPTION_WORDS:
+          words = args[++a];
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[a]);
+        }
+      }
+      if (args.length - a != 2) {
+        printHelp(System.err);
+        System.exit(1);
+      }
+      generator = new CorpusGenerator(seed, languages, words);
+    } catch (final IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      printHelp(System.err);
+      System.exit(1);
+      return;
+    }
+
+    final long numLines = Long.parseLong(args[a + 1]);
+    final long numBytes = generator.write(new File(args[a]), numLines);
+    System.err.println(String.format(Locale.ROOT,
+        "Wrote %d lines (%.1f MB)", numLines, numBytes / 1024.0 / 1024.0));
+  }
+
+  private static class Language {
+
+    private final String[] functionWords;
+
+    private final String[] syllables;
+
+    private final String[] endings;
+
+    private Language(final String[] functionWords, final String[] syllables,
+        final String[] endings) {
+      this.functionWords = functionWords;
+      this.syllables = syllables;
+      this.endings = endings;
+    }
+
+  }
+
+}
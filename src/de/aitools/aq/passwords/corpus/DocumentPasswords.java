@@ -0,0 +1,435 @@
+package de.aitools.aq.passwords.corpus;
+
+import java.text.CharacterIterator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+import com.ibm.icu.text.BreakIterator;
+
+import de.aitools.aq.passwords.PasswordGenerationRules;
+import de.aitools.aq.passwords.StagedRule;
+import de.aitools.aq.passwords.rules.CharacterIndicesFilter;
+import de.aitools.aq.passwords.util.Parameters;
+
+/**
+ * Generates passwords from running documents instead of from one sentence per
+ * line: either from each window of a fixed number of consecutive tokens or
+ * from each sentence as found by the ICU sentence boundaries.
+ * <p>
+ * Documents are read line by line and end at an empty (or whitespace-only)
+ * line or at the end of the input. Windows and sentences may span several
+ * lines, but not several documents.
+ * </p><p>
+ * In window mode, each line is converted, tokenized, and replaced once (see
+ * {@link StagedRule#getReplacedTokens(String)}), and the characters of each
+ * token are selected once when it enters the window. The password of a
+ * window then joins the selected characters of every nth token of the window
+ * (starting with its first token), so that the time per document is linear
+ * in the number of its tokens and the length of the passwords. A document
+ * with fewer tokens than a window yields one password of all its tokens.
+ * </p><p>
+ * In sentence mode, the text of a document is kept until the next sentence
+ * boundary and each sentence yields the same password as a line with that
+ * sentence. When a line is added, the boundaries are only searched again
+ * from shortly before the end of the previous text (see
+ * {@link #SENTENCE_LOOK_BACK}), as only those can depend on the new line,
+ * starting at a space after a letter or digit, where no sentence can end.
+ * Sentences longer than {@link StagedRule#CHUNK_SIZE} characters are cut
+ * (after a space, if possible) to bound the memory. Sentences without tokens
+ * yield no password.
+ * </p><p>
+ * Long lines can be added in pieces (see {@link #addPiece(String, Consumer)}),
+ * which yield the same passwords as the entire line if they end where the
+ * chunks of {@link StagedRule} end.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class DocumentPasswords {
+
+  /**
+   * The number of characters before the end of the previous text from which
+   * sentence boundaries are searched again when a line is added.
+   */
+  public static final int SENTENCE_LOOK_BACK = 256;
+
+  private final StagedRule rule;
+
+  private final int everyNthToken;
+
+  private final CharacterIndicesFilter characterFilter;
+
+  private final boolean addSpacesBetweenCharacters;
+
+  /**
+   * The number of tokens per window, or 0 for sentence mode.
+   */
+  private final int windowSize;
+
+  /**
+   * The selected characters of the last tokens of the document, token
+   * <tt>t</tt> at <tt>t % windowSize</tt>.
+   */
+  private final String[] window;
+
+  /**
+   * The number of tokens of the current document so far.
+   */
+  private long numDocumentTokens;
+
+  private final BreakIterator sentenceBoundaries;
+
+  /**
+   * The text of the current document after the last complete sentence.
+   */
+  private final StringBuilder text;
+
+  /**
+   * The number of characters at the start of the text that have been
+   * searched for sentence boundaries without finding one.
+   */
+  private int scanned;
+
+  private final StringBuilder password;
+
+  private boolean inDocument;
+
+  /**
+   * Whether pieces of the current line have been added.
+   */
+  private boolean inLine;
+
+  private long numDocuments;
+
+  private long numPasswords;
+
+  private DocumentPasswords(final String[] args, final int start,
+      final int windowSize)
+  throws NullPointerException, IllegalArgumentException {
+    this.rule = StagedRule.create(args, start);
+    this.everyNthToken = Parameters.selectionStringToInt(args[start + 2]);
+    if (this.everyNthToken < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive word count: " + args[start + 2]);
+    }
+    this.characterFilter =
+        CharacterIndicesFilter.create(args[start + 3], false, false);
+    this.addSpacesBetweenCharacters =
+        args.length - start == 5 && Boolean.parseBoolean(args[start + 4]);
+    this.windowSize = windowSize;
+    this.window = new String[windowSize];
+    this.numDocumentTokens = 0;
+    this.sentenceBoundaries = windowSize == 0
+        ? BreakIterator.getSentenceInstance(Locale.ENGLISH) : null;
+    this.text = new StringBuilder();
+    this.scanned = 0;
+    this.password = new StringBuilder();
+    this.inDocument = false;
+    this.inLine = false;
+    this.numDocuments = 0;
+    this.numPasswords = 0;
+  }
+
+  /**
+   * Creates a generator of passwords from each window of consecutive tokens.
+   * @param args The rule parameters, starting at index start (see
+   * {@link StagedRule#create(String[], int)})
+   * @param start The first index in args to treat as parameter
+   * @param windowSize The number of tokens per window
+   * @return The generator
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value
+   */
+  public static DocumentPasswords forWindows(final String[] args,
+      final int start, final int windowSize)
+  throws NullPointerException, IllegalArgumentException {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive window size: " + windowSize);
+    }
+    return new DocumentPasswords(args, start, windowSize);
+  }
+
+  /**
+   * Creates a generator of passwords from each sentence.
+   * @param args The rule parameters, starting at index start (see
+   * {@link StagedRule#create(String[], int)})
+   * @param start The first index in args to treat as parameter
+   * @return The generator
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value
+   */
+  public static DocumentPasswords forSentences(
+      final String[] args, final int start)
+  throws NullPointerException, IllegalArgumentException {
+    return new DocumentPasswords(args, start, 0);
+  }
+
+  /**
+   * @return The number of documents that had at least one line
+   */
+  public long getNumDocuments() {
+    return this.numDocuments;
+  }
+
+  /**
+   * @return The number of generated passwords
+   */
+  public long getNumPasswords() {
+    return this.numPasswords;
+  }
+
+  /**
+   * Adds the next line of the current document, or ends the document if the
+   * line is empty.
+   * @param line The line, or the last piece of a line whose pieces were
+   * added before
+   * @param passwords Receives the passwords of the windows or sentences that
+   * are complete after this line
+   */
+  public void add(final String line, final Consumer<String> passwords) {
+    if (!this.inLine && line.trim().isEmpty()) {
+      this.endDocument(passwords);
+      return;
+    }
+    this.addText(line, passwords);
+    this.inLine = false;
+  }
+
+  /**
+   * Adds a piece of the next line, which is then completed by
+   * {@link #add(String, Consumer)} with its last piece (e.g., for
+   * {@link de.aitools.aq.passwords.util.LineReader#setPieces(Consumer)}).
+   * @param piece The piece
+   * @param passwords Receives the passwords of the windows or sentences that
+   * are complete after this piece
+   */
+  public void addPiece(final String piece, final Consumer<String> passwords) {
+    // leading white space does not start a document
+    if (!this.inLine && piece.trim().isEmpty()) { return; }
+    this.addText(piece, passwords);
+    this.inLine = true;
+  }
+
+  private void addText(final String text, final Consumer<String> passwords) {
+    if (!this.inDocument) {
+      this.inDocument = true;
+      ++this.numDocuments;
+    }
+    if (this.windowSize > 0) {
+      this.addTokens(text, passwords);
+    } else {
+      this.addSentences(text, passwords);
+    }
+  }
+
+  /**
+   * Ends the current document (if it has lines).
+   * @param passwords Receives the passwords of the remaining sentence or of
+   * the only window of a document with fewer tokens than a window
+   */
+  public void endDocument(final Consumer<String> passwords) {
+    if (this.windowSize > 0) {
+      if (this.numDocumentTokens > 0
+          && this.numDocumentTokens < this.windowSize) {
+        this.generate(0, this.numDocumentTokens, passwords);
+      }
+      this.numDocumentTokens = 0;
+    } else {
+      if (this.text.length() > 0) {
+        this.generate(this.text.toString(), passwords);
+      }
+      this.text.setLength(0);
+      this.scanned = 0;
+    }
+    this.inDocument = false;
+  }
+
+  private void addTokens(final String line, final Consumer<String> passwords) {
+    for (final String token : this.rule.getReplacedTokens(line)) {
+      this.window[(int) (this.numDocumentTokens % this.windowSize)] =
+          this.characterFilter.apply(token);
+      ++this.numDocumentTokens;
+      if (this.numDocumentTokens >= this.windowSize) {
+        this.generate(this.numDocumentTokens - this.windowSize,
+            this.numDocumentTokens, passwords);
+      }
+    }
+  }
+
+  private void addSentences(final String line,
+      final Consumer<String> passwords) {
+    if (this.text.length() > 0 && !this.inLine) {
+      this.text.append(' ');
+    }
+    this.text.append(line);
+
+    // the last sentence may continue on the next line
+    final int length = this.text.length();
+    this.sentenceBoundaries.setText(new CharSequenceIterator(this.text,
+        this.getRestartPosition(this.scanned - SENTENCE_LOOK_BACK)));
+    int start = 0;
+    this.sentenceBoundaries.first();
+    int end = this.sentenceBoundaries.next();
+    while (end != BreakIterator.DONE && end < length) {
+      this.generate(this.text.substring(start, end), passwords);
+      start = end;
+      end = this.sentenceBoundaries.next();
+    }
+    this.text.delete(0, start);
+
+    while (this.text.length() > StagedRule.CHUNK_SIZE) {
+      int cut = this.text.lastIndexOf(" ", StagedRule.CHUNK_SIZE) + 1;
+      if (cut <= 0) {
+        cut = StagedRule.CHUNK_SIZE;
+      }
+      this.generate(this.text.substring(0, cut), passwords);
+      this.text.delete(0, cut);
+    }
+    this.scanned = this.text.length();
+  }
+
+  /**
+   * Gets a position at or before the given one from which the sentence
+   * boundaries of the text can be searched as if it started there: the start
+   * of the text or a space after a letter or digit.
+   */
+  private int getRestartPosition(final int position) {
+    for (int p = position; p > 0; --p) {
+      if (this.text.charAt(p) == ' '
+          && Character.isLetterOrDigit(this.text.charAt(p - 1))) {
+        return p;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Generates the password of the tokens in the window from start
+   * (inclusive) to end (exclusive).
+   */
+  private void generate(final long start, final long end,
+      final Consumer<String> passwords) {
+    this.password.setLength(0);
+    for (long t = start; t < end; t += this.everyNthToken) {
+      this.password.append(this.window[(int) (t % this.windowSize)]);
+    }
+    this.generate(passwords);
+  }
+
+  /**
+   * Generates the password of a sentence.
+   */
+  private void generate(final String sentence,
+      final Consumer<String> passwords) {
+    final List<String> tokens = this.rule.getReplacedTokens(sentence);
+    if (tokens.isEmpty()) { return; }
+    this.password.setLength(0);
+    for (int t = 0; t < tokens.size(); t += this.everyNthToken) {
+      this.password.append(this.characterFilter.apply(tokens.get(t)));
+    }
+    this.generate(passwords);
+  }
+
+  private void generate(final Consumer<String> passwords) {
+    ++this.numPasswords;
+    passwords.accept(PasswordGenerationRules.join(
+        Collections.singletonList(this.password.toString()),
+        this.addSpacesBetweenCharacters));
+  }
+
+  /**
+   * A {@link CharacterIterator} over the end of a character sequence, so
+   * that the sentence boundaries of the text can be searched without copying
+   * it to a string. The sequence must not change while a
+   * {@link BreakIterator} uses it.
+   */
+  private static final class CharSequenceIterator
+  implements CharacterIterator {
+
+    private final CharSequence sequence;
+
+    private final int begin;
+
+    private int index;
+
+    private CharSequenceIterator(final CharSequence sequence,
+        final int begin) {
+      this.sequence = sequence;
+      this.begin = begin;
+      this.index = begin;
+    }
+
+    @Override
+    public char first() {
+      return this.setIndex(this.begin);
+    }
+
+    @Override
+    public char last() {
+      final int length = this.sequence.length();
+      return this.setIndex(length == this.begin ? length : length - 1);
+    }
+
+    @Override
+    public char current() {
+      return this.index < this.sequence.length()
+          ? this.sequence.charAt(this.index) : DONE;
+    }
+
+    @Override
+    public char next() {
+      if (this.index < this.sequence.length()) {
+        ++this.index;
+      }
+      return this.current();
+    }
+
+    @Override
+    public char previous() {
+      if (this.index == this.begin) { return DONE; }
+      --this.index;
+      return this.current();
+    }
+
+    @Override
+    public char setIndex(final int position)
+    throws IllegalArgumentException {
+      if (position < this.begin || position > this.sequence.length()) {
+        throw new IllegalArgumentException("Invalid index: " + position);
+      }
+      this.index = position;
+      return this.current();
+    }
+
+    @Override
+    public int getBeginIndex() {
+      return this.begin;
+    }
+
+    @Override
+    public int getEndIndex() {
+      return this.sequence.length();
+    }
+
+    @Override
+    public int getIndex() {
+      return this.index;
+    }
+
+    @Override
+    public Object clone() {
+      try {
+        return super.clone();
+      } catch (final CloneNotSupportedException e) {
+        throw new InternalError(e);
+      }
+    }
+
+  }
+
+}
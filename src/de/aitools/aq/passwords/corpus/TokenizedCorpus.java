@@ -0,0 +1,414 @@
+package de.aitools.aq.passwords.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.function.Function;
+
+import de.aitools.aq.passwords.PasswordGenerationRules;
+import de.aitools.aq.passwords.index.VarInts;
+import de.aitools.aq.passwords.rules.CharacterIndicesFilter;
+import de.aitools.aq.passwords.rules.EveryNthTokenFilter;
+import de.aitools.aq.passwords.util.Parameters;
+
+/**
+ * A corpus of sentences that were converted to a character set, tokenized,
+ * and replaced (see {@link TokenizedCorpusBuilder}), so that rules with
+ * different token and character selections can be applied without repeating
+ * these stages.
+ * <p>
+ * The file starts with a header (magic number and version), followed by one
+ * entry per sentence: the number of tokens and the token IDs, all as
+ * {@link VarInts}. The dictionary follows with the configuration, the numbers
+ * of sentences and tokens, and each token with its count. The file ends with
+ * the offset of the dictionary and the magic number. The sentences are read
+ * through memory mapped windows of the file.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class TokenizedCorpus implements Closeable {
+
+  /**
+   * Command line option for printing information on the corpus only.
+   */
+  public static final String OPTION_INFO = "--info";
+
+  static final int MAGIC = 0x50575443; // "PWTC"
+
+  static final int VERSION = 1;
+
+  static final int HEADER_SIZE = 8;
+
+  private static final int FOOTER_SIZE = 12;
+
+  private static final int WINDOW_SIZE = 1 << 28;
+
+  /**
+   * The maximum number of bytes of a {@link VarInts} encoded integer.
+   */
+  private static final int MAX_VAR_INT_BYTES = 10;
+
+  private final RandomAccessFile file;
+
+  private final String characterSet;
+
+  private final String replacement;
+
+  private final long numSentences;
+
+  private final long numTokens;
+
+  private final String[] tokens;
+
+  private final long[] counts;
+
+  private final long sentencesEnd;
+
+  /**
+   * Opens a corpus.
+   * @param corpusFile The corpus file
+   * @throws IOException If the file can not be read or is not a valid corpus
+   */
+  public TokenizedCorpus(final File corpusFile) throws IOException {
+    this.file = new RandomAccessFile(corpusFile, "r");
+    try {
+      final FileChannel channel = this.file.getChannel();
+      final long size = channel.size();
+      if (size < HEADER_SIZE + FOOTER_SIZE) {
+        throw new IOException("Not a tokenized corpus: " + corpusFile);
+      }
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      channel.read(header, 0);
+      final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+      channel.read(footer, size - FOOTER_SIZE);
+      if (header.getInt(0) != MAGIC || footer.getInt(8) != MAGIC) {
+        throw new IOException("Not a tokenized corpus: " + corpusFile);
+      }
+      final int version = header.getInt(4);
+      if (version != VERSION) {
+        throw new IOException("Unsupported version " + version
+            + " of tokenized corpus: " + corpusFile);
+      }
+      this.sentencesEnd = footer.getLong(0);
+
+      channel.position(this.sentencesEnd);
+      final DataInputStream dictionary = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(channel)));
+      this.characterSet = TokenizedCorpus.readString(dictionary);
+      this.replacement = TokenizedCorpus.readString(dictionary);
+      this.numSentences = dictionary.readLong();
+      this.numTokens = dictionary.readLong();
+      this.tokens = new String[dictionary.readInt()];
+      this.counts = new long[this.tokens.length];
+      for (int id = 0; id < this.tokens.length; ++id) {
+        this.tokens[id] = TokenizedCorpus.readString(dictionary);
+        this.counts[id] = dictionary.readLong();
+      }
+    } catch (final IOException | RuntimeException e) {
+      this.file.close();
+      throw e;
+    }
+  }
+
+  static void writeString(final DataOutputStream output, final String string)
+  throws IOException {
+    final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static String readString(final DataInputStream input)
+  throws IOException {
+    final byte[] bytes = new byte[input.readInt()];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return The character set configuration the corpus was built with
+   */
+  public String getCharacterSet() {
+    return this.characterSet;
+  }
+
+  /**
+   * @return The replacement configuration the corpus was built with
+   */
+  public String getReplacement() {
+    return this.replacement;
+  }
+
+  public long getNumSentences() {
+    return this.numSentences;
+  }
+
+  public long getNumTokens() {
+    return this.numTokens;
+  }
+
+  /**
+   * @return The number of distinct tokens
+   */
+  public int getNumTokenIds() {
+    return this.tokens.length;
+  }
+
+  /**
+   * Gets the token of an ID.
+   * @param id The ID
+   * @return The token
+   * @throws IndexOutOfBoundsException If there is no token with that ID
+   */
+  public String getToken(final int id) throws IndexOutOfBoundsException {
+    return this.tokens[id];
+  }
+
+  /**
+   * Gets how often the token of an ID occurs in the corpus.
+   * @param id The ID
+   * @return The count
+   * @throws IndexOutOfBoundsException If there is no token with that ID
+   */
+  public long getCount(final int id) throws IndexOutOfBoundsException {
+    return this.counts[id];
+  }
+
+  /**
+   * @return A reader of the sentences from the start of the corpus
+   * @throws IOException If the corpus can not be mapped
+   */
+  public Sentences getSentences() throws IOException {
+    return new Sentences();
+  }
+
+  /**
+   * Creates a rule that generates the password of a sentence from its token
+   * IDs. This corresponds to a rule of {@link PasswordGenerationRules} with
+   * the character set and replacement of this corpus. The characters that
+   * are selected from a token are computed once per ID.
+   * @param nthToken Configuration parameter for selecting the nth token for the
+   * password (see {@link EveryNthTokenFilter#create(String)})
+   * @param charIndices Configuration parameter for selecting characters from
+   * each token (see
+   * {@link CharacterIndicesFilter#create(String, boolean, boolean)})
+   * @param addSpacesBetweenCharacters If spaces should be added between the
+   * password characters at the end (as needed for n-gram counting)
+   * @return The rule, which takes the sentences as read by
+   * {@link #getSentences()} and must be used by only one thread at a time
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value
+   */
+  public Function<Sentences, String> createRule(
+      final String nthToken, final String charIndices,
+      final boolean addSpacesBetweenCharacters)
+  throws NullPointerException, IllegalArgumentException {
+    final int everyNthToken = Parameters.selectionStringToInt(nthToken);
+    if (everyNthToken < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive word count: " + nthToken);
+    }
+    final CharacterIndicesFilter characterFilter =
+        CharacterIndicesFilter.create(charIndices, false, false);
+    final String[] characters = new String[this.tokens.length];
+    final StringBuilder password = new StringBuilder();
+    return sentence -> {
+      password.setLength(0);
+      final int[] ids = sentence.getTokenIds();
+      final int numIds = sentence.getNumTokens();
+      for (int t = 0; t < numIds; t += everyNthToken) {
+        final int id = ids[t];
+        if (characters[id] == null) {
+          characters[id] = characterFilter.apply(this.tokens[id]);
+        }
+        password.append(characters[id]);
+      }
+      return PasswordGenerationRules.join(
+          Collections.singletonList(password.toString()),
+          addSpacesBetweenCharacters);
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.file.close();
+  }
+
+  /**
+   * Reads the sentences of the corpus one after the other.
+   */
+  public class Sentences {
+
+    private long windowStart;
+
+    private MappedByteBuffer window;
+
+    private int[] tokenIds;
+
+    private int numTokens;
+
+    private Sentences() throws IOException {
+      this.windowStart = HEADER_SIZE;
+      this.window = this.map();
+      this.tokenIds = new int[64];
+      this.numTokens = 0;
+    }
+
+    /**
+     * Reads the next sentence.
+     * @return Whether there was a next sentence
+     * @throws IOException If the corpus can not be mapped
+     */
+    public boolean next() throws IOException {
+      if (this.windowStart + this.window.position()
+          >= TokenizedCorpus.this.sentencesEnd) {
+        this.numTokens = 0;
+        return false;
+      }
+      this.numTokens = (int) this.readVarInt();
+      if (this.numTokens > this.tokenIds.length) {
+        this.tokenIds =
+            new int[Math.max(this.numTokens, 2 * this.tokenIds.length)];
+      }
+      for (int t = 0; t < this.numTokens; ++t) {
+        this.tokenIds[t] = (int) this.readVarInt();
+      }
+      return true;
+    }
+
+    /**
+     * @return The number of tokens of the current sentence
+     */
+    public int getNumTokens() {
+      return this.numTokens;
+    }
+
+    /**
+     * @return The token IDs of the current sentence in the first
+     * {@link #getNumTokens()} elements of the array, which is reused for the
+     * next sentence
+     */
+    public int[] getTokenIds() {
+      return this.tokenIds;
+    }
+
+    /**
+     * @return The tokens of the current sentence separated by spaces
+     */
+    @Override
+    public String toString() {
+      final StringBuilder sentence = new StringBuilder();
+      for (int t = 0; t < this.numTokens; ++t) {
+        if (t > 0) {
+          sentence.append(' ');
+        }
+        sentence.append(TokenizedCorpus.this.tokens[this.tokenIds[t]]);
+      }
+      return sentence.toString();
+    }
+
+    private long readVarInt() throws IOException {
+      if (this.window.remaining() < MAX_VAR_INT_BYTES
+          && this.windowStart + this.window.limit()
+              < TokenizedCorpus.this.sentencesEnd) {
+        this.windowStart += this.window.position();
+        this.window = this.map();
+      }
+      return VarInts.read(this.window);
+    }
+
+    private MappedByteBuffer map() throws IOException {
+      return TokenizedCorpus.this.file.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, this.windowStart,
+          Math.min(WINDOW_SIZE,
+              TokenizedCorpus.this.sentencesEnd - this.windowStart));
+    }
+
+  }
+
+  public static void printHelp(final PrintStream out) {
+    out.println("Usage:");
+    out.println("  <corpus> <output> <word> <character position>"
+        + " [<add spaces between characters>]");
+    out.println("  " + OPTION_INFO + " <corpus>");
+    out.println("Where:");
+    out.println("  <corpus>");
+    out.println("    A corpus written by TokenizedCorpusBuilder.");
+    out.println("  <output>");
+    out.println("    Output file which will contain one password per");
+    out.println("    sentence, or \"" + PasswordGenerationRules.STANDARD_STREAM
+        + "\" for the standard output.");
+    out.println("  <word>, <character position>, <add spaces ...>");
+    out.println("    As for PasswordGenerationRules (the character set and");
+    out.println("    replacement are those of the corpus).");
+    out.println("Options:");
+    out.println("  " + OPTION_INFO);
+    out.println("    Print the configuration and size of the corpus.");
+  }
+
+  public static void main(final String[] args) throws IOException {
+    final boolean info = args.length == 2 && args[0].equals(OPTION_INFO);
+    if (!info && (args.length < 4 || args.length > 5)) {
+      printHelp(System.err);
+      System.exit(1);
+    }
+
+    try (final TokenizedCorpus corpus =
+        new TokenizedCorpus(new File(args[info ? 1 : 0]))) {
+      if (info) {
+        System.out.println("character set: " + corpus.getCharacterSet());
+        System.out.println("replacement: " + corpus.getReplacement());
+        System.out.println("sentences: " + corpus.getNumSentences());
+        System.out.println("tokens: " + corpus.getNumTokens());
+        System.out.println("distinct tokens: " + corpus.getNumTokenIds());
+        return;
+      }
+
+      final Function<Sentences, String> rule;
+      try {
+        rule = corpus.createRule(args[2], args[3],
+            args.length == 5 && Boolean.parseBoolean(args[4]));
+      } catch (final IllegalArgumentException e) {
+        System.err.println(e.getMessage());
+        printHelp(System.err);
+        System.exit(1);
+        return;
+      }
+
+      final long start = System.nanoTime();
+      try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+          args[1].equals(PasswordGenerationRules.STANDARD_STREAM)
+          ? new FileOutputStream(FileDescriptor.out)
+          : new FileOutputStream(args[1]), StandardCharsets.UTF_8),
+          1 << 20)) {
+        final Sentences sentences = corpus.getSentences();
+        while (sentences.next()) {
+          writer.write(rule.apply(sentences));
+          writer.write('\n');
+        }
+      }
+      System.err.println(String.format(Locale.ROOT,
+          "Generated %d passwords (%.1f s)", corpus.getNumSentences(),
+          (System.nanoTime() - start) / 1e9));
+    }
+  }
+
+}
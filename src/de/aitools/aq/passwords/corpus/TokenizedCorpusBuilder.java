@@ -0,0 +1,225 @@
+package de.aitools.aq.passwords.corpus;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import de.aitools.aq.passwords.PasswordGenerationRules;
+import de.aitools.aq.passwords.StagedRule;
+import de.aitools.aq.passwords.index.VarInts;
+import de.aitools.aq.passwords.rules.CharacterSets;
+import de.aitools.aq.passwords.rules.TokenReplacements;
+import de.aitools.aq.passwords.util.LineReader;
+import de.aitools.aq.passwords.util.Manifest;
+
+/**
+ * Builds a {@link TokenizedCorpus}: converts each input line to a character
+ * set, tokenizes it, and replaces the tokens once, and stores the resulting
+ * tokens as IDs of a dictionary.
+ * <p>
+ * Token IDs are assigned in the order in which the tokens first occur, so
+ * that frequent tokens usually get small IDs with short encodings. The
+ * sentences are written to a temporary file next to the corpus while they
+ * are added and the dictionary when the corpus is built.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class TokenizedCorpusBuilder {
+
+  private final File corpusFile;
+
+  private final File temporaryFile;
+
+  private final String characterSet;
+
+  private final String replacement;
+
+  private final StagedRule rule;
+
+  private final FileOutputStream fileOutput;
+
+  private final DataOutputStream output;
+
+  private final Map<String, Integer> ids;
+
+  private final List<String> tokens;
+
+  private long[] counts;
+
+  private long numSentences;
+
+  private long numTokens;
+
+  /**
+   * Creates a new builder.
+   * @param corpusFile The file to write the corpus to
+   * @param characterSet Configuration parameter for the character set (see
+   * {@link CharacterSets#getConverter(String)})
+   * @param replacement Configuration parameter for the token replacements (see
+   * {@link TokenReplacements#getListReplacer(String)})
+   * @throws IOException If the temporary file can not be created
+   * @throws NullPointerException If one of the parameters is <tt>null</tt>
+   * @throws IllegalArgumentException If one of the parameters has an illegal
+   * value
+   */
+  public TokenizedCorpusBuilder(final File corpusFile,
+      final String characterSet, final String replacement)
+  throws IOException, NullPointerException, IllegalArgumentException {
+    if (corpusFile == null) { throw new NullPointerException(); }
+    this.rule = new StagedRule(
+        characterSet, replacement, "every", "1st", false, true);
+    this.corpusFile = corpusFile;
+    this.temporaryFile = new File(corpusFile.getPath() + ".tmp");
+    this.characterSet = characterSet;
+    this.replacement = replacement;
+    this.fileOutput = new FileOutputStream(this.temporaryFile);
+    this.output = new DataOutputStream(
+        new BufferedOutputStream(this.fileOutput, 1 << 16));
+    this.output.writeInt(TokenizedCorpus.MAGIC);
+    this.output.writeInt(TokenizedCorpus.VERSION);
+    this.ids = new HashMap<>();
+    this.tokens = new ArrayList<>();
+    this.counts = new long[1024];
+    this.numSentences = 0;
+    this.numTokens = 0;
+  }
+
+  /**
+   * Adds a sentence.
+   * @param mnemonic The sentence as in the input of
+   * {@link PasswordGenerationRules}
+   * @throws IOException If writing failed
+   */
+  public void add(final String mnemonic) throws IOException {
+    final List<String> sentence = this.rule.getReplacedTokens(mnemonic);
+    VarInts.write(this.output, sentence.size());
+    for (final String token : sentence) {
+      Integer id = this.ids.get(token);
+      if (id == null) {
+        id = this.tokens.size();
+        this.ids.put(token, id);
+        this.tokens.add(token);
+        if (id == this.counts.length) {
+          this.counts = Arrays.copyOf(this.counts, 2 * this.counts.length);
+        }
+      }
+      ++this.counts[id];
+      VarInts.write(this.output, id);
+    }
+    this.numTokens += sentence.size();
+    ++this.numSentences;
+  }
+
+  /**
+   * Adds each line of a file, or of each file in a directory (in the order of
+   * {@link Manifest#listFiles(File)}), as a sentence.
+   * @param file The file or directory
+   * @return The number of lines added
+   * @throws IOException If reading or writing failed
+   */
+  public long addLines(final File file) throws IOException {
+    if (file.isDirectory()) {
+      long lines = 0;
+      for (final File child : Manifest.listFiles(file).values()) {
+        lines += this.addLines(child);
+      }
+      return lines;
+    }
+    long lines = 0;
+    try (final LineReader reader =
+        new LineReader(new FileInputStream(file), 0)) {
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        this.add(line);
+        ++lines;
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Writes the dictionary and moves the corpus to its file. The builder can
+   * not be used afterwards.
+   * @return The number of distinct tokens
+   * @throws IOException If writing failed
+   */
+  public int build() throws IOException {
+    this.output.flush();
+    final long dictionaryOffset = this.fileOutput.getChannel().position();
+    TokenizedCorpus.writeString(this.output, this.characterSet);
+    TokenizedCorpus.writeString(this.output, this.replacement);
+    this.output.writeLong(this.numSentences);
+    this.output.writeLong(this.numTokens);
+    this.output.writeInt(this.tokens.size());
+    for (int id = 0; id < this.tokens.size(); ++id) {
+      TokenizedCorpus.writeString(this.output, this.tokens.get(id));
+      this.output.writeLong(this.counts[id]);
+    }
+    this.output.writeLong(dictionaryOffset);
+    this.output.writeInt(TokenizedCorpus.MAGIC);
+    this.output.close();
+    Files.move(this.temporaryFile.toPath(), this.corpusFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    return this.tokens.size();
+  }
+
+  public static void printHelp(final PrintStream out) {
+    out.println("Usage:");
+    out.println("  <corpus> <character set> <replacement> <input>"
+        + " [<input> ...]");
+    out.println("Where:");
+    out.println("  <corpus>");
+    out.println("    The corpus file to write.");
+    out.println("  <character set>, <replacement>");
+    out.println("    As for PasswordGenerationRules. The sentences are");
+    out.println("    converted, tokenized, and replaced once, so that rules");
+    out.println("    with any <word> and <character position> can then be");
+    out.println("    applied to the corpus (see TokenizedCorpus).");
+    out.println("  <input>");
+    out.println("    A file with one sentence per line or a directory of");
+    out.println("    such files.");
+  }
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 4) {
+      printHelp(System.err);
+      System.exit(1);
+    }
+    final TokenizedCorpusBuilder builder;
+    try {
+      builder = new TokenizedCorpusBuilder(new File(args[0]), args[1], args[2]);
+    } catch (final IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      printHelp(System.err);
+      System.exit(1);
+      return;
+    }
+
+    final long start = System.nanoTime();
+    long lines = 0;
+    for (int i = 3; i < args.length; ++i) {
+      lines += builder.addLines(new File(args[i]));
+    }
+    final int numTypes = builder.build();
+    System.err.println(String.format(Locale.ROOT,
+        "Tokenized %d sentences with %d tokens (%d distinct) to %.1f MB"
+        + " (%.1f s)",
+        lines, builder.numTokens, numTypes,
+        new File(args[0]).length() / 1024.0 / 1024.0,
+        (System.nanoTime() - start) / 1e9));
+  }
+
+}
@@ -0,0 +1,628 @@
+package de.aitools.aq.passwords.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A sorted, block-compressed index of passwords with their counts (see
+ * {@link PasswordIndexBuilder}) that answers point lookups and prefix
+ * queries. An index can also contain the sources of each password: the file
+ * and byte offset of each input line that produced it.
+ * <p>
+ * The passwords are stored in ascending order (of {@link String#compareTo})
+ * in deflate-compressed blocks. Within a block, each password is stored as the
+ * number of UTF-8 bytes it shares with the previous one and the remaining
+ * bytes (front coding). The first password of each block is kept in memory,
+ * so a query decompresses a single block of the memory-mapped file. The
+ * last decompressed block is cached.
+ * </p><p>
+ * Sources are stored uncompressed in a separate region after the blocks, as
+ * differences of file ID and offset (file ID in the upper bits) in ascending
+ * order. A block only contains the number of bytes of the sources of each of
+ * its passwords, so that its size does not depend on the number of sources
+ * and a query for sources reads only the requested ones.
+ * </p><p>
+ * File format (big-endian, integers marked with * are {@link VarInts}):
+ * </p>
+ * <pre>
+ * header:  int magic, int version
+ * blocks:  deflate(for each password: *shared, *suffix length, suffix,
+ *            *count, [if sources: *sources length])
+ * sources: for each password: count times *source difference
+ * index:   int length, configuration, boolean sources, int files,
+ *          for each file: int length, name,
+ *          long passwords, long total count, long sources offset,
+ *          int blocks, for each block: long offset, int compressed length,
+ *          int length, int passwords, [if sources: long sources offset
+ *          relative to the sources region], int length, first password
+ * footer:  long index offset, int magic
+ * </pre>
+ * <p>
+ * Indexes of version 1 and indexes without sources of version 2 can also be
+ * read.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class PasswordIndex implements Closeable {
+
+  /**
+   * Command line option for querying prefixes instead of passwords.
+   */
+  public static final String OPTION_PREFIX = "--prefix";
+
+  /**
+   * Command line option for the maximum number of passwords per prefix query.
+   */
+  public static final String OPTION_LIMIT = "--limit";
+
+  /**
+   * Command line option for printing the statistics of the index.
+   */
+  public static final String OPTION_INFO = "--info";
+
+  /**
+   * Command line option for printing the sources of passwords instead of
+   * their counts.
+   */
+  public static final String OPTION_SOURCES = "--sources";
+
+  static final int MAGIC = 0x50574958; // "PWIX"
+
+  static final int VERSION = 3;
+
+  /**
+   * Number of bits of a source for the byte offset in the file.
+   */
+  static final int OFFSET_BITS = 40;
+
+  static final int HEADER_SIZE = 8;
+
+  private static final int FOOTER_SIZE = 12;
+
+  private static final int DEFAULT_LIMIT = 100;
+
+  /**
+   * Maximum number of bytes of sources that are read at once.
+   */
+  private static final int SOURCES_BUFFER_SIZE = 1 << 16;
+
+  private final RandomAccessFile file;
+
+  private final String configuration;
+
+  private final boolean withSources;
+
+  private final String[] files;
+
+  /**
+   * The offset of the sources region in the file.
+   */
+  private final long sourcesOffset;
+
+  private final long numPasswords;
+
+  private final long totalCount;
+
+  private final String[] firstPasswords;
+
+  private final int[] blockSegments;
+
+  private final int[] blockPositions;
+
+  private final int[] compressedLengths;
+
+  private final int[] lengths;
+
+  private final int[] numBlockPasswords;
+
+  private final long[] blockSourcesOffsets;
+
+  private final MappedByteBuffer[] segments;
+
+  private final Inflater inflater;
+
+  private int cachedBlock;
+
+  private String[] cachedPasswords;
+
+  private long[] cachedCounts;
+
+  private long[] cachedSourcesOffsets;
+
+  private long[] cachedSourcesLengths;
+
+  /**
+   * Opens an index.
+   * @param indexFile The index file
+   * @throws IOException If the file can not be read or is not a valid index
+   */
+  public PasswordIndex(final File indexFile) throws IOException {
+    this.file = new RandomAccessFile(indexFile, "r");
+    try {
+      final FileChannel channel = this.file.getChannel();
+      final long size = channel.size();
+      if (size < HEADER_SIZE + FOOTER_SIZE) {
+        throw new IOException("Not a password index: " + indexFile);
+      }
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      channel.read(header, 0);
+      final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+      channel.read(footer, size - FOOTER_SIZE);
+      if (header.getInt(0) != MAGIC || footer.getInt(8) != MAGIC) {
+        throw new IOException("Not a password index: " + indexFile);
+      }
+      final int version = header.getInt(4);
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Unsupported version " + version
+            + " of password index: " + indexFile);
+      }
+      final long indexOffset = footer.getLong(0);
+
+      channel.position(indexOffset);
+      final DataInputStream index = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(channel)));
+      this.configuration = PasswordIndex.readString(index);
+      if (version >= 2) {
+        this.withSources = index.readBoolean();
+        this.files = new String[index.readInt()];
+        for (int f = 0; f < this.files.length; ++f) {
+          this.files[f] = PasswordIndex.readString(index);
+        }
+      } else {
+        this.withSources = false;
+        this.files = new String[0];
+      }
+      if (this.withSources && version < 3) {
+        throw new IOException("Unsupported sources of version " + version
+            + " of password index (rebuild it): " + indexFile);
+      }
+      this.numPasswords = index.readLong();
+      this.totalCount = index.readLong();
+      this.sourcesOffset = version >= 3 ? index.readLong() : indexOffset;
+      final int numBlocks = index.readInt();
+      final long[] offsets = new long[numBlocks];
+      this.firstPasswords = new String[numBlocks];
+      this.compressedLengths = new int[numBlocks];
+      this.lengths = new int[numBlocks];
+      this.numBlockPasswords = new int[numBlocks];
+      this.blockSourcesOffsets = this.withSources ? new long[numBlocks] : null;
+      for (int b = 0; b < numBlocks; ++b) {
+        offsets[b] = index.readLong();
+        this.compressedLengths[b] = index.readInt();
+        this.lengths[b] = index.readInt();
+        this.numBlockPasswords[b] = index.readInt();
+        if (this.withSources) {
+          this.blockSourcesOffsets[b] = index.readLong();
+        }
+        this.firstPasswords[b] = PasswordIndex.readString(index);
+      }
+
+      // map the blocks in segments of at most 2 GB that do not split blocks
+      this.blockSegments = new int[numBlocks];
+      this.blockPositions = new int[numBlocks];
+      final List<MappedByteBuffer> segments = new ArrayList<>();
+      long segmentStart = HEADER_SIZE;
+      for (int b = 0; b < numBlocks; ++b) {
+        if (offsets[b] + this.compressedLengths[b] - segmentStart
+            > Integer.MAX_VALUE) {
+          segments.add(channel.map(FileChannel.MapMode.READ_ONLY,
+              segmentStart, offsets[b] - segmentStart));
+          segmentStart = offsets[b];
+        }
+        this.blockSegments[b] = segments.size();
+        this.blockPositions[b] = (int) (offsets[b] - segmentStart);
+      }
+      segments.add(channel.map(FileChannel.MapMode.READ_ONLY,
+          segmentStart, this.sourcesOffset - segmentStart));
+      this.segments = segments.toArray(new MappedByteBuffer[segments.size()]);
+    } catch (final IOException | RuntimeException e) {
+      this.file.close();
+      throw e;
+    }
+    this.inflater = new Inflater();
+    this.cachedBlock = -1;
+    this.cachedPasswords = null;
+    this.cachedCounts = null;
+    this.cachedSourcesOffsets = null;
+    this.cachedSourcesLengths = null;
+  }
+
+  private static String readString(final DataInputStream input)
+  throws IOException {
+    final byte[] bytes = new byte[input.readInt()];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return The configuration of the passwords as given when building the
+   * index
+   */
+  public String getConfiguration() {
+    return this.configuration;
+  }
+
+  /**
+   * @return The number of distinct passwords in the index
+   */
+  public long getNumPasswords() {
+    return this.numPasswords;
+  }
+
+  /**
+   * @return The sum of the counts of all passwords in the index
+   */
+  public long getTotalCount() {
+    return this.totalCount;
+  }
+
+  public int getNumBlocks() {
+    return this.firstPasswords.length;
+  }
+
+  /**
+   * @return Whether the index contains the sources of the passwords
+   */
+  public boolean hasSources() {
+    return this.withSources;
+  }
+
+  /**
+   * Gets the count of a password.
+   * @param password The password
+   * @return The count, which is 0 if the password is not in the index
+   * @throws IOException If the block of the password is corrupt
+   */
+  public synchronized long getCount(final String password)
+  throws IOException {
+    final int block = this.findBlock(password);
+    if (block < 0) { return 0; }
+    this.load(block);
+    final int position = Arrays.binarySearch(this.cachedPasswords, password);
+    return position < 0 ? 0 : this.cachedCounts[position];
+  }
+
+  /**
+   * Checks whether a password is in the index.
+   * @param password The password
+   * @return Whether it is
+   * @throws IOException If the block of the password is corrupt
+   */
+  public boolean contains(final String password) throws IOException {
+    return this.getCount(password) > 0;
+  }
+
+  /**
+   * Gets the sources of a password.
+   * @param password The password
+   * @param maxSources The maximum number of sources to get
+   * @return The first sources of the password in ascending order of file
+   * and offset, which is empty if the password is not in the index
+   * @throws IOException If the block of the password is corrupt
+   * @throws IllegalStateException If the index contains no sources
+   */
+  public synchronized List<Source> getSources(
+      final String password, final int maxSources)
+  throws IOException, IllegalStateException {
+    if (!this.withSources) {
+      throw new IllegalStateException("The index contains no sources");
+    }
+    final List<Source> sources = new ArrayList<>();
+    final int block = this.findBlock(password);
+    if (block < 0) { return sources; }
+    this.load(block);
+    final int position = Arrays.binarySearch(this.cachedPasswords, password);
+    if (position < 0) { return sources; }
+    final long numSources =
+        Math.min(maxSources, this.cachedCounts[position]);
+    long offset = this.cachedSourcesOffsets[position];
+    final long end = offset + this.cachedSourcesLengths[position];
+    final ByteBuffer input = ByteBuffer.allocate(
+        (int) Math.min(SOURCES_BUFFER_SIZE, end - offset));
+    input.limit(0);
+    long source = 0;
+    for (long s = 0; s < numSources; ++s) {
+      if (input.remaining() < VarInts.MAX_BYTES && offset < end) {
+        // refill the buffer with the next bytes of the sources
+        input.compact();
+        input.limit((int) Math.min(input.capacity(),
+            input.position() + (end - offset)));
+        while (input.hasRemaining()) {
+          final int read = this.file.getChannel().read(input, offset);
+          if (read < 0) {
+            throw new IOException("Truncated sources of " + password);
+          }
+          offset += read;
+        }
+        input.flip();
+      }
+      source += VarInts.read(input);
+      sources.add(new Source(this.files[(int) (source >>> OFFSET_BITS)],
+          source & ((1L << OFFSET_BITS) - 1)));
+    }
+    return sources;
+  }
+
+  /**
+   * Gets the passwords that start with a prefix with their counts.
+   * @param prefix The prefix
+   * @param maxPasswords The maximum number of passwords to get
+   * @return Map from the first passwords with that prefix in ascending order
+   * to their counts
+   * @throws IOException If a block is corrupt
+   */
+  public synchronized Map<String, Long> getWithPrefix(
+      final String prefix, final int maxPasswords)
+  throws IOException {
+    final Map<String, Long> passwords = new LinkedHashMap<>();
+    if (this.firstPasswords.length == 0) { return passwords; }
+    int block = Math.max(0, this.findBlock(prefix));
+    this.load(block);
+    int position = Arrays.binarySearch(this.cachedPasswords, prefix);
+    if (position < 0) {
+      position = -position - 1;
+    }
+    while (passwords.size() < maxPasswords) {
+      if (position == this.cachedPasswords.length) {
+        ++block;
+        if (block == this.firstPasswords.length) { break; }
+        this.load(block);
+        position = 0;
+      }
+      final String password = this.cachedPasswords[position];
+      if (!password.startsWith(prefix)) { break; }
+      passwords.put(password, this.cachedCounts[position]);
+      ++position;
+    }
+    return passwords;
+  }
+
+  /**
+   * @return The index of the last block whose first password is not greater
+   * than the password, or -1 if there is none
+   */
+  private int findBlock(final String password) {
+    final int block = Arrays.binarySearch(this.firstPasswords, password);
+    return block >= 0 ? block : -block - 2;
+  }
+
+  private void load(final int block) throws IOException {
+    if (block == this.cachedBlock) { return; }
+    final ByteBuffer segment = this.segments[this.blockSegments[block]];
+    final byte[] compressed = new byte[this.compressedLengths[block]];
+    final ByteBuffer view = segment.duplicate();
+    view.position(this.blockPositions[block]);
+    view.get(compressed);
+
+    final byte[] raw = new byte[this.lengths[block]];
+    this.inflater.reset();
+    this.inflater.setInput(compressed);
+    try {
+      int length = 0;
+      while (length < raw.length && !this.inflater.finished()) {
+        length += this.inflater.inflate(raw, length, raw.length - length);
+      }
+      if (length != raw.length) {
+        throw new IOException("Truncated block " + block);
+      }
+    } catch (final DataFormatException e) {
+      throw new IOException("Corrupt block " + block, e);
+    }
+
+    final int numPasswords = this.numBlockPasswords[block];
+    final String[] passwords = new String[numPasswords];
+    final long[] counts = new long[numPasswords];
+    final long[] sourcesOffsets =
+        this.withSources ? new long[numPasswords] : null;
+    final long[] sourcesLengths =
+        this.withSources ? new long[numPasswords] : null;
+    long sourcesOffset = this.withSources
+        ? this.sourcesOffset + this.blockSourcesOffsets[block] : 0;
+    final ByteBuffer input = ByteBuffer.wrap(raw);
+    byte[] previous = new byte[64];
+    for (int p = 0; p < numPasswords; ++p) {
+      final int shared = (int) VarInts.read(input);
+      final int suffixLength = (int) VarInts.read(input);
+      final int length = shared + suffixLength;
+      if (length > previous.length) {
+        previous =
+            Arrays.copyOf(previous, Math.max(length, previous.length * 2));
+      }
+      input.get(previous, shared, suffixLength);
+      passwords[p] = new String(previous, 0, length, StandardCharsets.UTF_8);
+      counts[p] = VarInts.read(input);
+      if (this.withSources) {
+        sourcesOffsets[p] = sourcesOffset;
+        sourcesLengths[p] = VarInts.read(input);
+        sourcesOffset += sourcesLengths[p];
+      }
+    }
+    this.cachedPasswords = passwords;
+    this.cachedCounts = counts;
+    this.cachedSourcesOffsets = sourcesOffsets;
+    this.cachedSourcesLengths = sourcesLengths;
+    this.cachedBlock = block;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    this.inflater.end();
+    this.file.close();
+  }
+
+  /**
+   * The location of an input line that produced a password.
+   */
+  public static class Source {
+
+    private final String file;
+
+    private final long offset;
+
+    /**
+     * Creates a new source.
+     * @param file The name of the input file
+     * @param offset The byte offset of the line in the file
+     */
+    public Source(final String file, final long offset) {
+      this.file = file;
+      this.offset = offset;
+    }
+
+    public String getFile() {
+      return this.file;
+    }
+
+    public long getOffset() {
+      return this.offset;
+    }
+
+    @Override
+    public String toString() {
+      return this.file + "\t" + this.offset;
+    }
+
+  }
+
+  public static void printHelp(final PrintStream out) {
+    out.println("Usage:");
+    out.println("  [<options>] <index> [<query> ...]");
+    out.println("Where:");
+    out.println("  <index>");
+    out.println("    An index file written by PasswordIndexBuilder.");
+    out.println("  <query>");
+    out.println("    A password to look up. Prints the password and its");
+    out.println("    count (0 if not in the index) separated by a tab. If no");
+    out.println("    query is given, reads one query per line from the");
+    out.println("    standard input.");
+    out.println("Options:");
+    out.println("  " + OPTION_PREFIX);
+    out.println("    Queries are prefixes: print all passwords starting with");
+    out.println("    them and their counts in ascending order.");
+    out.println("  " + OPTION_LIMIT + " <number>");
+    out.println("    Maximum number of passwords per prefix (default: "
+        + DEFAULT_LIMIT + ").");
+    out.println("  " + OPTION_SOURCES);
+    out.println("    Print the password, the file, and the byte offset of");
+    out.println("    the input line separated by tabs for each source of the");
+    out.println("    password (at most " + OPTION_LIMIT
+        + "; requires an index with sources).");
+    out.println("  " + OPTION_INFO);
+    out.println("    Print the configuration, whether the index has sources,");
+    out.println("    the number of distinct passwords, the total count, and");
+    out.println("    the number of blocks to the standard error output.");
+  }
+
+  public static void main(final String[] args) throws IOException {
+    boolean prefix = false;
+    int limit = DEFAULT_LIMIT;
+    boolean info = false;
+    boolean sources = false;
+    int a = 0;
+    try {
+      for (; a < args.length && args[a].startsWith("--"); ++a) {
+        switch (args[a]) {
+        case OPTION_PREFIX:
+          prefix = true;
+          break;
+        case OPTION_LIMIT:
+          if (a + 1 >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[a]);
+          }
+          limit = Integer.parseInt(args[++a]);
+          break;
+        case OPTION_INFO:
+          info = true;
+          break;
+        case OPTION_SOURCES:
+          sources = true;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[a]);
+        }
+      }
+      if (args.length - a < 1) {
+        printHelp(System.err);
+        System.exit(1);
+      }
+      if (prefix && sources) {
+        throw new IllegalArgumentException(OPTION_PREFIX
+            + " can not be combined with " + OPTION_SOURCES);
+      }
+    } catch (final IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      printHelp(System.err);
+      System.exit(1);
+      return;
+    }
+
+    try (final PasswordIndex index = new PasswordIndex(new File(args[a]))) {
+      if (sources && !index.hasSources()) {
+        System.err.println("The index contains no sources: " + args[a]);
+        System.exit(1);
+      }
+      if (info) {
+        System.err.println(String.format(Locale.ROOT,
+            "configuration: %s%nsources: %b%npasswords: %d%n"
+            + "total count: %d%nblocks: %d",
+            index.getConfiguration(), index.hasSources(),
+            index.getNumPasswords(),
+            index.getTotalCount(), index.getNumBlocks()));
+      }
+      final PrintStream out = new PrintStream(System.out, false, "UTF-8");
+      if (args.length - a > 1) {
+        for (int q = a + 1; q < args.length; ++q) {
+          PasswordIndex.query(index, args[q], prefix, sources, limit, out);
+        }
+      } else if (!info) {
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String query = null;
+        while ((query = reader.readLine()) != null) {
+          PasswordIndex.query(index, query, prefix, sources, limit, out);
+        }
+      }
+      out.flush();
+    }
+  }
+
+  private static void query(final PasswordIndex index, final String query,
+      final boolean prefix, final boolean sources, final int limit,
+      final PrintStream out)
+  throws IOException {
+    if (sources) {
+      for (final Source source : index.getSources(query, limit)) {
+        out.println(query + "\t" + source);
+      }
+    } else if (prefix) {
+      for (final Map.Entry<String, Long> password
+          : index.getWithPrefix(query, limit).entrySet()) {
+        out.println(password.getKey() + "\t" + password.getValue());
+      }
+    } else {
+      out.println(query + "\t" + index.getCount(query));
+    }
+  }
+
+}
@@ -0,0 +1,864 @@
+package de.aitools.aq.passwords.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+
+import de.aitools.aq.passwords.stats.LongLongHashMap;
+import de.aitools.aq.passwords.stats.PackedPasswords;
+import de.aitools.aq.passwords.util.LineReader;
+import de.aitools.aq.passwords.util.Manifest;
+
+/**
+ * Builds a {@link PasswordIndex} from passwords and their counts, or from
+ * passwords and their sources (file and byte offset of the input line).
+ * <p>
+ * Passwords are counted (and their sources collected) in memory. When the
+ * counts exceed the memory limit, they are written sorted to a temporary run
+ * file next to the index. The runs are merged when the index is written,
+ * reading the sources of each password one by one, and the merged sources
+ * are written to a temporary file that becomes the sources region of the
+ * index.
+ * </p><p>
+ * Passwords with counts that {@link PackedPasswords} can pack (like short
+ * passwords of the <tt>lowercase-letters</tt> character set) are counted in
+ * a {@link LongLongHashMap}, which needs about a quarter of the memory of
+ * the map of strings used for the other passwords and for sources.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class PasswordIndexBuilder {
+
+  /**
+   * Command line option for the configuration to store in the index.
+   */
+  public static final String OPTION_CONFIGURATION = "--configuration";
+
+  /**
+   * Command line option for the maximum number of passwords per block.
+   */
+  public static final String OPTION_BLOCK_SIZE = "--block-size";
+
+  /**
+   * Command line option for the memory for counting in megabytes.
+   */
+  public static final String OPTION_MEMORY = "--memory";
+
+  /**
+   * Command line option for building an index of the sources of passwords.
+   */
+  public static final String OPTION_SOURCES = "--sources";
+
+  /**
+   * The default maximum number of passwords per block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 128;
+
+  /**
+   * The default memory for counting in megabytes.
+   */
+  public static final int DEFAULT_MEMORY = 256;
+
+  /**
+   * Blocks are also ended when their uncompressed size reaches this number of
+   * bytes, so that decoding a block stays fast for long passwords.
+   */
+  private static final int MAX_BLOCK_BYTES = 1 << 16;
+
+  /**
+   * Estimated memory of a counted password besides its characters (map entry,
+   * string, and counter).
+   */
+  private static final int ENTRY_OVERHEAD = 100;
+
+  /**
+   * Estimated memory of a counted packed password (two <tt>long</tt> slots in
+   * arrays that are between three eighths and three quarters full).
+   */
+  private static final int PACKED_ENTRY_OVERHEAD = 32;
+
+  /**
+   * Maximum number of source files.
+   */
+  private static final int MAX_FILES = 1 << (63 - PasswordIndex.OFFSET_BITS);
+
+  /**
+   * Maximum number of sources of a password in memory, after which the
+   * sources are written to a run file.
+   */
+  private static final int MAX_SOURCES = Integer.MAX_VALUE - 8;
+
+  private final File indexFile;
+
+  private final String configuration;
+
+  private final int blockSize;
+
+  private final long maxMemory;
+
+  private final boolean withSources;
+
+  private final Map<String, Integer> fileIds;
+
+  private final List<String> files;
+
+  private final Map<String, Postings> counts;
+
+  private final LongLongHashMap packedCounts;
+
+  private long memory;
+
+  private final List<File> runs;
+
+  /**
+   * Creates a new builder.
+   * @param indexFile The file to write the index to
+   * @param configuration The configuration of the passwords to store in the
+   * index
+   * @param blockSize The maximum number of passwords per block
+   * @param maxMemory The memory for counting in bytes
+   * @param withSources Whether passwords are added with their sources
+   * ({@link #add(String, String, long)}) instead of with counts
+   * ({@link #add(String, long)})
+   * @throws NullPointerException If the file or configuration is
+   * <tt>null</tt>
+   * @throws IllegalArgumentException If block size or memory are not
+   * positive
+   */
+  public PasswordIndexBuilder(final File indexFile,
+      final String configuration, final int blockSize, final long maxMemory,
+      final boolean withSources)
+  throws NullPointerException, IllegalArgumentException {
+    if (indexFile == null) { throw new NullPointerException(); }
+    if (configuration == null) { throw new NullPointerException(); }
+    if (blockSize < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive block size: " + blockSize);
+    }
+    if (maxMemory < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive memory: " + maxMemory);
+    }
+    this.indexFile = indexFile;
+    this.configuration = configuration;
+    this.blockSize = blockSize;
+    this.maxMemory = maxMemory;
+    this.withSources = withSources;
+    this.fileIds = new HashMap<>();
+    this.files = new ArrayList<>();
+    this.counts = new HashMap<>();
+    this.packedCounts = new LongLongHashMap();
+    this.memory = 0;
+    this.runs = new ArrayList<>();
+  }
+
+  /**
+   * Adds occurrences of a password.
+   * @param password The password
+   * @param count The number of occurrences
+   * @throws IOException If the counts had to be written to a run file and
+   * writing failed
+   * @throws IllegalStateException If this builder is for sources
+   */
+  public void add(final String password, final long count)
+  throws IOException, IllegalStateException {
+    if (this.withSources) {
+      throw new IllegalStateException("Passwords need a source");
+    }
+    final long packed = PackedPasswords.pack(password);
+    if (packed != PackedPasswords.NOT_PACKABLE) {
+      final int numPacked = this.packedCounts.size();
+      this.packedCounts.addTo(packed, count);
+      if (this.packedCounts.size() > numPacked) {
+        this.memory += PACKED_ENTRY_OVERHEAD;
+      }
+    } else {
+      this.getPostings(password).count += count;
+    }
+    if (this.memory >= this.maxMemory) {
+      this.writeRun();
+    }
+  }
+
+  /**
+   * Adds one occurrence of a password with its source.
+   * @param password The password
+   * @param file The name of the file of the input line
+   * @param offset The byte offset of the input line in the file
+   * @throws IOException If the sources had to be written to a run file and
+   * writing failed
+   * @throws IllegalArgumentException If the offset is negative or too large
+   * or there are too many files
+   * @throws IllegalStateException If this builder is not for sources
+   */
+  public void add(final String password, final String file, final long offset)
+  throws IOException, IllegalArgumentException, IllegalStateException {
+    if (!this.withSources) {
+      throw new IllegalStateException("Passwords need a count");
+    }
+    if (offset < 0 || offset >= 1L << PasswordIndex.OFFSET_BITS) {
+      throw new IllegalArgumentException("Invalid offset: " + offset);
+    }
+    Integer fileId = this.fileIds.get(file);
+    if (fileId == null) {
+      if (this.files.size() == MAX_FILES) {
+        throw new IllegalArgumentException("Too many files: " + file);
+      }
+      fileId = this.files.size();
+      this.fileIds.put(file, fileId);
+      this.files.add(file);
+    }
+    final Postings postings = this.getPostings(password);
+    postings.add(((long) fileId << PasswordIndex.OFFSET_BITS) | offset);
+    this.memory += Long.BYTES;
+    if (this.memory >= this.maxMemory || postings.count == MAX_SOURCES) {
+      this.writeRun();
+    }
+  }
+
+  private Postings getPostings(final String password) {
+    Postings postings = this.counts.get(password);
+    if (postings == null) {
+      postings = new Postings();
+      this.counts.put(password, postings);
+      this.memory += ENTRY_OVERHEAD + 2L * password.length();
+    }
+    return postings;
+  }
+
+  /**
+   * Adds one occurrence of the password on each line of a file (for a
+   * builder with counts) or the password and source on each line (for a
+   * builder with sources, as tab-separated password, file, and offset).
+   * @param file The file, or a directory in which case all files in it are
+   * added
+   * @return The number of added lines
+   * @throws IOException If reading failed or the counts had to be written to
+   * a run file and writing failed
+   * @throws IllegalArgumentException If a line is not a valid source
+   */
+  public long addLines(final File file) throws IOException {
+    if (file.isDirectory()) {
+      long lines = 0;
+      for (final File child : Manifest.listFiles(file).values()) {
+        lines += this.addLines(child);
+      }
+      return lines;
+    }
+    long lines = 0;
+    try (final LineReader reader =
+        new LineReader(new FileInputStream(file), 0)) {
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        if (this.withSources) {
+          final int passwordEnd = line.indexOf('\t');
+          final int fileEnd = line.lastIndexOf('\t');
+          if (passwordEnd == fileEnd) {
+            throw new IllegalArgumentException(
+                "Invalid source in " + file + ": " + line);
+          }
+          this.add(line.substring(0, passwordEnd),
+              line.substring(passwordEnd + 1, fileEnd),
+              Long.parseLong(line.substring(fileEnd + 1)));
+        } else {
+          this.add(line, 1);
+        }
+        ++lines;
+      }
+    }
+    return lines;
+  }
+
+  private void writeRun() throws IOException {
+    final File run = File.createTempFile(
+        this.indexFile.getName() + ".", ".run",
+        this.indexFile.getAbsoluteFile().getParentFile());
+    run.deleteOnExit();
+    this.runs.add(run);
+    try (final DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+      final Run sorted = new MemoryRun(this.counts, this.packedCounts);
+      while (sorted.next()) {
+        final byte[] bytes = sorted.password.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+        output.writeLong(sorted.count);
+        if (this.withSources) {
+          for (long s = 0; s < sorted.count; ++s) {
+            output.writeLong(sorted.nextSource());
+          }
+        }
+      }
+    }
+    this.counts.clear();
+    this.packedCounts.clear();
+    this.memory = 0;
+  }
+
+  /**
+   * Writes the index file and deletes the run files. The builder should not
+   * be used afterwards.
+   * @return The number of distinct passwords in the index
+   * @throws IOException If reading the runs or writing the index failed
+   */
+  public long build() throws IOException {
+    final List<Run> sources = new ArrayList<>();
+    try {
+      for (final File run : this.runs) {
+        sources.add(new FileRun(run, this.withSources));
+      }
+      sources.add(new MemoryRun(this.counts, this.packedCounts));
+
+      final PriorityQueue<Run> queue = new PriorityQueue<>(
+          (one, two) -> one.password.compareTo(two.password));
+      for (final Run source : sources) {
+        if (source.next()) {
+          queue.add(source);
+        }
+      }
+
+      final File temporary =
+          new File(this.indexFile.getPath() + ".tmp");
+      final long numPasswords;
+      try (final BlockWriter writer = new BlockWriter(temporary)) {
+        final List<Run> same = new ArrayList<>();
+        while (!queue.isEmpty()) {
+          final String password = queue.peek().password;
+          same.clear();
+          while (!queue.isEmpty() && queue.peek().password.equals(password)) {
+            same.add(queue.poll());
+          }
+          writer.write(password, same);
+          for (final Run run : same) {
+            if (run.next()) {
+              queue.add(run);
+            }
+          }
+        }
+        numPasswords = writer.numPasswords;
+      }
+      Files.move(temporary.toPath(), this.indexFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      return numPasswords;
+    } finally {
+      for (final Run source : sources) {
+        source.close();
+      }
+      for (final File run : this.runs) {
+        Files.deleteIfExists(run.toPath());
+      }
+      this.runs.clear();
+      this.counts.clear();
+      this.packedCounts.clear();
+    }
+  }
+
+  /**
+   * The count of a password and, for a builder with sources, its sources as
+   * file ID (upper bits) and offset (lower bits).
+   */
+  private static class Postings {
+
+    private long count;
+
+    private long[] sources;
+
+    private Postings() {
+      this.count = 0;
+      this.sources = null;
+    }
+
+    private void add(final long source) {
+      if (this.sources == null) {
+        this.sources = new long[1];
+      } else if (this.count == this.sources.length) {
+        this.sources = Arrays.copyOf(this.sources,
+            (int) Math.min(2L * this.sources.length, MAX_SOURCES));
+      }
+      this.sources[(int) this.count++] = source;
+    }
+
+  }
+
+  /**
+   * Passwords with their counts (and sources) in ascending order of the
+   * passwords.
+   */
+  private static abstract class Run {
+
+    protected String password;
+
+    protected long count;
+
+    /**
+     * Moves to the next password.
+     * @return Whether there was a next password
+     */
+    public abstract boolean next() throws IOException;
+
+    /**
+     * Gets the next of the sources of the current password, which are in
+     * ascending order. Must be called at most count times per password.
+     * @return The source
+     */
+    public abstract long nextSource() throws IOException;
+
+    public void close() throws IOException { }
+
+  }
+
+  /**
+   * Merges the passwords of both maps, which are disjoint, using that packed
+   * passwords are ordered like the passwords.
+   */
+  private static class MemoryRun extends Run {
+
+    private final Map<String, Postings> counts;
+
+    private final String[] passwords;
+
+    private int position;
+
+    private final LongLongHashMap packedCounts;
+
+    private final long[] packedPasswords;
+
+    private int packedPosition;
+
+    /**
+     * The unpacked password at the packed position, or <tt>null</tt>.
+     */
+    private String nextPacked;
+
+    private long[] sources;
+
+    private int sourcePosition;
+
+    private MemoryRun(final Map<String, Postings> counts,
+        final LongLongHashMap packedCounts) {
+      this.counts = counts;
+      this.passwords = counts.keySet().toArray(new String[counts.size()]);
+      Arrays.sort(this.passwords);
+      this.position = 0;
+      this.packedCounts = packedCounts;
+      this.packedPasswords = packedCounts.getSortedKeys();
+      this.packedPosition = 0;
+      this.nextPacked = null;
+      this.sources = null;
+      this.sourcePosition = 0;
+    }
+
+    @Override
+    public boolean next() {
+      if (this.nextPacked == null
+          && this.packedPosition < this.packedPasswords.length) {
+        this.nextPacked =
+            PackedPasswords.unpack(this.packedPasswords[this.packedPosition]);
+      }
+      if (this.nextPacked != null
+          && (this.position == this.passwords.length
+            || this.nextPacked.compareTo(this.passwords[this.position]) < 0)) {
+        this.password = this.nextPacked;
+        this.count = this.packedCounts.get(
+            this.packedPasswords[this.packedPosition++], 0);
+        this.sources = null;
+        this.nextPacked = null;
+        return true;
+      }
+      if (this.position == this.passwords.length) { return false; }
+      this.password = this.passwords[this.position++];
+      final Postings postings = this.counts.get(this.password);
+      this.count = postings.count;
+      this.sources = postings.sources;
+      this.sourcePosition = 0;
+      if (this.sources != null) {
+        Arrays.sort(this.sources, 0, (int) this.count);
+      }
+      return true;
+    }
+
+    @Override
+    public long nextSource() {
+      return this.sources[this.sourcePosition++];
+    }
+
+  }
+
+  private static class FileRun extends Run {
+
+    private final DataInputStream input;
+
+    private final boolean withSources;
+
+    /**
+     * The number of sources of the current password that have not been read.
+     */
+    private long remainingSources;
+
+    private FileRun(final File file, final boolean withSources)
+    throws IOException {
+      this.input = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      this.withSources = withSources;
+      this.remainingSources = 0;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      while (this.remainingSources > 0) {
+        this.nextSource();
+      }
+      final int length;
+      try {
+        length = this.input.readInt();
+      } catch (final EOFException e) {
+        return false;
+      }
+      final byte[] bytes = new byte[length];
+      this.input.readFully(bytes);
+      this.password = new String(bytes, StandardCharsets.UTF_8);
+      this.count = this.input.readLong();
+      if (this.withSources) {
+        this.remainingSources = this.count;
+      }
+      return true;
+    }
+
+    @Override
+    public long nextSource() throws IOException {
+      --this.remainingSources;
+      return this.input.readLong();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.input.close();
+    }
+
+  }
+
+  /**
+   * Writes the format described in {@link PasswordIndex}.
+   */
+  private class BlockWriter implements AutoCloseable {
+
+    private final DataOutputStream output;
+
+    private long offset;
+
+    private final ByteArrayOutputStream block;
+
+    private final ByteArrayOutputStream index;
+
+    private final Deflater deflater;
+
+    private final byte[] deflated;
+
+    /**
+     * The temporary file for the sources region, or <tt>null</tt> for an
+     * index without sources.
+     */
+    private final File sourcesFile;
+
+    private final DataOutputStream sources;
+
+    private long sourcesLength;
+
+    private long blockSourcesOffset;
+
+    private byte[] previous;
+
+    private String firstPassword;
+
+    private int numBlockPasswords;
+
+    private int numBlocks;
+
+    private long numPasswords;
+
+    private long totalCount;
+
+    private BlockWriter(final File file) throws IOException {
+      this.output = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+      this.output.writeInt(PasswordIndex.MAGIC);
+      this.output.writeInt(PasswordIndex.VERSION);
+      this.offset = PasswordIndex.HEADER_SIZE;
+      this.block = new ByteArrayOutputStream(MAX_BLOCK_BYTES);
+      this.index = new ByteArrayOutputStream();
+      this.deflater = new Deflater();
+      this.deflated = new byte[1 << 16];
+      if (PasswordIndexBuilder.this.withSources) {
+        this.sourcesFile = new File(file.getPath() + ".sources");
+        this.sources = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(this.sourcesFile), 1 << 16));
+      } else {
+        this.sourcesFile = null;
+        this.sources = null;
+      }
+      this.sourcesLength = 0;
+      this.blockSourcesOffset = 0;
+      this.previous = new byte[0];
+      this.firstPassword = null;
+      this.numBlockPasswords = 0;
+      this.numBlocks = 0;
+      this.numPasswords = 0;
+      this.totalCount = 0;
+    }
+
+    /**
+     * Writes a password with the counts and sources of all runs that contain
+     * it.
+     */
+    private void write(final String password, final List<Run> runs)
+    throws IOException {
+      long count = 0;
+      for (final Run run : runs) {
+        count += run.count;
+      }
+      final byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+      int shared = 0;
+      if (this.numBlockPasswords == 0) {
+        this.firstPassword = password;
+        this.blockSourcesOffset = this.sourcesLength;
+      } else {
+        final int maxShared = Math.min(bytes.length, this.previous.length);
+        while (shared < maxShared && bytes[shared] == this.previous[shared]) {
+          ++shared;
+        }
+      }
+      VarInts.write(this.block, shared);
+      VarInts.write(this.block, bytes.length - shared);
+      this.block.write(bytes, shared, bytes.length - shared);
+      VarInts.write(this.block, count);
+      if (PasswordIndexBuilder.this.withSources) {
+        VarInts.write(this.block, this.writeSources(runs, count));
+      }
+      this.previous = bytes;
+      ++this.numBlockPasswords;
+      ++this.numPasswords;
+      this.totalCount += count;
+      if (this.numBlockPasswords == PasswordIndexBuilder.this.blockSize
+          || this.block.size() >= MAX_BLOCK_BYTES) {
+        this.writeBlock();
+      }
+    }
+
+    /**
+     * Merges the sources of the runs and writes them to the sources region,
+     * sorted by file and offset so that the differences are small.
+     * @return The number of written bytes
+     */
+    private long writeSources(final List<Run> runs, final long count)
+    throws IOException {
+      final int numRuns = runs.size();
+      final long[] heads = new long[numRuns];
+      final long[] remaining = new long[numRuns];
+      for (int r = 0; r < numRuns; ++r) {
+        remaining[r] = runs.get(r).count;
+        if (remaining[r] > 0) {
+          heads[r] = runs.get(r).nextSource();
+        }
+      }
+      long length = 0;
+      long previousSource = 0;
+      for (long s = 0; s < count; ++s) {
+        int next = -1;
+        for (int r = 0; r < numRuns; ++r) {
+          if (remaining[r] > 0 && (next < 0 || heads[r] < heads[next])) {
+            next = r;
+          }
+        }
+        final long difference = heads[next] - previousSource;
+        VarInts.write(this.sources, difference);
+        length += VarInts.getSize(difference);
+        previousSource = heads[next];
+        if (--remaining[next] > 0) {
+          heads[next] = runs.get(next).nextSource();
+        }
+      }
+      this.sourcesLength += length;
+      return length;
+    }
+
+    private void writeBlock() throws IOException {
+      final byte[] raw = this.block.toByteArray();
+      this.deflater.reset();
+      this.deflater.setInput(raw);
+      this.deflater.finish();
+      long compressedLength = 0;
+      while (!this.deflater.finished()) {
+        final int length = this.deflater.deflate(this.deflated);
+        this.output.write(this.deflated, 0, length);
+        compressedLength += length;
+      }
+
+      final DataOutputStream entry = new DataOutputStream(this.index);
+      entry.writeLong(this.offset);
+      entry.writeInt((int) compressedLength);
+      entry.writeInt(raw.length);
+      entry.writeInt(this.numBlockPasswords);
+      if (PasswordIndexBuilder.this.withSources) {
+        entry.writeLong(this.blockSourcesOffset);
+      }
+      final byte[] first = this.firstPassword.getBytes(StandardCharsets.UTF_8);
+      entry.writeInt(first.length);
+      entry.write(first);
+
+      this.offset += compressedLength;
+      this.block.reset();
+      this.numBlockPasswords = 0;
+      ++this.numBlocks;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (this.numBlockPasswords > 0) {
+          this.writeBlock();
+        }
+        final long sourcesOffset = this.offset;
+        if (this.sources != null) {
+          this.sources.close();
+          Files.copy(this.sourcesFile.toPath(), this.output);
+          this.offset += this.sourcesLength;
+        }
+        final long indexOffset = this.offset;
+        final byte[] configuration = PasswordIndexBuilder.this.configuration
+            .getBytes(StandardCharsets.UTF_8);
+        this.output.writeInt(configuration.length);
+        this.output.write(configuration);
+        final List<String> files = PasswordIndexBuilder.this.files;
+        this.output.writeBoolean(PasswordIndexBuilder.this.withSources);
+        this.output.writeInt(files.size());
+        for (final String file : files) {
+          final byte[] name = file.getBytes(StandardCharsets.UTF_8);
+          this.output.writeInt(name.length);
+          this.output.write(name);
+        }
+        this.output.writeLong(this.numPasswords);
+        this.output.writeLong(this.totalCount);
+        this.output.writeLong(sourcesOffset);
+        this.output.writeInt(this.numBlocks);
+        this.index.writeTo(this.output);
+        this.output.writeLong(indexOffset);
+        this.output.writeInt(PasswordIndex.MAGIC);
+      } finally {
+        this.deflater.end();
+        this.output.close();
+        if (this.sources != null) {
+          this.sources.close();
+          Files.deleteIfExists(this.sourcesFile.toPath());
+        }
+      }
+    }
+
+  }
+
+  public static void printHelp(final PrintStream out) {
+    out.println("Usage:");
+    out.println("  [<options>] <index> <input> [<input> ...]");
+    out.println("Where:");
+    out.println("  <index>");
+    out.println("    The index file to write.");
+    out.println("  <input>");
+    out.println("    A file with one password per line (e.g., generated by");
+    out.println("    PasswordGenerationRules) or a directory of such files");
+    out.println("    (e.g., the output of HadoopPasswordGenerationRules).");
+    out.println("    Each line counts as one occurrence of its password.");
+    out.println("    With " + OPTION_SOURCES
+        + ", a file of tab-separated password, file,");
+    out.println("    and byte offset of the input line per line (e.g., the");
+    out.println("    \"sources\" files of HadoopPasswordGenerationRules).");
+    out.println("Options:");
+    out.println("  " + OPTION_CONFIGURATION + " <configuration>");
+    out.println("    The rule configuration that generated the passwords, to");
+    out.println("    be stored in the index (default: empty).");
+    out.println("  " + OPTION_BLOCK_SIZE + " <number>");
+    out.println("    Maximum number of passwords per compressed block");
+    out.println("    (default: " + DEFAULT_BLOCK_SIZE + ").");
+    out.println("  " + OPTION_MEMORY + " <megabytes>");
+    out.println("    Memory for counting before sorted runs are written next");
+    out.println("    to the index (default: " + DEFAULT_MEMORY + ").");
+    out.println("  " + OPTION_SOURCES);
+    out.println("    Build an index of the sources of each password instead");
+    out.println("    of only their counts.");
+  }
+
+  public static void main(final String[] args) throws IOException {
+    String configuration = "";
+    int blockSize = DEFAULT_BLOCK_SIZE;
+    long memory = DEFAULT_MEMORY;
+    boolean withSources = false;
+    final PasswordIndexBuilder builder;
+    int a = 0;
+    try {
+      for (; a < args.length && args[a].startsWith("--"); ++a) {
+        if (args[a].equals(OPTION_SOURCES)) {
+          withSources = true;
+          continue;
+        }
+        if (a + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value for " + args[a]);
+        }
+        switch (args[a]) {
+        case OPTION_CONFIGURATION:
+          configuration = args[++a];
+          break;
+        case OPTION_BLOCK_SIZE:
+          blockSize = Integer.parseInt(args[++a]);
+          break;
+        case OPTION_MEMORY:
+          memory = Long.parseLong(args[++a]);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[a]);
+        }
+      }
+      if (args.length - a < 2) {
+        printHelp(System.err);
+        System.exit(1);
+      }
+      builder = new PasswordIndexBuilder(new File(args[a]), configuration,
+          blockSize, memory * 1024 * 1024, withSources);
+    } catch (final IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      printHelp(System.err);
+      System.exit(1);
+      return;
+    }
+
+    final long start = System.nanoTime();
+    long lines = 0;
+    for (int i = a + 1; i < args.length; ++i) {
+      lines += builder.addLines(new File(args[i]));
+    }
+    final long numPasswords = builder.build();
+    final File index = new File(args[a]);
+    System.err.println(String.format(Locale.ROOT,
+        "Indexed %d distinct of %d passwords in %.1f MB (%.1f s)",
+        numPasswords, lines, index.length() / 1024.0 / 1024.0,
+        (System.nanoTime() - start) / 1e9));
+  }
+
+}
@@ -0,0 +1,72 @@
+package de.aitools.aq.passwords.index;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable-length encoding of non-negative integers: seven bits per byte,
+ * least significant first, with the high bit set on all but the last byte.
+ *
+ * @author agent@local
+ */
+public class VarInts {
+
+  /**
+   * The maximum number of bytes of an encoded integer.
+   */
+  public static final int MAX_BYTES = 10;
+
+  private VarInts() { }
+
+  /**
+   * Gets the number of bytes of an encoded integer.
+   * @param value The integer
+   * @return The number of bytes written by
+   * {@link #write(OutputStream, long)} for it
+   */
+  public static int getSize(final long value) {
+    int size = 1;
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      remaining >>>= 7;
+      ++size;
+    }
+    return size;
+  }
+
+  /**
+   * Writes a non-negative integer.
+   * @param output The stream to write to
+   * @param value The integer
+   * @throws IOException If writing failed
+   */
+  public static void write(final OutputStream output, final long value)
+  throws IOException {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      output.write((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    output.write((int) remaining);
+  }
+
+  /**
+   * Reads an integer that was written with
+   * {@link #write(OutputStream, long)}.
+   * @param input The buffer to read from at its position
+   * @return The integer
+   */
+  public static long read(final ByteBuffer input) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = input.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+}
@@ -0,0 +1,166 @@
+package de.aitools.aq.passwords.rules;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Character set conversion that works directly on the bytes of UTF-8 encoded
+ * strings that contain only 7-bit US-ASCII characters. For such strings, the
+ * converters of {@link CharacterSets} only remove and lowercase characters,
+ * which is done here without decoding the bytes first.
+ *
+ * @author agent@local
+ */
+public class AsciiBytes {
+
+  /**
+   * Converts the bytes of a US-ASCII string.
+   */
+  @FunctionalInterface
+  public interface Converter {
+
+    /**
+     * Converts the bytes of a US-ASCII string.
+     * @param bytes The array containing the bytes (values below 128 only)
+     * @param offset The index of the first byte
+     * @param length The number of bytes
+     * @return The converted string
+     */
+    String convert(final byte[] bytes, final int offset, final int length);
+
+  }
+
+  /**
+   * Converter equivalent to {@link CharacterSets#CHARSET_ASCII_CONVERTER}
+   * for US-ASCII input.
+   */
+  public static final Converter CHARSET_ASCII_CONVERTER =
+      (bytes, offset, length) -> AsciiBytes.stripControlChars(
+          bytes, offset, length);
+
+  /**
+   * Converter equivalent to
+   * {@link CharacterSets#CHARSET_LOWERCASE_LETTERS_CONVERTER} for US-ASCII
+   * input.
+   */
+  public static final Converter CHARSET_LOWERCASE_LETTERS_CONVERTER =
+      (bytes, offset, length) -> AsciiBytes.stripNonLettersOrSpacesToLowerCase(
+          bytes, offset, length);
+
+  private AsciiBytes() { }
+
+  /**
+   * Gets the converter for given configuration string.
+   * @param configuration One of {@link CharacterSets#CHARSET_ASCII} and
+   * {@link CharacterSets#CHARSET_LOWERCASE_LETTERS}
+   * @return The converter
+   * @throws NullPointerException If the configuration is <tt>null</tt>
+   * @throws IllegalArgumentException If the configuration has none of the
+   * values mentioned above
+   */
+  public static Converter getConverter(final String configuration)
+  throws NullPointerException, IllegalArgumentException {
+    if (configuration == null) { throw new NullPointerException(); }
+    switch (configuration) {
+    case CharacterSets.CHARSET_ASCII:
+      return CHARSET_ASCII_CONVERTER;
+    case CharacterSets.CHARSET_LOWERCASE_LETTERS:
+      return CHARSET_LOWERCASE_LETTERS_CONVERTER;
+    }
+    throw new IllegalArgumentException(
+        "No valid character set:" + configuration);
+  }
+
+  /**
+   * Checks whether bytes contain only 7-bit US-ASCII characters.
+   * @param bytes The array containing the bytes
+   * @param offset The index of the first byte
+   * @param length The number of bytes
+   * @return Whether all bytes have a value below 128
+   */
+  public static boolean isAscii(
+      final byte[] bytes, final int offset, final int length) {
+    final int end = offset + length;
+    for (int b = offset; b < end; ++b) {
+      if (bytes[b] < 0) { return false; }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether a string contains only 7-bit US-ASCII characters.
+   * @param string The string
+   * @return Whether all characters have a code below 128
+   */
+  public static boolean isAscii(final CharSequence string) {
+    final int length = string.length();
+    for (int c = 0; c < length; ++c) {
+      if (string.charAt(c) >= 0x80) { return false; }
+    }
+    return true;
+  }
+
+  /**
+   * Removes all control characters from US-ASCII bytes.
+   * @param bytes The array containing the bytes (values below 128 only)
+   * @param offset The index of the first byte
+   * @param length The number of bytes
+   * @return The string without control characters
+   */
+  public static String stripControlChars(
+      final byte[] bytes, final int offset, final int length) {
+    final byte[] output = new byte[length];
+    int size = 0;
+    final int end = offset + length;
+    for (int b = offset; b < end; ++b) {
+      final byte c = bytes[b];
+      if (c >= ' ' && c != 0x7F) {
+        output[size++] = c;
+      }
+    }
+    return new String(output, 0, size, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Removes all characters that are not letters or space characters
+   * (space, tab, newline) from US-ASCII bytes and converts the letters to
+   * lowercase.
+   * @param bytes The array containing the bytes (values below 128 only)
+   * @param offset The index of the first byte
+   * @param length The number of bytes
+   * @return The string of lowercase letters and spaces
+   */
+  public static String stripNonLettersOrSpacesToLowerCase(
+      final byte[] bytes, final int offset, final int length) {
+    final byte[] output = new byte[length];
+    int size = 0;
+    final int end = offset + length;
+    for (int b = offset; b < end; ++b) {
+      final byte c = bytes[b];
+      if (c >= 'a' && c <= 'z') {
+        output[size++] = c;
+      } else if (c >= 'A' && c <= 'Z') {
+        output[size++] = (byte) (c + ('a' - 'A'));
+      } else if (c == ' ' || c == '\t' || c == '\n') {
+        output[size++] = c;
+      }
+    }
+    return new String(output, 0, size, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Writes the characters of a US-ASCII string as bytes.
+   * @param string The string (characters below 128 only)
+   * @param buffer The array to write to if it is large enough
+   * @return The array containing the bytes at the start, which is the buffer
+   * or a new array if the buffer was too small
+   */
+  public static byte[] toBytes(final String string, final byte[] buffer) {
+    final int length = string.length();
+    final byte[] bytes = buffer.length >= length ? buffer : new byte[length];
+    for (int c = 0; c < length; ++c) {
+      bytes[c] = (byte) string.charAt(c);
+    }
+    return bytes;
+  }
+
+}
@@ -19,6 +19,12 @@ public class CharacterIndicesFilter implements Function<String, String> {
 
   private final boolean roundRobin;
 
+  /**
+   * The number of characters selected from a string of each length up to the
+   * length from which on it is constant.
+   */
+  private final int[] numCharacters;
+
   /**
      * Creates a new CharacterFilter.
      * @param indices Indices that point to specific characters in each input
@@ -39,6 +45,73 @@ public class CharacterIndicesFilter implements Function<String, String> {
     this.indices = indices;
     this.outputDuplicates = outputDuplicates;
     this.roundRobin = roundRobin;
+
+    // for lengths above the largest index plus the largest negative index,
+    // no two indices select the same character
+    int maxIndex = 0;
+    int maxNegativeIndex = 0;
+    for (final int index : indices) {
+      maxIndex = Math.max(maxIndex, index);
+      maxNegativeIndex = Math.max(maxNegativeIndex, -index);
+    }
+    this.numCharacters = new int[maxIndex + maxNegativeIndex + 2];
+    for (int length = 0; length < this.numCharacters.length; ++length) {
+      this.numCharacters[length] = this.countCharacters(length);
+    }
+  }
+
+  private int countCharacters(final int tokenLength) {
+    if (tokenLength == 0) { return 0; }
+    final boolean[] indexBlacklist = new boolean[tokenLength];
+    int i = 0;
+    for (int index : this.indices) {
+      if (this.roundRobin || (index >= -tokenLength && index < tokenLength)) {
+        int realIndex = index % tokenLength;
+        if (realIndex < 0) {
+          realIndex += tokenLength;
+        }
+        if (!indexBlacklist[realIndex]) {
+          if (!this.outputDuplicates) {
+            indexBlacklist[realIndex] = true;
+          }
+          ++i;
+        }
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Gets the number of characters this filter selects from a string.
+   * @param length The length of the string
+   * @return The length of the output of {@link #apply(String)} for strings of
+   * that length
+   */
+  public int getNumCharacters(final int length) {
+    return this.numCharacters[Math.min(length, this.numCharacters.length - 1)];
+  }
+
+  /**
+   * @return The minimum of {@link #getNumCharacters(int)} for non-empty
+   * strings
+   */
+  public int getMinNumCharacters() {
+    int min = Integer.MAX_VALUE;
+    for (int length = 1; length < this.numCharacters.length; ++length) {
+      min = Math.min(min, this.numCharacters[length]);
+    }
+    return min;
+  }
+
+  /**
+   * @return The maximum of {@link #getNumCharacters(int)}
+   */
+  public int getMaxNumCharacters() {
+    int max = 0;
+    for (final int num : this.numCharacters) {
+      max = Math.max(max, num);
+    }
+    return max;
   }
 
   @Override
@@ -72,34 +72,48 @@ public class CharacterSets {
   public static final Function<String, String> ASCII_DICTIONARY_MAPPING =
       input -> CharacterSets.asciiDictionaryMapping(input);
 
+  private static final Function<String, String> ASCII_CONVERSION =
+      ASCII_DICTIONARY_MAPPING
+        .andThen(COMPATIBILITY_DECOMPOSITION)
+        .andThen(CANONICAL_DECOMPOSITION)
+        .andThen(STRIP_NON_ASCII)
+        .andThen(STRIP_CONTROL_CHARS);
+
+  private static final Function<String, String> LOWERCASE_LETTERS_CONVERSION =
+      ASCII_DICTIONARY_MAPPING
+      .andThen(COMPATIBILITY_DECOMPOSITION)
+      .andThen(CANONICAL_DECOMPOSITION)
+      .andThen(STRIP_NON_LETTERS_OR_SPACES)
+      .andThen(LOWERCASE_MAPPER);
+
   /**
    * Function that converts input strings to 7-bit visible US-ASCII using
    * {@link #asciiDictionaryMapping(String)}, unicode decomposition, and
    * removing what remains (including control characters).
+   * Input that is already US-ASCII only has its control characters removed,
+   * as the other steps do not change it.
    * Returns <tt>null</tt> if the input is also <tt>null</tt>.
    */
   public static final Function<String, String>
   CHARSET_ASCII_CONVERTER =
-      ASCII_DICTIONARY_MAPPING
-        .andThen(COMPATIBILITY_DECOMPOSITION)
-        .andThen(CANONICAL_DECOMPOSITION)
-        .andThen(STRIP_NON_ASCII)
-        .andThen(STRIP_CONTROL_CHARS);
+      input -> input != null && AsciiBytes.isAscii(input)
+        ? CharacterSets.stripControlChars(input)
+        : ASCII_CONVERSION.apply(input);
 
   /**
    * Function that converts input strings to ones with only the 26 lowercase
    * latin letters and space characters using
    * {@link #asciiDictionaryMapping(String)}, unicode decomposition, conversion
    * to lowercase, and removing what remains (including control characters).
+   * Input that is already US-ASCII skips the dictionary mapping and
+   * decomposition, as they do not change it.
    * Returns <tt>null</tt> if the input is also <tt>null</tt>.
    */
   public static final Function<String, String>
   CHARSET_LOWERCASE_LETTERS_CONVERTER =
-      ASCII_DICTIONARY_MAPPING
-      .andThen(COMPATIBILITY_DECOMPOSITION)
-      .andThen(CANONICAL_DECOMPOSITION)
-      .andThen(STRIP_NON_LETTERS_OR_SPACES)
-      .andThen(LOWERCASE_MAPPER);
+      input -> input != null && AsciiBytes.isAscii(input)
+        ? CharacterSets.stripNonLettersOrSpacesToLowerCase(input)
+        : LOWERCASE_LETTERS_CONVERSION.apply(input);
 
   private CharacterSets() { }
 
@@ -134,7 +148,47 @@ public class CharacterSets {
    */
   public static String stripNonLettersOrSpaces(final String input)  {
     if (input == null) { return null; }
-    return input.replaceAll("[^a-zA-Z \t\n]", "");
+    final int numChars = input.length();
+    int i = 0;
+    while (i < numChars && CharacterSets.isLetterOrSpace(input.charAt(i))) {
+      ++i;
+    }
+    if (i == numChars) { return input; }
+
+    final char[] output = new char[numChars];
+    input.getChars(0, i, output, 0);
+    int size = i;
+    for (; i < numChars; ++i) {
+      final char c = input.charAt(i);
+      if (CharacterSets.isLetterOrSpace(c)) {
+        output[size++] = c;
+      }
+    }
+    return new String(output, 0, size);
+  }
+
+  /**
+   * Removes all characters that are not letters or space characters
+   * (space, tab, newline) and converts the letters to lowercase.
+   * @param input The string to process
+   * @return The processed string or <tt>null</tt> if input is <tt>null</tt>
+   */
+  public static String stripNonLettersOrSpacesToLowerCase(final String input) {
+    if (input == null) { return null; }
+    final int numChars = input.length();
+    final char[] output = new char[numChars];
+    int size = 0;
+    for (int i = 0; i < numChars; ++i) {
+      final char c = input.charAt(i);
+      if (c >= 'a' && c <= 'z') {
+        output[size++] = c;
+      } else if (c >= 'A' && c <= 'Z') {
+        output[size++] = (char) (c + ('a' - 'A'));
+      } else if (c == ' ' || c == '\t' || c == '\n') {
+        output[size++] = c;
+      }
+    }
+    return new String(output, 0, size);
   }
 
   /**
@@ -144,7 +198,23 @@ public class CharacterSets {
    */
   public static String stripNonAscii(final String input)  {
     if (input == null) { return null; }
-    return input.replaceAll("[^\\p{ASCII}]", "");
+    final int numChars = input.length();
+    int i = 0;
+    while (i < numChars && input.charAt(i) < 0x80) {
+      ++i;
+    }
+    if (i == numChars) { return input; }
+
+    final char[] output = new char[numChars];
+    input.getChars(0, i, output, 0);
+    int size = i;
+    for (; i < numChars; ++i) {
+      final char c = input.charAt(i);
+      if (c < 0x80) {
+        output[size++] = c;
+      }
+    }
+    return new String(output, 0, size);
   }
 
   /**
@@ -154,7 +224,23 @@ public class CharacterSets {
    */
   public static String stripControlChars(final String input) {
     if (input == null) { return null; }
-    return input.replaceAll("\\p{Cntrl}", "");
+    final int numChars = input.length();
+    int i = 0;
+    while (i < numChars && !CharacterSets.isControlChar(input.charAt(i))) {
+      ++i;
+    }
+    if (i == numChars) { return input; }
+
+    final char[] output = new char[numChars];
+    input.getChars(0, i, output, 0);
+    int size = i;
+    for (; i < numChars; ++i) {
+      final char c = input.charAt(i);
+      if (!CharacterSets.isControlChar(c)) {
+        output[size++] = c;
+      }
+    }
+    return new String(output, 0, size);
   }
 
   /**
@@ -165,7 +251,23 @@ public class CharacterSets {
    */
   public static String stripCombiningMarks(final String input) {
     if (input == null) { return null; }
-    return input.replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
+    final int numChars = input.length();
+    int i = 0;
+    while (i < numChars && !CharacterSets.isCombiningMark(input.charAt(i))) {
+      ++i;
+    }
+    if (i == numChars) { return input; }
+
+    final char[] output = new char[numChars];
+    input.getChars(0, i, output, 0);
+    int size = i;
+    for (; i < numChars; ++i) {
+      final char c = input.charAt(i);
+      if (!CharacterSets.isCombiningMark(c)) {
+        output[size++] = c;
+      }
+    }
+    return new String(output, 0, size);
   }
 
   /**
@@ -177,6 +279,7 @@ public class CharacterSets {
    */
   public static String canonicalDecomposition(final String input) {
     if (input == null) { return null; }
+    if (AsciiBytes.isAscii(input)) { return input; }
     return Normalizer.normalize(input, Normalizer.Form.NFD);
   }
 
@@ -188,6 +291,7 @@ public class CharacterSets {
    */
   public static String compatibilityDecomposition(final String input) {
     if (input == null) { return null; }
+    if (AsciiBytes.isAscii(input)) { return input; }
     return Normalizer.normalize(input, Normalizer.Form.NFKC);
   }
 
@@ -201,6 +305,7 @@ public class CharacterSets {
    */
   public static String asciiDictionaryMapping(final String input) {
     if (input == null) { return null; }
+    if (AsciiBytes.isAscii(input)) { return input; }
     final StringBuilder output = new StringBuilder(input.length());
     final int numChars = input.length();
     for (int i = 0; i < numChars; ++i)
@@ -293,4 +398,20 @@ public class CharacterSets {
     return output.toString();
   }
 
+  // Same as [a-zA-Z \t\n]
+  private static boolean isLetterOrSpace(final char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || c == ' ' || c == '\t' || c == '\n';
+  }
+
+  // Same as \p{Cntrl}
+  private static boolean isControlChar(final char c) {
+    return c < ' ' || c == 0x7F;
+  }
+
+  // Same as \p{InCombiningDiacriticalMarks}
+  private static boolean isCombiningMark(final char c) {
+    return c >= '\u0300' && c <= '\u036F';
+  }
+
 }
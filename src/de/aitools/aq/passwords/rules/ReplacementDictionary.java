@@ -0,0 +1,436 @@
+package de.aitools.aq.passwords.rules;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A function that replaces whole tokens using a case-insensitive dictionary
+ * that is stored in a compact binary file and memory-mapped for lookups.
+ * <p>
+ * The file contains a minimal perfect hash function (hash and displace) over
+ * the lowercased tokens and the packed UTF-8 tokens and replacements. As the
+ * file is memory-mapped, the heap usage does not grow with the dictionary
+ * size and several JVMs on the same machine share the dictionary through the
+ * page cache. Dictionary files have to be smaller than 2 GB.
+ * </p><p>
+ * Dictionary files are compiled from text files with one
+ * <tt>&lt;token&gt;TAB&lt;replacement&gt;</tt> pair per line using the main
+ * method of this class.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class ReplacementDictionary implements Function<String, String> {
+
+  private static final int MAGIC = 0x50475244; // "PGRD"
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 16;
+
+  private static final int KEYS_PER_BUCKET = 4;
+
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private static final Map<String, ReplacementDictionary> INSTANCES =
+      new ConcurrentHashMap<>();
+
+  private final File file;
+
+  private final ByteBuffer buffer;
+
+  private final int numKeys;
+
+  private final int numBuckets;
+
+  private final int seedsStart;
+
+  private final int offsetsStart;
+
+  private final int stringsStart;
+
+  /**
+   * Memory-maps a compiled dictionary. Use {@link #get(File)} to share
+   * dictionaries within the JVM.
+   * @param file The compiled dictionary
+   * @throws IOException If the file can not be read
+   * @throws IllegalArgumentException If the file is not a compiled
+   * dictionary or its header does not fit its size
+   */
+  public ReplacementDictionary(final File file)
+  throws IOException, IllegalArgumentException {
+    this.file = file;
+    try (final FileChannel channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Dictionary too large: " + file);
+      }
+      final MappedByteBuffer mapped =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      this.buffer = mapped;
+    }
+    if (this.buffer.capacity() < HEADER_SIZE
+        || this.buffer.getInt(0) != MAGIC
+        || this.buffer.getInt(4) != VERSION) {
+      throw new IllegalArgumentException(
+          "Not a compiled replacement dictionary: " + file);
+    }
+    this.numKeys = this.buffer.getInt(8);
+    this.numBuckets = this.buffer.getInt(12);
+    if (this.numKeys < 0 || this.numBuckets < 1
+        || HEADER_SIZE + 4L * (this.numBuckets + (long) this.numKeys)
+            > this.buffer.capacity()) {
+      throw new IllegalArgumentException("Corrupt replacement dictionary ("
+          + this.numKeys + " keys and " + this.numBuckets + " buckets in "
+          + this.buffer.capacity() + " bytes): " + file);
+    }
+    this.seedsStart = HEADER_SIZE;
+    this.offsetsStart = this.seedsStart + 4 * this.numBuckets;
+    this.stringsStart = this.offsetsStart + 4 * this.numKeys;
+  }
+
+  /**
+   * Gets the shared instance for a compiled dictionary, memory-mapping it on
+   * first use.
+   * @param file The compiled dictionary
+   * @return The dictionary
+   * @throws UncheckedIOException If the file can not be read
+   * @throws IllegalArgumentException If the file is not a compiled
+   * dictionary
+   */
+  public static ReplacementDictionary get(final File file)
+  throws UncheckedIOException, IllegalArgumentException {
+    return INSTANCES.computeIfAbsent(file.getAbsolutePath(), path -> {
+      try {
+        return new ReplacementDictionary(file);
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  /**
+   * @return The compiled dictionary file
+   */
+  public File getFile() {
+    return this.file;
+  }
+
+  /**
+   * @return The number of entries in the dictionary
+   */
+  public int size() {
+    return this.numKeys;
+  }
+
+  @Override
+  public String apply(final String token) {
+    if (token == null) { return null; }
+    final String replacement = this.lookup(token.toLowerCase());
+    return replacement == null ? token : replacement;
+  }
+
+  /**
+   * Gets the replacement for a token.
+   * @param lowerCaseToken The token in lowercase
+   * @return The replacement or <tt>null</tt> if the token is not in the
+   * dictionary
+   */
+  public String lookup(final String lowerCaseToken) {
+    if (this.numKeys == 0) { return null; }
+    final byte[] key = lowerCaseToken.getBytes(StandardCharsets.UTF_8);
+    final long hash = ReplacementDictionary.hash(key);
+    final int bucket = ReplacementDictionary.toBucket(hash, this.numBuckets);
+    final int seed = this.buffer.getInt(this.seedsStart + 4 * bucket);
+    final int slot = ReplacementDictionary.toSlot(hash, seed, this.numKeys);
+
+    int position =
+        this.stringsStart + this.buffer.getInt(this.offsetsStart + 4 * slot);
+    final int keyLength = this.readVarInt(position);
+    position += ReplacementDictionary.getVarIntSize(keyLength);
+    if (keyLength != key.length) { return null; }
+    for (int b = 0; b < keyLength; ++b) {
+      if (this.buffer.get(position + b) != key[b]) { return null; }
+    }
+    position += keyLength;
+
+    final int valueLength = this.readVarInt(position);
+    position += ReplacementDictionary.getVarIntSize(valueLength);
+    final byte[] value = new byte[valueLength];
+    for (int b = 0; b < valueLength; ++b) {
+      value[b] = this.buffer.get(position + b);
+    }
+    return new String(value, StandardCharsets.UTF_8);
+  }
+
+  private int readVarInt(int position) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = this.buffer.get(position++);
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // COMPILATION
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Reads a dictionary from a text file with one
+   * <tt>&lt;token&gt;TAB&lt;replacement&gt;</tt> pair per line. Tokens are
+   * lowercased and only the first replacement of each token is used.
+   * @param input The text file (UTF-8)
+   * @return The dictionary
+   * @throws IOException If the file can not be read
+   * @throws IllegalArgumentException If a non-empty line contains no tab
+   */
+  public static Map<String, String> read(final File input)
+  throws IOException, IllegalArgumentException {
+    final Map<String, String> dictionary = new LinkedHashMap<>();
+    try (final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(input), StandardCharsets.UTF_8))) {
+      String line = null;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        ++lineNumber;
+        if (line.isEmpty()) { continue; }
+        final int tab = line.indexOf('\t');
+        if (tab < 0) {
+          throw new IllegalArgumentException(
+              "No tab in line " + lineNumber + " of " + input + ": " + line);
+        }
+        dictionary.putIfAbsent(
+            line.substring(0, tab).toLowerCase(), line.substring(tab + 1));
+      }
+    }
+    return dictionary;
+  }
+
+  /**
+   * Compiles a dictionary into the binary format.
+   * @param dictionary The dictionary with lowercase tokens as keys
+   * @param output The file to write to
+   * @throws IOException If the file can not be written
+   * @throws IllegalArgumentException If the compiled dictionary would be too
+   * large
+   */
+  public static void compile(
+      final Map<String, String> dictionary, final File output)
+  throws IOException, IllegalArgumentException {
+    final int numKeys = dictionary.size();
+    final int numBuckets = Math.max(1, numKeys / KEYS_PER_BUCKET);
+    final byte[][] keys = new byte[numKeys][];
+    final byte[][] values = new byte[numKeys][];
+    final long[] hashes = new long[numKeys];
+    int k = 0;
+    for (final Map.Entry<String, String> entry : dictionary.entrySet()) {
+      keys[k] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      values[k] = entry.getValue().getBytes(StandardCharsets.UTF_8);
+      hashes[k] = ReplacementDictionary.hash(keys[k]);
+      ++k;
+    }
+
+    final int[] seeds =
+        ReplacementDictionary.findSeeds(hashes, numBuckets);
+    final int[] keyOfSlot = new int[numKeys];
+    for (int key = 0; key < numKeys; ++key) {
+      final int bucket = ReplacementDictionary.toBucket(hashes[key], numBuckets);
+      keyOfSlot[ReplacementDictionary.toSlot(
+          hashes[key], seeds[bucket], numKeys)] = key;
+    }
+
+    final int[] offsets = new int[numKeys];
+    long stringsSize = 0;
+    for (int slot = 0; slot < numKeys; ++slot) {
+      offsets[slot] = (int) stringsSize;
+      final int key = keyOfSlot[slot];
+      stringsSize += ReplacementDictionary.getVarIntSize(keys[key].length)
+          + keys[key].length
+          + ReplacementDictionary.getVarIntSize(values[key].length)
+          + values[key].length;
+      if (HEADER_SIZE + 4L * (numBuckets + numKeys) + stringsSize
+          > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Dictionary too large");
+      }
+    }
+
+    try (final DataOutputStream writer = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(output), 1 << 16))) {
+      writer.writeInt(MAGIC);
+      writer.writeInt(VERSION);
+      writer.writeInt(numKeys);
+      writer.writeInt(numBuckets);
+      for (final int seed : seeds) {
+        writer.writeInt(seed);
+      }
+      for (final int offset : offsets) {
+        writer.writeInt(offset);
+      }
+      for (int slot = 0; slot < numKeys; ++slot) {
+        final int key = keyOfSlot[slot];
+        ReplacementDictionary.writeVarInt(writer, keys[key].length);
+        writer.write(keys[key]);
+        ReplacementDictionary.writeVarInt(writer, values[key].length);
+        writer.write(values[key]);
+      }
+    }
+  }
+
+  /**
+   * Finds for each bucket a seed so that the keys of all buckets are mapped
+   * to different slots. Buckets are processed from largest to smallest.
+   * Buckets with a single key are directly assigned to a free slot, which is
+   * encoded as negative seed.
+   */
+  private static int[] findSeeds(final long[] hashes, final int numBuckets) {
+    final int numKeys = hashes.length;
+    final List<List<Integer>> buckets = new ArrayList<>(numBuckets);
+    for (int b = 0; b < numBuckets; ++b) {
+      buckets.add(new ArrayList<>(KEYS_PER_BUCKET));
+    }
+    for (int key = 0; key < numKeys; ++key) {
+      buckets.get(ReplacementDictionary.toBucket(hashes[key], numBuckets))
+        .add(key);
+    }
+    final Integer[] order = new Integer[numBuckets];
+    for (int b = 0; b < numBuckets; ++b) {
+      order[b] = b;
+    }
+    Arrays.sort(order, (b1, b2) ->
+      Integer.compare(buckets.get(b2).size(), buckets.get(b1).size()));
+
+    final int[] seeds = new int[numBuckets];
+    final boolean[] taken = new boolean[numKeys];
+    final int[] slots = new int[numKeys];
+    int nextFreeSlot = 0;
+    for (final int b : order) {
+      final List<Integer> bucket = buckets.get(b);
+      if (bucket.isEmpty()) {
+        break;
+      } else if (bucket.size() == 1) {
+        while (taken[nextFreeSlot]) { ++nextFreeSlot; }
+        taken[nextFreeSlot] = true;
+        seeds[b] = -nextFreeSlot - 1;
+        continue;
+      }
+
+      for (int seed = 0; ; ++seed) {
+        if (seed == Integer.MAX_VALUE) {
+          throw new IllegalStateException("No seed found for bucket " + b);
+        }
+        int s = 0;
+        for (; s < bucket.size(); ++s) {
+          final int slot =
+              ReplacementDictionary.toSlot(hashes[bucket.get(s)], seed, numKeys);
+          if (taken[slot]) { break; }
+          taken[slot] = true;
+          slots[s] = slot;
+        }
+        if (s == bucket.size()) {
+          seeds[b] = seed;
+          break;
+        }
+        for (int r = 0; r < s; ++r) {
+          taken[slots[r]] = false;
+        } // roll back
+      }
+    }
+    return seeds;
+  }
+
+  private static long hash(final byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+    for (final byte b : key) {
+      hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+    }
+    return ReplacementDictionary.mix(hash);
+  }
+
+  private static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+
+  private static int toBucket(final long hash, final int numBuckets) {
+    return (int) Long.remainderUnsigned(hash, numBuckets);
+  }
+
+  private static int toSlot(
+      final long hash, final int seed, final int numKeys) {
+    if (seed < 0) {
+      return -seed - 1;
+    }
+    final long seeded = ReplacementDictionary.mix(
+        Long.rotateLeft(hash, 32) ^ ((seed + 1) * GOLDEN_GAMMA));
+    return (int) Long.remainderUnsigned(seeded, numKeys);
+  }
+
+  private static int getVarIntSize(int value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) {
+      ++size;
+    }
+    return size;
+  }
+
+  private static void writeVarInt(final DataOutputStream writer, int value)
+  throws IOException {
+    while ((value & ~0x7F) != 0) {
+      writer.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    writer.writeByte(value);
+  }
+
+  public static void printHelp(final PrintStream out) {
+    out.println("Usage:");
+    out.println("  <input> <output>");
+    out.println("Where:");
+    out.println("  <input>");
+    out.println("    A text file with one <token>TAB<replacement> per line.");
+    out.println("  <output>");
+    out.println("    The compiled dictionary to use with the replacement");
+    out.println("    '" + TokenReplacements.REPLACE_DICTIONARY_PREFIX
+        + "<output>'.");
+  }
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length != 2) {
+      printHelp(System.err);
+      System.exit(1);
+    }
+
+    final Map<String, String> dictionary =
+        ReplacementDictionary.read(new File(args[0]));
+    ReplacementDictionary.compile(dictionary, new File(args[1]));
+  }
+
+}
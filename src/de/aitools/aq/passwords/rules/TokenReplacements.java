@@ -1,5 +1,7 @@
 package de.aitools.aq.passwords.rules;
 
+import java.io.File;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.function.Function;
 
@@ -25,6 +27,13 @@ public class TokenReplacements {
   public static final String REPLACE_WORD_PREFIXES =
       "word-prefixes";
 
+  /**
+   * Prefix of the flag for using a {@link ReplacementDictionary}. The rest of
+   * the flag is the path of the compiled dictionary file.
+   */
+  public static final String REPLACE_DICTIONARY_PREFIX =
+      "dictionary:";
+
   /**
    * Function that does no replacement at all.
    */
@@ -44,11 +53,12 @@ public class TokenReplacements {
    * Gets the token replacer for a list of strings for given configuration
    * string.
    * @param configuration One of {@link #REPLACE_NONE} and
-   * {@link #REPLACE_WORD_PREFIXES}
+   * {@link #REPLACE_WORD_PREFIXES}, or {@link #REPLACE_DICTIONARY_PREFIX}
+   * followed by the path of a compiled {@link ReplacementDictionary}
    * @return The replacer
    * @throws NullPointerException If the configuration is <tt>null</tt>
    * @throws IllegalArgumentException If the configuration has none of the
-   * values mentioned above
+   * values mentioned above or the dictionary can not be read
    */
   public static Function<List<String>, List<String>> getListReplacer(
       final String configuration)
@@ -60,8 +70,55 @@ public class TokenReplacements {
     case REPLACE_WORD_PREFIXES:
       return REPLACER_WORD_PREFIXES;
     }
+    return new ApplyOnList<String, String>(
+        TokenReplacements.getReplacer(configuration));
+  }
+
+  /**
+   * Gets the replacer for single tokens for given configuration string.
+   * @param configuration See {@link #getListReplacer(String)}
+   * @return The replacer
+   * @throws NullPointerException If the configuration is <tt>null</tt>
+   * @throws IllegalArgumentException If the configuration has none of the
+   * values mentioned above or the dictionary can not be read
+   */
+  public static Function<String, String> getReplacer(
+      final String configuration)
+  throws NullPointerException, IllegalArgumentException {
+    if (configuration == null) { throw new NullPointerException(); }
+    switch (configuration) {
+    case REPLACE_NONE:
+      return Function.identity();
+    case REPLACE_WORD_PREFIXES:
+      return WordPrefixMapper.get();
+    }
+    if (configuration.startsWith(REPLACE_DICTIONARY_PREFIX)) {
+      final File file = new File(
+          configuration.substring(REPLACE_DICTIONARY_PREFIX.length()));
+      try {
+        return ReplacementDictionary.get(file);
+      } catch (final UncheckedIOException e) {
+        throw new IllegalArgumentException(
+            "Can not read replacement dictionary: " + file, e);
+      }
+    }
     throw new IllegalArgumentException(
         "No valid replacement configuration: " + configuration);
   }
 
+  /**
+   * Checks whether the replacer for given configuration string replaces
+   * non-empty tokens without whitespace only by non-empty tokens without
+   * whitespace. This holds for {@link #REPLACE_NONE} and
+   * {@link #REPLACE_WORD_PREFIXES}, but not for dictionaries, which may
+   * contain any replacement.
+   * @param configuration See {@link #getListReplacer(String)}
+   * @return Whether the replacer keeps tokens non-empty and without whitespace
+   */
+  public static boolean keepsTokensWithoutWhitespace(
+      final String configuration) {
+    return REPLACE_NONE.equals(configuration)
+        || REPLACE_WORD_PREFIXES.equals(configuration);
+  }
+
 }
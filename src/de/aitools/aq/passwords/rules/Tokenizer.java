@@ -9,14 +9,41 @@ import com.ibm.icu.text.BreakIterator;
 
 /**
  * A function that tokenizes strings.
- * 
+ * <p>
+ * Three backends are available (see {@link Backend}). Use
+ * {@link #forCharacterSet(String)} to get the fastest backend that produces the
+ * same tokens as ICU for the output of a character set converter.
+ * </p>
+ *
  * @author johannes.kiesel@uni-weimar.de
  * @version $Date: 2016/11/18 12:05:41 $
  */
 public class Tokenizer implements Function<String, List<String>> {
 
+  /**
+   * The algorithms that can be used for finding tokens.
+   */
+  public enum Backend {
+    /**
+     * Word boundaries of the ICU {@link BreakIterator}.
+     */
+    ICU,
+    /**
+     * Word boundaries of the JDK {@link java.text.BreakIterator}, which uses
+     * older and less complete rules than ICU.
+     */
+    JDK,
+    /**
+     * Splits at whitespace. Yields the same tokens as {@link #ICU} for strings
+     * that consist only of letters and whitespace.
+     */
+    WHITESPACE
+  }
+
   private final Locale locale;
 
+  private final Backend backend;
+
   /**
    * Create a new {@link Tokenizer} for English.
    */
@@ -29,15 +56,68 @@ public class Tokenizer implements Function<String, List<String>> {
    * @param locale The locale to use
    */
   public Tokenizer(final Locale locale) {
+    this(locale, Backend.ICU);
+  }
+
+  /**
+   * Create a new {@link Tokenizer} for given locale and backend.
+   * @param locale The locale to use (ignored by {@link Backend#WHITESPACE})
+   * @param backend The backend to use
+   */
+  public Tokenizer(final Locale locale, final Backend backend) {
     if (locale == null) { throw new NullPointerException(); }
+    if (backend == null) { throw new NullPointerException(); }
     this.locale = locale;
+    this.backend = backend;
+  }
+
+  /**
+   * Gets an English tokenizer that uses the fastest backend that yields the
+   * same results as {@link Backend#ICU} for the output of the converter of
+   * given character set.
+   * @param charset Configuration parameter for the character set (see
+   * {@link CharacterSets#getConverter(String)})
+   * @return The tokenizer
+   * @throws NullPointerException If the character set is <tt>null</tt>
+   * @throws IllegalArgumentException If the character set is not valid
+   */
+  public static Tokenizer forCharacterSet(final String charset)
+  throws NullPointerException, IllegalArgumentException {
+    if (charset == null) { throw new NullPointerException(); }
+    switch (charset) {
+    case CharacterSets.CHARSET_ASCII:
+      return new Tokenizer(Locale.ENGLISH, Backend.ICU);
+    case CharacterSets.CHARSET_LOWERCASE_LETTERS:
+      // only letters and space characters remain
+      return new Tokenizer(Locale.ENGLISH, Backend.WHITESPACE);
+    }
+    throw new IllegalArgumentException(
+        "No valid character set:" + charset);
+  }
+
+  /**
+   * @return The backend used by this tokenizer
+   */
+  public Backend getBackend() {
+    return this.backend;
   }
 
   @Override
   public List<String> apply(final String input) {
     if (input == null) { return null; }
+    switch (this.backend) {
+    case JDK:
+      return this.applyJdk(input);
+    case WHITESPACE:
+      return Tokenizer.applyWhitespace(input);
+    default:
+      return this.applyIcu(input);
+    }
+  }
+
+  private List<String> applyIcu(final String input) {
     final List<String> tokens = new ArrayList<>();
-    
+
     final BreakIterator iterator = BreakIterator.getWordInstance(locale);
     iterator.setText(input);
 
@@ -55,4 +135,48 @@ public class Tokenizer implements Function<String, List<String>> {
     return tokens;
   }
 
+  private List<String> applyJdk(final String input) {
+    final List<String> tokens = new ArrayList<>();
+
+    final java.text.BreakIterator iterator =
+        java.text.BreakIterator.getWordInstance(locale);
+    iterator.setText(input);
+
+    int begin = iterator.first();
+    int end = iterator.next();
+    while (end != java.text.BreakIterator.DONE) {
+      final String token = input.substring(begin, end).trim();
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+      begin = end;
+      end = iterator.next();
+    }
+
+    return tokens;
+  }
+
+  private static List<String> applyWhitespace(final String input) {
+    final List<String> tokens = new ArrayList<>();
+
+    final int length = input.length();
+    int begin = -1;
+    for (int i = 0; i < length; ++i) {
+      final char c = input.charAt(i);
+      if (c <= ' ' || Character.isWhitespace(c)) {
+        if (begin >= 0) {
+          tokens.add(input.substring(begin, i));
+          begin = -1;
+        }
+      } else if (begin < 0) {
+        begin = i;
+      }
+    }
+    if (begin >= 0) {
+      tokens.add(input.substring(begin));
+    }
+
+    return tokens;
+  }
+
 }
@@ -0,0 +1,170 @@
+package de.aitools.aq.passwords.stats;
+
+/**
+ * A Bloom filter for strings with a fixed amount of memory. Uses double
+ * hashing to derive the bit positions from one 64 bit hash.
+ *
+ * @author agent@local
+ */
+public class BloomFilter {
+
+  /**
+   * The maximum number of words, below the array size limit of common JVMs.
+   */
+  private static final int MAX_WORDS = Integer.MAX_VALUE - 8;
+
+  private static final long MAX_BITS = 64L * MAX_WORDS;
+
+  private final long[] bits;
+
+  private final long numBits;
+
+  private final int numHashes;
+
+  private long numSetBits;
+
+  private long numAdded;
+
+  private long numNew;
+
+  /**
+   * Creates a new empty filter.
+   * @param numBits The number of bits (rounded up to a multiple of 64)
+   * @param numHashes The number of bits set per string
+   * @throws IllegalArgumentException If a number is not positive or the number
+   * of bits is too large
+   */
+  public BloomFilter(final long numBits, final int numHashes)
+  throws IllegalArgumentException {
+    if (numBits < 1 || numBits > MAX_BITS) {
+      throw new IllegalArgumentException("Invalid number of bits: " + numBits);
+    }
+    if (numHashes < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive number of hashes: " + numHashes);
+    }
+    this.bits = new long[(int) ((numBits + 63) / 64)];
+    this.numBits = this.bits.length * 64L;
+    this.numHashes = numHashes;
+    this.numSetBits = 0;
+    this.numAdded = 0;
+    this.numNew = 0;
+  }
+
+  /**
+   * Creates a filter with the optimal number of bits and hashes for the
+   * expected number of distinct strings and false positive rate, using at
+   * most given number of bits.
+   * @param expectedStrings The expected number of distinct strings
+   * @param falsePositiveRate The targeted false positive rate after adding the
+   * expected number of strings
+   * @param maxBits The maximum number of bits to use
+   * @return The filter
+   * @throws IllegalArgumentException If a number is not positive or the rate
+   * is not below 1
+   */
+  public static BloomFilter create(final long expectedStrings,
+      final double falsePositiveRate, final long maxBits)
+  throws IllegalArgumentException {
+    if (expectedStrings < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive number of strings: " + expectedStrings);
+    }
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException(
+          "Invalid false positive rate: " + falsePositiveRate);
+    }
+    final double ln2 = Math.log(2);
+    final long optimalBits = (long) Math.ceil(
+        -expectedStrings * Math.log(falsePositiveRate) / (ln2 * ln2));
+    final long numBits =
+        Math.max(64, Math.min(Math.min(optimalBits, maxBits), MAX_BITS));
+    final int numHashes = (int) Math.max(1,
+        Math.round((double) numBits / expectedStrings * ln2));
+    return new BloomFilter(numBits, numHashes);
+  }
+
+  /**
+   * Adds a string.
+   * @param string The string
+   * @return <tt>true</tt> if the string was definitely not added before and
+   * <tt>false</tt> if it was probably added before
+   */
+  public boolean add(final CharSequence string) {
+    final long hash1 = Hashing.hash(string);
+    final long hash2 = Hashing.mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+    boolean changed = false;
+    long combined = hash1;
+    for (int h = 0; h < this.numHashes; ++h) {
+      final long bit = Long.remainderUnsigned(combined, this.numBits);
+      final int word = (int) (bit >>> 6);
+      final long mask = 1L << bit;
+      if ((this.bits[word] & mask) == 0) {
+        this.bits[word] |= mask;
+        ++this.numSetBits;
+        changed = true;
+      }
+      combined += hash2;
+    }
+    ++this.numAdded;
+    if (changed) {
+      ++this.numNew;
+    }
+    return changed;
+  }
+
+  /**
+   * @return The number of calls of {@link #add(CharSequence)}
+   */
+  public long getNumAdded() {
+    return this.numAdded;
+  }
+
+  /**
+   * @return The number of calls of {@link #add(CharSequence)} that returned
+   * <tt>true</tt>
+   */
+  public long getNumNew() {
+    return this.numNew;
+  }
+
+  /**
+   * @return The number of bits of this filter
+   */
+  public long getNumBits() {
+    return this.numBits;
+  }
+
+  /**
+   * @return The number of bits set per string
+   */
+  public int getNumHashes() {
+    return this.numHashes;
+  }
+
+  /**
+   * @return The fraction of bits that are set
+   */
+  public double getFillRatio() {
+    return (double) this.numSetBits / this.numBits;
+  }
+
+  /**
+   * @return The probability that a string that was not added is reported as
+   * added, based on the current fill ratio
+   */
+  public double getFalsePositiveRate() {
+    return Math.pow(this.getFillRatio(), this.numHashes);
+  }
+
+  /**
+   * @return An estimate of the number of distinct strings added, based on
+   * the current fill ratio
+   */
+  public double getEstimatedNumStrings() {
+    final double fillRatio = this.getFillRatio();
+    if (fillRatio >= 1) { return Double.POSITIVE_INFINITY; }
+    return -(double) this.numBits / this.numHashes * Math.log(1 - fillRatio);
+  }
+
+}
@@ -0,0 +1,42 @@
+package de.aitools.aq.passwords.stats;
+
+/**
+ * Utility class for 64 bit hashing of strings for probabilistic data
+ * structures.
+ *
+ * @author agent@local
+ */
+public class Hashing {
+
+  private Hashing() { }
+
+  /**
+   * Hashes the characters of a string (FNV-1a followed by {@link #mix(long)}).
+   * @param string The string
+   * @return The hash
+   */
+  public static long hash(final CharSequence string) {
+    long hash = 0xcbf29ce484222325L;
+    final int length = string.length();
+    for (int i = 0; i < length; ++i) {
+      hash = (hash ^ string.charAt(i)) * 0x100000001b3L;
+    }
+    return Hashing.mix(hash);
+  }
+
+  /**
+   * Scrambles the bits of a value so that each input bit affects each output
+   * bit (the finalizer of MurmurHash3).
+   * @param value The value
+   * @return The scrambled value
+   */
+  public static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+
+}
@@ -0,0 +1,175 @@
+package de.aitools.aq.passwords.stats;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch for estimating the number of distinct strings added to
+ * it. Sketches of different parts of the data can be merged into a sketch of
+ * all the data.
+ * <p>
+ * Uses <tt>2^precision</tt> registers of one byte each, which gives a
+ * relative standard error of about <tt>1.04 / sqrt(2^precision)</tt>. Small
+ * numbers of distinct strings are estimated by linear counting.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class HyperLogLog {
+
+  /**
+   * The smallest allowed precision.
+   */
+  public static final int MIN_PRECISION = 4;
+
+  /**
+   * The largest allowed precision.
+   */
+  public static final int MAX_PRECISION = 18;
+
+  private final int precision;
+
+  private final byte[] registers;
+
+  private long count;
+
+  /**
+   * Creates a new empty sketch.
+   * @param precision The number of bits of the hash used to select a register
+   * @throws IllegalArgumentException If the precision is below
+   * {@link #MIN_PRECISION} or above {@link #MAX_PRECISION}
+   */
+  public HyperLogLog(final int precision)
+  throws IllegalArgumentException {
+    HyperLogLog.checkPrecision(precision);
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+    this.count = 0;
+  }
+
+  /**
+   * Checks whether a precision is allowed.
+   * @param precision The precision
+   * @throws IllegalArgumentException If the precision is below
+   * {@link #MIN_PRECISION} or above {@link #MAX_PRECISION}
+   */
+  public static void checkPrecision(final int precision)
+  throws IllegalArgumentException {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException("Invalid precision: " + precision);
+    }
+  }
+
+  public int getPrecision() {
+    return this.precision;
+  }
+
+  /**
+   * @return The number of calls of {@link #add(CharSequence)} (including
+   * merged sketches)
+   */
+  public long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Adds a string.
+   * @param string The string
+   */
+  public void add(final CharSequence string) {
+    final long hash = Hashing.hash(string);
+    final int register = (int) (hash >>> (64 - this.precision));
+    // the marker bit limits the rank to the number of remaining bits
+    final long remaining =
+        (hash << this.precision) | (1L << (this.precision - 1));
+    final byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+    if (rank > this.registers[register]) {
+      this.registers[register] = rank;
+    }
+    ++this.count;
+  }
+
+  /**
+   * Merges another sketch into this one, so that this one estimates the
+   * distinct strings added to either.
+   * @param other The other sketch (not modified)
+   * @throws IllegalArgumentException If the sketches have a different
+   * precision
+   */
+  public void merge(final HyperLogLog other)
+  throws IllegalArgumentException {
+    if (other.precision != this.precision) {
+      throw new IllegalArgumentException("Different precision: "
+          + other.precision + " instead of " + this.precision);
+    }
+    for (int r = 0; r < this.registers.length; ++r) {
+      if (other.registers[r] > this.registers[r]) {
+        this.registers[r] = other.registers[r];
+      }
+    }
+    this.count += other.count;
+  }
+
+  /**
+   * @return The estimated number of distinct strings added
+   */
+  public double getEstimate() {
+    final int numRegisters = this.registers.length;
+    double sum = 0;
+    int numZeros = 0;
+    for (final byte rank : this.registers) {
+      sum += Double.longBitsToDouble((1023L - rank) << 52); // 2^-rank
+      if (rank == 0) {
+        ++numZeros;
+      }
+    }
+    final double estimate =
+        HyperLogLog.getAlpha(numRegisters) * numRegisters * numRegisters / sum;
+    if (estimate <= 2.5 * numRegisters && numZeros > 0) {
+      return numRegisters * Math.log((double) numRegisters / numZeros);
+    }
+    return estimate;
+  }
+
+  /**
+   * @return The relative standard error of the estimate
+   */
+  public double getStandardError() {
+    return 1.04 / Math.sqrt(this.registers.length);
+  }
+
+  private static double getAlpha(final int numRegisters) {
+    switch (numRegisters) {
+    case 16: return 0.673;
+    case 32: return 0.697;
+    case 64: return 0.709;
+    default: return 0.7213 / (1 + 1.079 / numRegisters);
+    }
+  }
+
+  /**
+   * Writes this sketch.
+   * @param output The output to write to
+   * @throws IOException If writing failed
+   */
+  public void write(final DataOutput output) throws IOException {
+    output.writeByte(this.precision);
+    output.writeLong(this.count);
+    output.write(this.registers);
+  }
+
+  /**
+   * Reads a sketch that was written with {@link #write(DataOutput)}.
+   * @param input The input to read from
+   * @return The sketch
+   * @throws IOException If reading failed
+   */
+  public static HyperLogLog read(final DataInput input) throws IOException {
+    final HyperLogLog sketch = new HyperLogLog(input.readByte());
+    sketch.count = input.readLong();
+    input.readFully(sketch.registers);
+    return sketch;
+  }
+
+}
@@ -0,0 +1,128 @@
+package de.aitools.aq.passwords.stats;
+
+/**
+ * A set of <tt>long</tt> values in one array (open addressing with linear
+ * probing), which needs far less memory than a set of boxed values or
+ * strings (e.g., for passwords packed by {@link PackedPasswords}).
+ *
+ * @author agent@local
+ */
+public class LongHashSet {
+
+  /**
+   * The maximum fill ratio of the array before it is doubled.
+   */
+  protected static final double MAX_FILL_RATIO = 0.75;
+
+  /**
+   * The maximum array length.
+   */
+  protected static final int MAX_CAPACITY = 1 << 30;
+
+  private static final int MIN_CAPACITY = 16;
+
+  /**
+   * The values, with 0 for empty slots.
+   */
+  private long[] values;
+
+  private boolean containsZero;
+
+  private int size;
+
+  /**
+   * Creates a new empty set.
+   */
+  public LongHashSet() {
+    this.values = new long[MIN_CAPACITY];
+    this.containsZero = false;
+    this.size = 0;
+  }
+
+  /**
+   * @return The number of values in this set
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * @return The approximate memory used by this set in bytes
+   */
+  public long getNumBytes() {
+    return (long) Long.BYTES * this.values.length;
+  }
+
+  /**
+   * Adds a value.
+   * @param value The value
+   * @return Whether the value was not in this set before
+   * @throws IllegalStateException If this set is full
+   */
+  public boolean add(final long value)
+  throws IllegalStateException {
+    if (value == 0) {
+      if (this.containsZero) { return false; }
+      this.containsZero = true;
+      ++this.size;
+      return true;
+    }
+    final int mask = this.values.length - 1;
+    int slot = getSlot(value, mask);
+    while (this.values[slot] != 0) {
+      if (this.values[slot] == value) { return false; }
+      slot = (slot + 1) & mask;
+    }
+    this.values[slot] = value;
+    ++this.size;
+    if (this.size > MAX_FILL_RATIO * this.values.length) {
+      this.grow();
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether a value is in this set.
+   * @param value The value
+   * @return Whether it is
+   */
+  public boolean contains(final long value) {
+    if (value == 0) { return this.containsZero; }
+    final int mask = this.values.length - 1;
+    int slot = getSlot(value, mask);
+    while (this.values[slot] != 0) {
+      if (this.values[slot] == value) { return true; }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  private void grow() throws IllegalStateException {
+    if (this.values.length == MAX_CAPACITY) {
+      throw new IllegalStateException("Too many values: " + this.size);
+    }
+    final long[] old = this.values;
+    this.values = new long[2 * old.length];
+    final int mask = this.values.length - 1;
+    for (final long value : old) {
+      if (value != 0) {
+        int slot = getSlot(value, mask);
+        while (this.values[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        this.values[slot] = value;
+      }
+    }
+  }
+
+  /**
+   * Gets the first slot to probe for a value.
+   * @param value The value
+   * @param mask The array length minus one
+   * @return The slot
+   */
+  protected static int getSlot(final long value, final int mask) {
+    return (int) Hashing.mix(value) & mask;
+  }
+
+}
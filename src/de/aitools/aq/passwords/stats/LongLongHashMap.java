@@ -0,0 +1,215 @@
+package de.aitools.aq.passwords.stats;
+
+import java.util.Arrays;
+
+/**
+ * A map from <tt>long</tt> keys to <tt>long</tt> values in two arrays (open
+ * addressing with linear probing), which needs far less memory than a map of
+ * boxed values or strings (e.g., for counting passwords packed by
+ * {@link PackedPasswords}).
+ *
+ * @author agent@local
+ */
+public class LongLongHashMap {
+
+  private static final int MIN_CAPACITY = 16;
+
+  /**
+   * The keys, with 0 for empty slots.
+   */
+  private long[] keys;
+
+  private long[] values;
+
+  private boolean containsZero;
+
+  private long zeroValue;
+
+  private int size;
+
+  /**
+   * Creates a new empty map.
+   */
+  public LongLongHashMap() {
+    this.keys = new long[MIN_CAPACITY];
+    this.values = new long[MIN_CAPACITY];
+    this.containsZero = false;
+    this.zeroValue = 0;
+    this.size = 0;
+  }
+
+  /**
+   * @return The number of keys in this map
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * @return The approximate memory used by this map in bytes
+   */
+  public long getNumBytes() {
+    return 2L * Long.BYTES * this.keys.length;
+  }
+
+  /**
+   * Gets the value of a key.
+   * @param key The key
+   * @param defaultValue The value to return if the key is not in this map
+   * @return The value
+   */
+  public long get(final long key, final long defaultValue) {
+    if (key == 0) { return this.containsZero ? this.zeroValue : defaultValue; }
+    final int slot = this.find(key);
+    return this.keys[slot] == 0 ? defaultValue : this.values[slot];
+  }
+
+  /**
+   * Sets the value of a key.
+   * @param key The key
+   * @param value The value
+   * @throws IllegalStateException If this map is full
+   */
+  public void put(final long key, final long value)
+  throws IllegalStateException {
+    if (key == 0) {
+      if (!this.containsZero) {
+        this.containsZero = true;
+        ++this.size;
+      }
+      this.zeroValue = value;
+      return;
+    }
+    final int slot = this.find(key);
+    this.values[slot] = value;
+    if (this.keys[slot] == 0) {
+      this.keys[slot] = key;
+      this.added();
+    }
+  }
+
+  /**
+   * Adds to the value of a key, which is 0 if the key is not in this map.
+   * @param key The key
+   * @param delta The amount to add
+   * @return The new value
+   * @throws IllegalStateException If this map is full
+   */
+  public long addTo(final long key, final long delta)
+  throws IllegalStateException {
+    if (key == 0) {
+      if (!this.containsZero) {
+        this.containsZero = true;
+        ++this.size;
+      }
+      return this.zeroValue += delta;
+    }
+    final int slot = this.find(key);
+    if (this.keys[slot] != 0) {
+      return this.values[slot] += delta;
+    }
+    this.keys[slot] = key;
+    this.values[slot] = delta;
+    this.added();
+    return delta;
+  }
+
+  /**
+   * Removes a key.
+   * @param key The key
+   * @return Whether the key was in this map
+   */
+  public boolean remove(final long key) {
+    if (key == 0) {
+      if (!this.containsZero) { return false; }
+      this.containsZero = false;
+      this.zeroValue = 0;
+      --this.size;
+      return true;
+    }
+    int slot = this.find(key);
+    if (this.keys[slot] == 0) { return false; }
+    // move following keys of the probe sequence into the gap
+    final int mask = this.keys.length - 1;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      final long nextKey = this.keys[next];
+      if (nextKey == 0) { break; }
+      final int home = LongHashSet.getSlot(nextKey, mask);
+      if (((next - home) & mask) >= ((next - slot) & mask)) {
+        this.keys[slot] = nextKey;
+        this.values[slot] = this.values[next];
+        slot = next;
+      }
+    }
+    this.keys[slot] = 0;
+    this.values[slot] = 0;
+    --this.size;
+    return true;
+  }
+
+  /**
+   * Removes all keys.
+   */
+  public void clear() {
+    this.keys = new long[MIN_CAPACITY];
+    this.values = new long[MIN_CAPACITY];
+    this.containsZero = false;
+    this.zeroValue = 0;
+    this.size = 0;
+  }
+
+  /**
+   * @return The keys of this map in ascending order
+   */
+  public long[] getSortedKeys() {
+    final long[] sorted = new long[this.size];
+    int k = 0;
+    if (this.containsZero) {
+      sorted[k++] = 0;
+    }
+    for (final long key : this.keys) {
+      if (key != 0) {
+        sorted[k++] = key;
+      }
+    }
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Finds the slot of a key other than 0.
+   * @param key The key
+   * @return The slot of the key or the empty slot where it would be added
+   */
+  private int find(final long key) {
+    final int mask = this.keys.length - 1;
+    int slot = LongHashSet.getSlot(key, mask);
+    while (this.keys[slot] != 0 && this.keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void added() throws IllegalStateException {
+    ++this.size;
+    if (this.size > LongHashSet.MAX_FILL_RATIO * this.keys.length) {
+      if (this.keys.length == LongHashSet.MAX_CAPACITY) {
+        throw new IllegalStateException("Too many keys: " + this.size);
+      }
+      final long[] oldKeys = this.keys;
+      final long[] oldValues = this.values;
+      this.keys = new long[2 * oldKeys.length];
+      this.values = new long[2 * oldKeys.length];
+      for (int s = 0; s < oldKeys.length; ++s) {
+        if (oldKeys[s] != 0) {
+          final int slot = this.find(oldKeys[s]);
+          this.keys[slot] = oldKeys[s];
+          this.values[slot] = oldValues[s];
+        }
+      }
+    }
+  }
+
+}
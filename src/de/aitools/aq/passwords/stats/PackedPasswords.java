@@ -0,0 +1,72 @@
+package de.aitools.aq.passwords.stats;
+
+/**
+ * Utility class for encoding short passwords of lowercase latin letters
+ * (like those of the <tt>lowercase-letters</tt> character set) in one
+ * <tt>long</tt> with 5 bits per letter.
+ * <p>
+ * The letters <tt>a</tt> to <tt>z</tt> are encoded as 1 to 26, starting with
+ * the first letter at the most significant of the used bits, and unused
+ * letters are 0. Therefore, the encodings are never negative, the empty
+ * password is 0, and the encodings are ordered like the passwords
+ * ({@link String#compareTo(String)}).
+ * </p>
+ *
+ * @author agent@local
+ */
+public class PackedPasswords {
+
+  /**
+   * The maximum length of a password that can be packed.
+   */
+  public static final int MAX_LENGTH = 12;
+
+  /**
+   * Returned by {@link #pack(CharSequence)} for passwords that can not be
+   * packed.
+   */
+  public static final long NOT_PACKABLE = -1;
+
+  private static final int BITS_PER_LETTER = 5;
+
+  private static final int LETTER_MASK = (1 << BITS_PER_LETTER) - 1;
+
+  private PackedPasswords() { }
+
+  /**
+   * Packs a password.
+   * @param password The password
+   * @return The packed password or {@link #NOT_PACKABLE} if it is longer than
+   * {@link #MAX_LENGTH} or contains other characters than <tt>a</tt> to
+   * <tt>z</tt>
+   */
+  public static long pack(final CharSequence password) {
+    final int length = password.length();
+    if (length > MAX_LENGTH) { return NOT_PACKABLE; }
+    long packed = 0;
+    for (int i = 0; i < length; ++i) {
+      final int letter = password.charAt(i) - ('a' - 1);
+      if (letter < 1 || letter > 26) { return NOT_PACKABLE; }
+      packed = (packed << BITS_PER_LETTER) | letter;
+    }
+    return packed << (BITS_PER_LETTER * (MAX_LENGTH - length));
+  }
+
+  /**
+   * Unpacks a password.
+   * @param packed The password as returned by {@link #pack(CharSequence)}
+   * @return The password
+   */
+  public static String unpack(final long packed) {
+    final char[] letters = new char[MAX_LENGTH];
+    int length = 0;
+    for (; length < MAX_LENGTH; ++length) {
+      final int letter = (int) (packed
+          >>> (BITS_PER_LETTER * (MAX_LENGTH - 1 - length))) & LETTER_MASK;
+      if (letter == 0) { break; }
+      letters[length] = (char) ('a' - 1 + letter);
+    }
+    return new String(letters, 0, length);
+  }
+
+}
@@ -0,0 +1,88 @@
+package de.aitools.aq.passwords.stats;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An exact set of passwords. Passwords that {@link PackedPasswords} can pack
+ * are stored in a {@link LongHashSet} (about 11 to 21 bytes each), all other
+ * passwords as strings.
+ *
+ * @author agent@local
+ */
+public class PasswordSet {
+
+  /**
+   * Estimated memory of a password that is not packed besides its
+   * characters (set entry and string).
+   */
+  private static final int ENTRY_OVERHEAD = 80;
+
+  private final LongHashSet packed;
+
+  private final Set<String> others;
+
+  private long othersBytes;
+
+  private long numAdded;
+
+  /**
+   * Creates a new empty set.
+   */
+  public PasswordSet() {
+    this.packed = new LongHashSet();
+    this.others = new HashSet<>();
+    this.othersBytes = 0;
+    this.numAdded = 0;
+  }
+
+  /**
+   * Adds a password.
+   * @param password The password
+   * @return Whether the password was not added before
+   * @throws IllegalStateException If the set of packed passwords is full
+   */
+  public boolean add(final String password)
+  throws IllegalStateException {
+    ++this.numAdded;
+    final long packedPassword = PackedPasswords.pack(password);
+    if (packedPassword != PackedPasswords.NOT_PACKABLE) {
+      return this.packed.add(packedPassword);
+    } else if (this.others.add(password)) {
+      this.othersBytes += ENTRY_OVERHEAD + 2L * password.length();
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * @return The number of calls of {@link #add(String)}
+   */
+  public long getNumAdded() {
+    return this.numAdded;
+  }
+
+  /**
+   * @return The number of distinct passwords, which is the number of calls of
+   * {@link #add(String)} that returned <tt>true</tt>
+   */
+  public long size() {
+    return (long) this.packed.size() + this.others.size();
+  }
+
+  /**
+   * @return The number of distinct passwords that are stored packed
+   */
+  public long getNumPacked() {
+    return this.packed.size();
+  }
+
+  /**
+   * @return The approximate memory used by this set in bytes
+   */
+  public long getNumBytes() {
+    return this.packed.getNumBytes() + this.othersBytes;
+  }
+
+}
@@ -0,0 +1,174 @@
+package de.aitools.aq.passwords.stats;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A uniform random sample of fixed size of all strings added to it (reservoir
+ * sampling). Reservoirs of different parts of the data can be merged into a
+ * uniform random sample of all the data.
+ *
+ * @author agent@local
+ */
+public class Reservoir {
+
+  private final int capacity;
+
+  private final Random random;
+
+  private final List<String> samples;
+
+  private long count;
+
+  /**
+   * Creates a new empty reservoir.
+   * @param capacity The maximum number of samples
+   * @param seed The seed for the random decisions
+   * @throws IllegalArgumentException If the capacity is not positive
+   */
+  public Reservoir(final int capacity, final long seed)
+  throws IllegalArgumentException {
+    this(capacity, seed, 0, new ArrayList<>());
+  }
+
+  private Reservoir(final int capacity, final long seed,
+      final long count, final List<String> samples)
+  throws IllegalArgumentException {
+    if (capacity < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive sample size: " + capacity);
+    }
+    this.capacity = capacity;
+    this.random = new Random(seed);
+    this.samples = samples;
+    this.count = count;
+  }
+
+  /**
+   * @return The maximum number of samples
+   */
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   * @return The number of strings that were added to this reservoir
+   * (including merged ones)
+   */
+  public long getCount() {
+    return this.count;
+  }
+
+  /**
+   * @return The current sample
+   */
+  public List<String> getSamples() {
+    return Collections.unmodifiableList(this.samples);
+  }
+
+  /**
+   * Adds a string, which replaces a random sample with probability
+   * <tt>capacity / count</tt> when the reservoir is full.
+   * @param string The string to add
+   */
+  public void add(final String string) {
+    ++this.count;
+    if (this.samples.size() < this.capacity) {
+      this.samples.add(string);
+    } else {
+      final long index = this.nextLong(this.count);
+      if (index < this.capacity) {
+        this.samples.set((int) index, string);
+      }
+    }
+  }
+
+  /**
+   * Merges the sample of another reservoir into this one, so that this one
+   * contains a uniform random sample of the strings added to either. The
+   * number of samples taken from each reservoir is drawn as if sampling
+   * without replacement from the union.
+   * @param other The other reservoir (not modified)
+   */
+  public void merge(final Reservoir other) {
+    long remainingThis = this.count;
+    long remainingOther = other.count;
+    final int size = (int) Math.min(this.capacity,
+        Math.min(Integer.MAX_VALUE, remainingThis + remainingOther));
+    int fromThis = 0;
+    for (int s = 0; s < size; ++s) {
+      if (this.nextLong(remainingThis + remainingOther) < remainingThis) {
+        ++fromThis;
+        --remainingThis;
+      } else {
+        --remainingOther;
+      }
+    }
+    final int fromOther = size - fromThis;
+
+    final List<String> merged = new ArrayList<>(size);
+    merged.addAll(this.choose(this.samples, fromThis));
+    merged.addAll(this.choose(other.samples, fromOther));
+    Collections.shuffle(merged, this.random);
+
+    this.samples.clear();
+    this.samples.addAll(merged);
+    this.count += other.count;
+  }
+
+  private List<String> choose(final List<String> strings, final int number) {
+    final List<String> chosen = new ArrayList<>(strings);
+    for (int c = 0; c < number; ++c) {
+      Collections.swap(chosen, c, c + this.random.nextInt(chosen.size() - c));
+    }
+    return chosen.subList(0, number);
+  }
+
+  private long nextLong(final long bound) {
+    return (this.random.nextLong() >>> 1) % bound;
+  }
+
+  /**
+   * Writes this reservoir (without the state of the random number generator).
+   * @param output The output to write to
+   * @throws IOException If writing failed
+   */
+  public void write(final DataOutput output) throws IOException {
+    output.writeInt(this.capacity);
+    output.writeLong(this.count);
+    output.writeInt(this.samples.size());
+    for (final String sample : this.samples) {
+      final byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+  }
+
+  /**
+   * Reads a reservoir that was written with {@link #write(DataOutput)}.
+   * @param input The input to read from
+   * @param seed The seed for further random decisions
+   * @return The reservoir
+   * @throws IOException If reading failed
+   */
+  public static Reservoir read(final DataInput input, final long seed)
+  throws IOException {
+    final int capacity = input.readInt();
+    final long count = input.readLong();
+    final int size = input.readInt();
+    final List<String> samples = new ArrayList<>(size);
+    for (int s = 0; s < size; ++s) {
+      final byte[] bytes = new byte[input.readInt()];
+      input.readFully(bytes);
+      samples.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    return new Reservoir(capacity, seed, count, samples);
+  }
+
+}
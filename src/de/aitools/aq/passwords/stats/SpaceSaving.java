@@ -0,0 +1,361 @@
+package de.aitools.aq.passwords.stats;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The most frequent strings added to it with a fixed number of counters
+ * (Space-Saving algorithm). Sketches of different parts of the data can be
+ * merged into a sketch of all the data.
+ * <p>
+ * When all counters are in use, a new string takes over the counter with the
+ * smallest count, which becomes the error of the new string. Counts therefore
+ * overestimate the true count by at most their error, and a string that is
+ * not counted occurs at most {@link #getMaxError()} times, which is at most
+ * the number of added strings divided by the number of counters. Merging
+ * adds the counts (or the smallest count of a full sketch for strings that
+ * only the other one counts) and keeps the largest (Agarwal et al.,
+ * "Mergeable Summaries", 2012), which keeps both guarantees.
+ * </p><p>
+ * The counters of strings that {@link PackedPasswords} can pack are found
+ * through a {@link LongLongHashMap}, which avoids hashing and comparing the
+ * strings.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class SpaceSaving {
+
+  /**
+   * Orders counters by decreasing count, then by string.
+   */
+  private static final Comparator<Counter> BY_COUNT =
+      Comparator.comparingLong((Counter counter) -> -counter.count)
+        .thenComparing(counter -> counter.string);
+
+  private final int capacity;
+
+  /**
+   * The counters of strings that can not be packed.
+   */
+  private final Map<String, Counter> counters;
+
+  /**
+   * The slots of the counters of packed strings.
+   */
+  private final LongLongHashMap packedSlots;
+
+  /**
+   * The counters by their slot, which does not change when they are reused.
+   */
+  private Counter[] slots;
+
+  /**
+   * Min-heap of the counters by count.
+   */
+  private Counter[] heap;
+
+  private int size;
+
+  private long count;
+
+  /**
+   * Creates a new empty sketch.
+   * @param capacity The number of counters
+   * @throws IllegalArgumentException If the capacity is not positive
+   */
+  public SpaceSaving(final int capacity)
+  throws IllegalArgumentException {
+    if (capacity < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive number of counters: " + capacity);
+    }
+    this.capacity = capacity;
+    this.counters = new HashMap<>();
+    this.packedSlots = new LongLongHashMap();
+    this.slots = new Counter[Math.min(capacity, 16)];
+    this.heap = new Counter[Math.min(capacity, 16)];
+    this.size = 0;
+    this.count = 0;
+  }
+
+  /**
+   * @return The number of counters
+   */
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   * @return The number of calls of {@link #add(String)} (including merged
+   * sketches)
+   */
+  public long getCount() {
+    return this.count;
+  }
+
+  /**
+   * @return The maximum number of times that a string occurred that is not
+   * counted, which is also the maximum error of a count
+   */
+  public long getMaxError() {
+    return this.size < this.capacity ? 0 : this.heap[0].count;
+  }
+
+  /**
+   * Adds a string.
+   * @param string The string
+   */
+  public void add(final String string) {
+    ++this.count;
+    final long packed = PackedPasswords.pack(string);
+    final Counter counter = this.get(string, packed);
+    if (counter != null) {
+      ++counter.count;
+      this.siftDown(counter.index);
+    } else if (this.size < this.capacity) {
+      this.insert(new Counter(string, packed, 1, 0));
+    } else {
+      final Counter smallest = this.heap[0];
+      this.unindex(smallest);
+      smallest.string = string;
+      smallest.packed = packed;
+      smallest.error = smallest.count;
+      ++smallest.count;
+      this.index(smallest);
+      this.siftDown(0);
+    }
+  }
+
+  /**
+   * Merges another sketch into this one, so that this one counts the strings
+   * added to either.
+   * @param other The other sketch (not modified)
+   * @throws IllegalArgumentException If the sketches have a different number
+   * of counters
+   */
+  public void merge(final SpaceSaving other)
+  throws IllegalArgumentException {
+    if (other.capacity != this.capacity) {
+      throw new IllegalArgumentException("Different number of counters: "
+          + other.capacity + " instead of " + this.capacity);
+    }
+    final long thisMissing = this.getMaxError();
+    final long otherMissing = other.getMaxError();
+    final List<Counter> merged = new ArrayList<>(this.size + other.size);
+    for (int c = 0; c < this.size; ++c) {
+      final Counter counter = this.heap[c];
+      final Counter otherCounter = other.get(counter.string, counter.packed);
+      if (otherCounter == null) {
+        counter.count += otherMissing;
+        counter.error += otherMissing;
+      } else {
+        counter.count += otherCounter.count;
+        counter.error += otherCounter.error;
+      }
+      merged.add(counter);
+    }
+    for (int c = 0; c < other.size; ++c) {
+      final Counter otherCounter = other.heap[c];
+      if (this.get(otherCounter.string, otherCounter.packed) == null) {
+        merged.add(new Counter(otherCounter.string, otherCounter.packed,
+            otherCounter.count + thisMissing,
+            otherCounter.error + thisMissing));
+      }
+    }
+    Collections.sort(merged, BY_COUNT);
+
+    this.counters.clear();
+    this.packedSlots.clear();
+    this.size = 0;
+    for (final Counter counter : merged.subList(
+        0, Math.min(this.capacity, merged.size()))) {
+      this.insert(counter);
+    }
+    this.count += other.count;
+  }
+
+  /**
+   * Gets the strings with the largest counts.
+   * @param k The maximum number of strings
+   * @return The counters of the strings, by decreasing count
+   */
+  public List<Counter> getTop(final int k) {
+    final Counter[] sorted = Arrays.copyOf(this.heap, this.size);
+    Arrays.sort(sorted, BY_COUNT);
+    final List<Counter> top = new ArrayList<>(Math.min(k, this.size));
+    for (int c = 0; c < Math.min(k, this.size); ++c) {
+      top.add(new Counter(sorted[c].string, sorted[c].packed,
+          sorted[c].count, sorted[c].error));
+    }
+    return top;
+  }
+
+  private Counter get(final String string, final long packed) {
+    if (packed == PackedPasswords.NOT_PACKABLE) {
+      return this.counters.get(string);
+    }
+    final long slot = this.packedSlots.get(packed, -1);
+    return slot < 0 ? null : this.slots[(int) slot];
+  }
+
+  private void index(final Counter counter) {
+    if (counter.packed == PackedPasswords.NOT_PACKABLE) {
+      this.counters.put(counter.string, counter);
+    } else {
+      this.packedSlots.put(counter.packed, counter.slot);
+    }
+  }
+
+  private void unindex(final Counter counter) {
+    if (counter.packed == PackedPasswords.NOT_PACKABLE) {
+      this.counters.remove(counter.string);
+    } else {
+      this.packedSlots.remove(counter.packed);
+    }
+  }
+
+  private void insert(final Counter counter) {
+    if (this.size == this.heap.length) {
+      final int length = (int) Math.min(this.capacity, 2L * this.heap.length);
+      this.heap = Arrays.copyOf(this.heap, length);
+      this.slots = Arrays.copyOf(this.slots, length);
+    }
+    counter.slot = this.size;
+    this.slots[this.size] = counter;
+    this.index(counter);
+    counter.index = this.size;
+    this.heap[this.size++] = counter;
+    this.siftUp(counter.index);
+  }
+
+  private void siftUp(final int index) {
+    final Counter counter = this.heap[index];
+    int i = index;
+    while (i > 0) {
+      final int parent = (i - 1) / 2;
+      if (this.heap[parent].count <= counter.count) { break; }
+      this.place(this.heap[parent], i);
+      i = parent;
+    }
+    this.place(counter, i);
+  }
+
+  private void siftDown(final int index) {
+    final Counter counter = this.heap[index];
+    int i = index;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= this.size) { break; }
+      if (child + 1 < this.size
+          && this.heap[child + 1].count < this.heap[child].count) {
+        ++child;
+      }
+      if (this.heap[child].count >= counter.count) { break; }
+      this.place(this.heap[child], i);
+      i = child;
+    }
+    this.place(counter, i);
+  }
+
+  private void place(final Counter counter, final int index) {
+    this.heap[index] = counter;
+    counter.index = index;
+  }
+
+  /**
+   * Writes this sketch.
+   * @param output The output to write to
+   * @throws IOException If writing failed
+   */
+  public void write(final DataOutput output) throws IOException {
+    output.writeInt(this.capacity);
+    output.writeLong(this.count);
+    output.writeInt(this.size);
+    for (int c = 0; c < this.size; ++c) {
+      final Counter counter = this.heap[c];
+      final byte[] bytes = counter.string.getBytes(StandardCharsets.UTF_8);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+      output.writeLong(counter.count);
+      output.writeLong(counter.error);
+    }
+  }
+
+  /**
+   * Reads a sketch that was written with {@link #write(DataOutput)}.
+   * @param input The input to read from
+   * @return The sketch
+   * @throws IOException If reading failed
+   */
+  public static SpaceSaving read(final DataInput input) throws IOException {
+    final SpaceSaving sketch = new SpaceSaving(input.readInt());
+    sketch.count = input.readLong();
+    final int size = input.readInt();
+    for (int c = 0; c < size; ++c) {
+      final byte[] bytes = new byte[input.readInt()];
+      input.readFully(bytes);
+      final String string = new String(bytes, StandardCharsets.UTF_8);
+      sketch.insert(new Counter(string, PackedPasswords.pack(string),
+          input.readLong(), input.readLong()));
+    }
+    return sketch;
+  }
+
+  /**
+   * A string and its count.
+   */
+  public static class Counter {
+
+    private String string;
+
+    private long packed;
+
+    private long count;
+
+    private long error;
+
+    private int index;
+
+    private int slot;
+
+    private Counter(final String string, final long packed,
+        final long count, final long error) {
+      this.string = string;
+      this.packed = packed;
+      this.count = count;
+      this.error = error;
+      this.index = -1;
+      this.slot = -1;
+    }
+
+    public String getString() {
+      return this.string;
+    }
+
+    /**
+     * @return The count of the string, which is at least its true count
+     */
+    public long getCount() {
+      return this.count;
+    }
+
+    /**
+     * @return The maximum amount by which the count exceeds the true count
+     */
+    public long getError() {
+      return this.error;
+    }
+
+  }
+
+}
@@ -0,0 +1,78 @@
+package de.aitools.aq.passwords.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that ends after a maximum number of bytes of another
+ * stream, even if that stream continues (e.g., a file that is still being
+ * written).
+ *
+ * @author agent@local
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+  private long remaining;
+
+  /**
+   * Creates a new stream that reads at most the given number of bytes.
+   * @param input The stream to read from
+   * @param maxBytes The maximum number of bytes to read
+   * @throws NullPointerException If the input is <tt>null</tt>
+   * @throws IllegalArgumentException If the maximum is negative
+   */
+  public BoundedInputStream(final InputStream input, final long maxBytes)
+  throws NullPointerException, IllegalArgumentException {
+    super(input);
+    if (input == null) { throw new NullPointerException(); }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Negative maximum: " + maxBytes);
+    }
+    this.remaining = maxBytes;
+  }
+
+  /**
+   * @return The number of bytes that can still be read before the bound
+   */
+  public long getRemaining() {
+    return this.remaining;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (this.remaining == 0) { return -1; }
+    final int b = super.read();
+    if (b >= 0) { --this.remaining; }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] buffer, final int offset, final int length)
+  throws IOException {
+    if (length == 0) { return 0; }
+    if (this.remaining == 0) { return -1; }
+    final int read = super.read(
+        buffer, offset, (int) Math.min(length, this.remaining));
+    if (read > 0) { this.remaining -= read; }
+    return read;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    final long skipped = super.skip(Math.min(n, this.remaining));
+    if (skipped > 0) { this.remaining -= skipped; }
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(super.available(), this.remaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+}
@@ -0,0 +1,110 @@
+package de.aitools.aq.passwords.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The progress of a run over an input file: how many lines and bytes of the
+ * input have been processed and how many bytes of output have been written
+ * for them.
+ *
+ * @author agent@local
+ */
+public class Checkpoint {
+
+  private static final String KEY_LINES = "lines";
+
+  private static final String KEY_INPUT_OFFSET = "input-offset";
+
+  private static final String KEY_OUTPUT_OFFSET = "output-offset";
+
+  private final long lines;
+
+  private final long inputOffset;
+
+  private final long outputOffset;
+
+  /**
+   * Creates a new checkpoint.
+   * @param lines The number of processed input lines
+   * @param inputOffset The byte offset in the input after the processed lines
+   * @param outputOffset The byte offset in the output after the output for
+   * the processed lines
+   */
+  public Checkpoint(
+      final long lines, final long inputOffset, final long outputOffset) {
+    this.lines = lines;
+    this.inputOffset = inputOffset;
+    this.outputOffset = outputOffset;
+  }
+
+  public long getLines() {
+    return this.lines;
+  }
+
+  public long getInputOffset() {
+    return this.inputOffset;
+  }
+
+  public long getOutputOffset() {
+    return this.outputOffset;
+  }
+
+  /**
+   * Reads a checkpoint from a file.
+   * @param file The file
+   * @return The checkpoint or <tt>null</tt> if the file does not exist
+   * @throws IOException If the file can not be read
+   * @throws IllegalArgumentException If the file is not a valid checkpoint
+   */
+  public static Checkpoint read(final File file)
+  throws IOException, IllegalArgumentException {
+    if (!file.exists()) { return null; }
+    final Properties properties = new Properties();
+    try (final InputStream input = new FileInputStream(file)) {
+      properties.load(input);
+    }
+    try {
+      return new Checkpoint(
+          Long.parseLong(properties.getProperty(KEY_LINES)),
+          Long.parseLong(properties.getProperty(KEY_INPUT_OFFSET)),
+          Long.parseLong(properties.getProperty(KEY_OUTPUT_OFFSET)));
+    } catch (final NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid checkpoint: " + file, e);
+    }
+  }
+
+  /**
+   * Writes this checkpoint to a file, replacing it atomically.
+   * @param file The file
+   * @throws IOException If the file can not be written
+   */
+  public void write(final File file) throws IOException {
+    final Properties properties = new Properties();
+    properties.setProperty(KEY_LINES, String.valueOf(this.lines));
+    properties.setProperty(KEY_INPUT_OFFSET, String.valueOf(this.inputOffset));
+    properties.setProperty(
+        KEY_OUTPUT_OFFSET, String.valueOf(this.outputOffset));
+
+    final File temporary = new File(file.getPath() + ".tmp");
+    try (final FileOutputStream output = new FileOutputStream(temporary)) {
+      properties.store(output, null);
+      output.getFD().sync();
+    }
+    Files.move(temporary.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public String toString() {
+    return "line " + this.lines + " (input byte " + this.inputOffset
+        + ", output byte " + this.outputOffset + ")";
+  }
+
+}
@@ -0,0 +1,163 @@
+package de.aitools.aq.passwords.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of durations in nanoseconds that uses logarithmic
+ * buckets. Each power of two is split into a fixed number of linear
+ * sub-buckets, so that percentiles are reported with a relative error of at
+ * most <tt>1 / SUB_BUCKETS</tt> while using a constant amount of memory.
+ *
+ * @author agent@local
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts;
+
+  private final AtomicLong count;
+
+  private final AtomicLong sum;
+
+  private final AtomicLong max;
+
+  /**
+   * Creates a new empty histogram.
+   */
+  public LatencyHistogram() {
+    this.counts = new AtomicLongArray(NUM_BUCKETS);
+    this.count = new AtomicLong();
+    this.sum = new AtomicLong();
+    this.max = new AtomicLong();
+  }
+
+  /**
+   * Records one duration.
+   * @param nanos The duration in nanoseconds (negative values are counted as
+   * 0)
+   */
+  public void record(final long nanos) {
+    final long value = Math.max(0, nanos);
+    this.counts.incrementAndGet(LatencyHistogram.toBucket(value));
+    this.count.incrementAndGet();
+    this.sum.addAndGet(value);
+    long currentMax = this.max.get();
+    while (value > currentMax
+        && !this.max.compareAndSet(currentMax, value)) {
+      currentMax = this.max.get();
+    }
+  }
+
+  /**
+   * Adds all recordings of another histogram to this one.
+   * @param other The other histogram
+   */
+  public void add(final LatencyHistogram other) {
+    for (int b = 0; b < NUM_BUCKETS; ++b) {
+      final long bucketCount = other.counts.get(b);
+      if (bucketCount > 0) {
+        this.counts.addAndGet(b, bucketCount);
+      }
+    }
+    this.count.addAndGet(other.count.get());
+    this.sum.addAndGet(other.sum.get());
+    final long otherMax = other.max.get();
+    long currentMax = this.max.get();
+    while (otherMax > currentMax
+        && !this.max.compareAndSet(currentMax, otherMax)) {
+      currentMax = this.max.get();
+    }
+  }
+
+  /**
+   * @return The number of recorded durations
+   */
+  public long getCount() {
+    return this.count.get();
+  }
+
+  /**
+   * @return The mean of the recorded durations in nanoseconds, or 0 if
+   * nothing was recorded
+   */
+  public double getMean() {
+    final long n = this.count.get();
+    return n == 0 ? 0 : this.sum.get() / (double) n;
+  }
+
+  /**
+   * @return The maximum recorded duration in nanoseconds
+   */
+  public long getMax() {
+    return this.max.get();
+  }
+
+  /**
+   * Gets an estimate of a percentile of the recorded durations.
+   * @param percentile The percentile between 0 and 100
+   * @return The upper bound of the bucket that contains the percentile in
+   * nanoseconds, or 0 if nothing was recorded
+   * @throws IllegalArgumentException If the percentile is not between 0 and
+   * 100
+   */
+  public long getPercentile(final double percentile)
+  throws IllegalArgumentException {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Invalid percentile: " + percentile);
+    }
+    final long n = this.count.get();
+    if (n == 0) { return 0; }
+
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int b = 0; b < NUM_BUCKETS; ++b) {
+      seen += this.counts.get(b);
+      if (seen >= rank) {
+        return Math.min(LatencyHistogram.toUpperBound(b), this.max.get());
+      }
+    }
+    return this.max.get();
+  }
+
+  /**
+   * Formats the count, mean, and some percentiles in milliseconds as a JSON
+   * object.
+   * @return The JSON string
+   */
+  public String toJson() {
+    return String.format(Locale.ROOT,
+        "{\"count\":%d,\"mean_ms\":%.3f,\"p50_ms\":%.3f,\"p90_ms\":%.3f,"
+        + "\"p99_ms\":%.3f,\"p999_ms\":%.3f,\"max_ms\":%.3f}",
+        this.getCount(), this.getMean() / 1e6,
+        this.getPercentile(50) / 1e6, this.getPercentile(90) / 1e6,
+        this.getPercentile(99) / 1e6, this.getPercentile(99.9) / 1e6,
+        this.getMax() / 1e6);
+  }
+
+  private static int toBucket(final long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    final int shift = magnitude - SUB_BUCKET_BITS;
+    final int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long toUpperBound(final int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = bucket / SUB_BUCKETS - 1;
+    final long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+}
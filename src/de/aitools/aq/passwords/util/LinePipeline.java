@@ -0,0 +1,261 @@
+package de.aitools.aq.passwords.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Applies a function to each line of a stream and writes the results to
+ * another stream, with reading and writing in their own threads so that
+ * they overlap with the application of the function.
+ * <p>
+ * Lines are passed between the threads in batches. In line-buffered mode,
+ * each batch consists of one line and the output is flushed after each line,
+ * so that each result is written as soon as its line was read (e.g., for
+ * interactive use). Otherwise, the output is only flushed when its buffer is
+ * full or at the end of the input.
+ * </p><p>
+ * The pieces of lines that the reader streams (see
+ * {@link LineReader#setPieces(Consumer)}) are passed in their own batches, so
+ * that they reach the calling thread in order with the lines.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class LinePipeline {
+
+  /**
+   * The number of lines per batch if not line-buffered.
+   */
+  public static final int BATCH_SIZE = 1024;
+
+  /**
+   * The maximum number of batches waiting to be processed or written.
+   */
+  public static final int QUEUE_SIZE = 16;
+
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+  private static final int LINE_BUFFERED_OUTPUT_BUFFER_SIZE = 1 << 10;
+
+  private final LineReader reader;
+
+  private final Writer output;
+
+  private final boolean lineBuffered;
+
+  private final BlockingQueue<List<String>> lines;
+
+  private final BlockingQueue<List<String>> results;
+
+  /**
+   * Marks the end of the input and of the output (compared by identity).
+   */
+  private final List<String> end;
+
+  /**
+   * The batch that the reader thread currently fills.
+   */
+  private List<String> batch;
+
+  private volatile Exception readerException;
+
+  private volatile Exception writerException;
+
+  /**
+   * Creates a new pipeline.
+   * @param reader The reader of the input lines
+   * @param output The stream to write the results to
+   * @param lineBuffered Whether to write each result directly
+   */
+  public LinePipeline(final LineReader reader, final OutputStream output,
+      final boolean lineBuffered) {
+    if (reader == null) { throw new NullPointerException(); }
+    if (output == null) { throw new NullPointerException(); }
+    this.reader = reader;
+    this.output = new BufferedWriter(
+        new OutputStreamWriter(output, StandardCharsets.UTF_8),
+        lineBuffered ? LINE_BUFFERED_OUTPUT_BUFFER_SIZE : OUTPUT_BUFFER_SIZE);
+    this.lineBuffered = lineBuffered;
+    this.lines = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    this.results = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    this.end = new ArrayList<>(0);
+    this.readerException = null;
+    this.writerException = null;
+  }
+
+  /**
+   * Reads all lines, applies the function to them in the calling thread, and
+   * writes the results, each followed by a line feed. Neither stream is
+   * closed, but the output is flushed at the end.
+   * @param function The function, which may return <tt>null</tt> to write
+   * nothing for a line
+   * @return The number of lines read
+   * @throws IOException If reading or writing failed
+   */
+  public long run(final Function<String, String> function)
+  throws IOException {
+    return this.run(function, null);
+  }
+
+  /**
+   * Reads all lines, applies the function to them in the calling thread, and
+   * writes the results, each followed by a line feed. Neither stream is
+   * closed, but the output is flushed at the end.
+   * @param function The function, which may return <tt>null</tt> to write
+   * nothing for a line
+   * @param pieces Receives the pieces of streamed lines in the calling
+   * thread, before the function gets the last piece of the line (see
+   * {@link LineReader#setPieces(Consumer)}), or <tt>null</tt> to read such
+   * lines at once
+   * @return The number of lines read
+   * @throws IOException If reading or writing failed
+   */
+  public long run(final Function<String, String> function,
+      final Consumer<String> pieces)
+  throws IOException {
+    if (pieces != null) {
+      this.reader.setPieces(this::passPiece);
+    }
+    final Thread readerThread = new Thread(this::read, "line-reader");
+    final Thread writerThread = new Thread(this::write, "line-writer");
+    readerThread.setDaemon(true);
+    writerThread.setDaemon(true);
+    readerThread.start();
+    writerThread.start();
+
+    long numLines = 0;
+    try {
+      List<String> batch = null;
+      while ((batch = this.lines.take()) != this.end) {
+        if (batch instanceof Pieces) {
+          for (final String piece : batch) {
+            pieces.accept(piece);
+          }
+          continue;
+        }
+        final List<String> batchResults = new ArrayList<>(batch.size());
+        for (final String line : batch) {
+          batchResults.add(function.apply(line));
+        }
+        numLines += batch.size();
+        this.checkException(this.writerException);
+        this.results.put(batchResults);
+      }
+      this.checkException(this.readerException);
+      this.results.put(this.end);
+      writerThread.join();
+      this.checkException(this.writerException);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      readerThread.interrupt();
+    }
+    return numLines;
+  }
+
+  private void read() {
+    try {
+      this.batch = new ArrayList<>(this.getBatchSize());
+      String line = null;
+      while ((line = this.reader.readLine()) != null) {
+        this.batch.add(line);
+        if (this.batch.size() >= this.getBatchSize()) {
+          this.lines.put(this.batch);
+          this.batch = new ArrayList<>(this.getBatchSize());
+        }
+      }
+      if (!this.batch.isEmpty()) {
+        this.lines.put(this.batch);
+      }
+    } catch (final InterruptedException e) {
+      return;
+    } catch (final Exception e) {
+      this.readerException = e;
+    }
+    try {
+      this.lines.put(this.end);
+    } catch (final InterruptedException e) {
+      // processing was aborted
+    }
+  }
+
+  /**
+   * Passes a piece of a line from the reader thread, after the lines before.
+   */
+  private void passPiece(final String piece) {
+    try {
+      if (!this.batch.isEmpty()) {
+        this.lines.put(this.batch);
+        this.batch = new ArrayList<>(this.getBatchSize());
+      }
+      final List<String> pieces = new Pieces();
+      pieces.add(piece);
+      this.lines.put(pieces);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Reading was aborted", e);
+    }
+  }
+
+  private void write() {
+    try {
+      List<String> batch = null;
+      while ((batch = this.results.take()) != this.end) {
+        if (this.writerException != null) {
+          continue; // drain so that processing does not block
+        }
+        try {
+          for (final String result : batch) {
+            if (result != null) {
+              this.output.write(result);
+              this.output.write('\n');
+            }
+          }
+          if (this.lineBuffered) {
+            this.output.flush();
+          }
+        } catch (final IOException e) {
+          this.writerException = e;
+        }
+      }
+      if (this.writerException == null) {
+        this.output.flush();
+      }
+    } catch (final InterruptedException e) {
+      // processing was aborted
+    } catch (final IOException e) {
+      this.writerException = e;
+    }
+  }
+
+  private int getBatchSize() {
+    return this.lineBuffered ? 1 : BATCH_SIZE;
+  }
+
+  private void checkException(final Exception exception) throws IOException {
+    if (exception != null) {
+      throw new IOException("Streaming failed", exception);
+    }
+  }
+
+  /**
+   * A batch of pieces of a line instead of lines.
+   */
+  private static final class Pieces extends ArrayList<String> {
+
+    private static final long serialVersionUID = 1L;
+
+  }
+
+}
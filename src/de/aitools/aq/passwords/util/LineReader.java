@@ -0,0 +1,259 @@
+package de.aitools.aq.passwords.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reads UTF-8 lines from a stream and keeps track of the byte offset in the
+ * stream. Like {@link java.io.BufferedReader#readLine()}, lines are
+ * terminated by a line feed, a carriage return, or a carriage return followed
+ * by a line feed. Malformed UTF-8 is replaced by the replacement character.
+ * <p>
+ * A {@link LongLinePolicy} can be given to truncate or skip lines that are
+ * too long without storing their bytes beyond the maximum. Lines that the
+ * policy streams are passed in pieces of at most {@link #PIECE_BYTES} bytes
+ * if a receiver is set (see {@link #setPieces(Consumer)}), so that the memory
+ * per line stays bounded also for them.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class LineReader implements Closeable {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final int INITIAL_LINE_SIZE = 128;
+
+  /**
+   * The maximum number of bytes of a piece of a streamed line.
+   */
+  public static final int PIECE_BYTES = 1 << 20;
+
+  private final InputStream input;
+
+  private final byte[] buffer;
+
+  private int bufferPosition;
+
+  private int bufferLimit;
+
+  private byte[] line;
+
+  private long offset;
+
+  private long lineOffset;
+
+  private final LongLinePolicy longLinePolicy;
+
+  private Consumer<String> pieces;
+
+  /**
+   * Creates a new reader that reads lines of any length.
+   * @param input The stream to read from
+   * @param offset The byte offset of the first byte of the stream (e.g., if
+   * the stream was positioned before)
+   */
+  public LineReader(final InputStream input, final long offset) {
+    this(input, offset, null);
+  }
+
+  /**
+   * Creates a new reader.
+   * @param input The stream to read from
+   * @param offset The byte offset of the first byte of the stream (e.g., if
+   * the stream was positioned before)
+   * @param longLinePolicy The policy for lines that are too long, or
+   * <tt>null</tt> to read lines of any length
+   */
+  public LineReader(final InputStream input, final long offset,
+      final LongLinePolicy longLinePolicy) {
+    if (input == null) { throw new NullPointerException(); }
+    this.input = input;
+    this.buffer = new byte[BUFFER_SIZE];
+    this.bufferPosition = 0;
+    this.bufferLimit = 0;
+    this.line = new byte[INITIAL_LINE_SIZE];
+    this.offset = offset;
+    this.lineOffset = offset;
+    this.longLinePolicy = longLinePolicy;
+    this.pieces = null;
+  }
+
+  /**
+   * Sets the receiver of the pieces of lines that are streamed, which are
+   * lines of more than {@link #PIECE_BYTES} bytes if the policy is
+   * {@link LongLinePolicy.Action#STREAM}. All but the last piece of such a
+   * line are passed to the receiver, and {@link #readLine()} then returns the
+   * last piece. If possible, pieces end after a space that is followed by a
+   * visible US-ASCII character (like the chunks of
+   * {@link de.aitools.aq.passwords.StagedRule}), and otherwise before the
+   * first byte of a character.
+   * @param pieces The receiver, or <tt>null</tt> to read streamed lines at
+   * once
+   */
+  public void setPieces(final Consumer<String> pieces) {
+    this.pieces = pieces;
+  }
+
+  /**
+   * @return The byte offset directly after the last line read (including its
+   * terminator)
+   */
+  public long getOffset() {
+    return this.offset;
+  }
+
+  /**
+   * @return The byte offset of the first byte of the last line read
+   */
+  public long getLineOffset() {
+    return this.lineOffset;
+  }
+
+  /**
+   * Reads the next line.
+   * @return The line without terminator (or its last piece, see
+   * {@link #setPieces(Consumer)}) or <tt>null</tt> if the end of the stream
+   * was reached
+   * @throws IOException On reading the stream
+   */
+  public String readLine() throws IOException {
+    final boolean stream = this.longLinePolicy != null && this.pieces != null
+        && this.longLinePolicy.getAction() == LongLinePolicy.Action.STREAM;
+    // lines of more bytes are only stored if the policy streams them
+    final int maxStored;
+    if (stream) {
+      maxStored = PIECE_BYTES;
+    } else if (this.longLinePolicy == null
+        || this.longLinePolicy.getAction() == LongLinePolicy.Action.STREAM) {
+      maxStored = Integer.MAX_VALUE;
+    } else {
+      maxStored = (int) Math.min(Integer.MAX_VALUE,
+          this.longLinePolicy.getMaxBytes() + 1L);
+    }
+    while (true) {
+      final long lineOffset = this.offset;
+      int length = 0;
+      long lineLength = 0;
+      boolean foundAny = false;
+      boolean ended = false;
+      while (!ended) {
+        if (this.bufferPosition == this.bufferLimit && !this.fill()) {
+          if (!foundAny) { return null; }
+          break;
+        }
+        foundAny = true;
+        final byte b = this.buffer[this.bufferPosition++];
+        ++this.offset;
+        if (b == '\n') {
+          ended = true;
+        } else if (b == '\r') {
+          if (this.bufferPosition < this.bufferLimit || this.fill()) {
+            if (this.buffer[this.bufferPosition] == '\n') {
+              ++this.bufferPosition;
+              ++this.offset;
+            }
+          }
+          ended = true;
+        } else {
+          ++lineLength;
+          if (length == maxStored && stream) {
+            length = this.passPiece(length, b);
+          }
+          if (length < maxStored) {
+            if (length == this.line.length) {
+              this.line = Arrays.copyOf(this.line,
+                  (int) Math.min((long) this.line.length * 2, maxStored));
+            }
+            this.line[length++] = b;
+          }
+        }
+      }
+
+      // for truncate and skip, one byte more than the maximum marks long lines
+      final int lengthToProcess;
+      if (this.longLinePolicy == null) {
+        lengthToProcess = length;
+      } else if (stream && lineLength > length) {
+        // streamed in pieces
+        if (lineLength > this.longLinePolicy.getMaxBytes()) {
+          this.longLinePolicy.countLongLine();
+        }
+        lengthToProcess = length;
+      } else {
+        lengthToProcess =
+            this.longLinePolicy.getLengthToProcess(this.line, 0, length);
+      }
+      if (lengthToProcess >= 0) {
+        this.lineOffset = lineOffset;
+        final String decoded = this.decode(lengthToProcess);
+        if (this.line.length > BUFFER_SIZE) {
+          // do not keep the memory of a long line
+          this.line = new byte[INITIAL_LINE_SIZE];
+        }
+        return decoded;
+      } else if (!ended) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Passes the first bytes of the stored bytes of a line as a piece to the
+   * receiver and keeps the remaining bytes.
+   * @param length The number of stored bytes
+   * @param next The next byte of the line
+   * @return The number of remaining bytes, which is at most half the length
+   */
+  private int passPiece(final int length, final byte next) {
+    // the end of the piece is the start of the remaining bytes
+    int end = length;
+    while (end > length / 2) {
+      final byte following = end == length ? next : this.line[end];
+      if (this.line[end - 1] == ' ' && following > ' ' && following < 0x7F) {
+        break;
+      }
+      --end;
+    }
+    if (end == length / 2) {
+      // continuation bytes are 10xxxxxx
+      end = length;
+      if ((next & 0xC0) == 0x80) {
+        --end;
+        while (end > 0 && (this.line[end] & 0xC0) == 0x80) {
+          --end;
+        }
+        if (end == 0) {
+          end = length; // no character start, malformed anyway
+        }
+      }
+    }
+    this.pieces.accept(this.decode(end));
+    System.arraycopy(this.line, end, this.line, 0, length - end);
+    return length - end;
+  }
+
+  private String decode(final int length) {
+    return new String(this.line, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private boolean fill() throws IOException {
+    final int read = this.input.read(this.buffer);
+    if (read <= 0) {
+      return false;
+    }
+    this.bufferPosition = 0;
+    this.bufferLimit = read;
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.input.close();
+  }
+
+}
@@ -0,0 +1,170 @@
+package de.aitools.aq.passwords.util;
+
+import java.util.Locale;
+
+/**
+ * What to do with input lines that are longer than a maximum number of UTF-8
+ * bytes, and how many such lines were encountered.
+ *
+ * @author agent@local
+ */
+public class LongLinePolicy {
+
+  /**
+   * The possible actions for long lines.
+   */
+  public enum Action {
+
+    /**
+     * Process the entire line (the rule processes it in chunks, and a
+     * {@link LineReader} passes it in pieces if requested).
+     */
+    STREAM,
+
+    /**
+     * Process only the first bytes of the line (cut at a character boundary).
+     */
+    TRUNCATE,
+
+    /**
+     * Ignore the line.
+     */
+    SKIP;
+
+    /**
+     * @return The name of this action as used on the command line
+     */
+    public String getName() {
+      return this.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Gets the action for its name.
+     * @param name The name as returned by {@link #getName()}
+     * @return The action
+     * @throws IllegalArgumentException If no action has that name
+     */
+    public static Action forName(final String name)
+    throws IllegalArgumentException {
+      for (final Action action : Action.values()) {
+        if (action.getName().equals(name)) {
+          return action;
+        }
+      }
+      throw new IllegalArgumentException("No valid long line action: " + name);
+    }
+
+  }
+
+  /**
+   * The default maximum number of bytes of a line.
+   */
+  public static final int DEFAULT_MAX_BYTES = 1 << 20;
+
+  private final Action action;
+
+  private final int maxBytes;
+
+  private long numLongLines;
+
+  /**
+   * Creates a new policy.
+   * @param action What to do with long lines
+   * @param maxBytes The maximum number of bytes of a line that is not long
+   * @throws IllegalArgumentException If the number of bytes is not positive
+   */
+  public LongLinePolicy(final Action action, final int maxBytes)
+  throws IllegalArgumentException {
+    if (action == null) { throw new NullPointerException(); }
+    LongLinePolicy.checkMaxBytes(maxBytes);
+    this.action = action;
+    this.maxBytes = maxBytes;
+    this.numLongLines = 0;
+  }
+
+  /**
+   * Checks whether a maximum number of bytes is allowed.
+   * @param maxBytes The maximum number of bytes of a line that is not long
+   * @throws IllegalArgumentException If the number of bytes is not positive
+   */
+  public static void checkMaxBytes(final int maxBytes)
+  throws IllegalArgumentException {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive maximum line length: " + maxBytes);
+    }
+  }
+
+  public Action getAction() {
+    return this.action;
+  }
+
+  public int getMaxBytes() {
+    return this.maxBytes;
+  }
+
+  /**
+   * @return The number of long lines that were encountered so far
+   */
+  public synchronized long getNumLongLines() {
+    return this.numLongLines;
+  }
+
+  /**
+   * Counts one long line.
+   */
+  public synchronized void countLongLine() {
+    ++this.numLongLines;
+  }
+
+  /**
+   * Gets the number of bytes of a line to process.
+   * @param bytes The array containing the UTF-8 encoded line
+   * @param offset The index of the first byte of the line
+   * @param length The number of bytes of the line
+   * @return The number of bytes to process, which is <tt>length</tt> if the
+   * line is not too long or the action is {@link Action#STREAM}, at most
+   * {@link #getMaxBytes()} and not within a character for
+   * {@link Action#TRUNCATE}, or -1 for {@link Action#SKIP}
+   */
+  public int getLengthToProcess(
+      final byte[] bytes, final int offset, final int length) {
+    if (length <= this.maxBytes) { return length; }
+    this.countLongLine();
+    switch (this.action) {
+    case TRUNCATE:
+      return LongLinePolicy.getCharacterBoundary(bytes, offset, this.maxBytes);
+    case SKIP:
+      return -1;
+    default:
+      return length;
+    }
+  }
+
+  /**
+   * Gets the start of the UTF-8 character at a position.
+   * @param bytes The array containing the UTF-8 encoded string
+   * @param offset The index of the first byte of the string
+   * @param length A number of bytes within the string
+   * @return The largest number of bytes that does not exceed length and does
+   * not end within a character
+   */
+  public static int getCharacterBoundary(
+      final byte[] bytes, final int offset, final int length) {
+    int boundary = length;
+    // continuation bytes are 10xxxxxx
+    while (boundary > 0 && (bytes[offset + boundary] & 0xC0) == 0x80) {
+      --boundary;
+    }
+    return boundary;
+  }
+
+  /**
+   * @return A description of the long lines encountered so far
+   */
+  public String getReport() {
+    return String.format(Locale.ROOT, "Lines longer than %d bytes: %d (%s)",
+        this.maxBytes, this.getNumLongLines(), this.action.getName());
+  }
+
+}
@@ -0,0 +1,273 @@
+package de.aitools.aq.passwords.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A list of processed input files with their size, modification time, and
+ * content hash, together with the configuration they were processed with and
+ * the size of the output that was produced from them. Used to process only new
+ * or changed files of a growing directory.
+ *
+ * @author agent@local
+ */
+public class Manifest {
+
+  private static final String CONFIGURATION_PREFIX = "# configuration: ";
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  private final String configuration;
+
+  private final Map<String, Entry> entries;
+
+  /**
+   * Creates a new empty manifest.
+   * @param configuration The configuration that the files are processed with
+   */
+  public Manifest(final String configuration) {
+    if (configuration == null) { throw new NullPointerException(); }
+    this.configuration = configuration;
+    this.entries = new TreeMap<>();
+  }
+
+  public String getConfiguration() {
+    return this.configuration;
+  }
+
+  /**
+   * @return The relative paths of all files in this manifest
+   */
+  public Set<String> getPaths() {
+    return Collections.unmodifiableSet(this.entries.keySet());
+  }
+
+  /**
+   * @param path The relative path of the file
+   * @return The entry of the file or <tt>null</tt> if it is not contained
+   */
+  public Entry get(final String path) {
+    return this.entries.get(path);
+  }
+
+  public void put(final String path, final Entry entry) {
+    if (path == null) { throw new NullPointerException(); }
+    if (entry == null) { throw new NullPointerException(); }
+    this.entries.put(path, entry);
+  }
+
+  public void remove(final String path) {
+    this.entries.remove(path);
+  }
+
+  /**
+   * Reads a manifest from a file.
+   * @param file The file
+   * @return The manifest or <tt>null</tt> if the file does not exist
+   * @throws IOException If the file can not be read
+   * @throws IllegalArgumentException If the file is not a valid manifest
+   */
+  public static Manifest read(final File file)
+  throws IOException, IllegalArgumentException {
+    if (!file.exists()) { return null; }
+    try (final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      final String header = reader.readLine();
+      if (header == null || !header.startsWith(CONFIGURATION_PREFIX)) {
+        throw new IllegalArgumentException("Invalid manifest: " + file);
+      }
+      final Manifest manifest =
+          new Manifest(header.substring(CONFIGURATION_PREFIX.length()));
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        final String[] fields = line.split("\t");
+        if (fields.length != 5) {
+          throw new IllegalArgumentException(
+              "Invalid manifest line in " + file + ": " + line);
+        }
+        manifest.put(fields[0], new Entry(
+            Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3],
+            Long.parseLong(fields[4])));
+      }
+      return manifest;
+    }
+  }
+
+  /**
+   * Writes this manifest to a file, replacing it atomically.
+   * @param file The file
+   * @throws IOException If the file can not be written
+   */
+  public void write(final File file) throws IOException {
+    final File temporary = new File(file.getPath() + ".tmp");
+    try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+      writer.write(CONFIGURATION_PREFIX + this.configuration + "\n");
+      for (final Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+        final Entry value = entry.getValue();
+        writer.write(entry.getKey() + "\t" + value.getSize() + "\t"
+            + value.getLastModified() + "\t" + value.getHash() + "\t"
+            + value.getOutputSize() + "\n");
+      }
+    }
+    Files.move(temporary.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Lists all regular, non-hidden files in a directory and its
+   * sub-directories.
+   * @param directory The directory
+   * @return Map from the paths relative to the directory (with '/' as
+   * separator) to the files, sorted by path
+   */
+  public static Map<String, File> listFiles(final File directory) {
+    final Map<String, File> files = new TreeMap<>();
+    Manifest.listFiles(directory, "", files);
+    return files;
+  }
+
+  private static void listFiles(final File directory, final String prefix,
+      final Map<String, File> files) {
+    final File[] children = directory.listFiles();
+    if (children == null) { return; }
+    for (final File child : children) {
+      if (child.isHidden() || child.getName().startsWith(".")) {
+        continue;
+      }
+      if (child.isDirectory()) {
+        Manifest.listFiles(child, prefix + child.getName() + "/", files);
+      } else if (child.isFile()) {
+        files.put(prefix + child.getName(), child);
+      }
+    }
+  }
+
+  /**
+   * Computes the content hash of the first bytes of a file and of a prefix of
+   * these in one pass. Bytes after the length (e.g., appended while hashing)
+   * are ignored.
+   * @param file The file
+   * @param prefixLength The number of bytes of the prefix
+   * @param length The number of bytes to hash
+   * @return The hash of the prefix, or <tt>null</tt> if the file is shorter
+   * than the prefix, followed by the hash of the first length bytes
+   * @throws IOException If the file can not be read or is shorter than the
+   * length
+   */
+  public static String[] hash(
+      final File file, final long prefixLength, final long length)
+  throws IOException {
+    final MessageDigest digest = Manifest.createDigest();
+    String prefixHash = prefixLength == 0 ? Manifest.toHex(
+        Manifest.createDigest().digest()) : null;
+    final byte[] buffer = new byte[1 << 16];
+    long position = 0;
+    try (final InputStream input =
+        new BoundedInputStream(new FileInputStream(file), length)) {
+      int read = 0;
+      while ((read = input.read(buffer)) > 0) {
+        if (prefixHash == null && position + read >= prefixLength) {
+          final int prefixPart = (int) (prefixLength - position);
+          digest.update(buffer, 0, prefixPart);
+          try {
+            prefixHash =
+                Manifest.toHex(((MessageDigest) digest.clone()).digest());
+          } catch (final CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+          }
+          digest.update(buffer, prefixPart, read - prefixPart);
+        } else {
+          digest.update(buffer, 0, read);
+        }
+        position += read;
+      }
+    }
+    if (position < length) {
+      throw new IOException("File was truncated while hashing: " + file);
+    }
+    return new String[] { prefixHash, Manifest.toHex(digest.digest()) };
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(final byte[] bytes) {
+    final StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (final byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+      hex.append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * The state of one processed input file.
+   */
+  public static class Entry {
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final String hash;
+
+    private final long outputSize;
+
+    /**
+     * Creates a new entry.
+     * @param size The size of the input file in bytes
+     * @param lastModified The modification time of the input file
+     * @param hash The content hash of the input file
+     * @param outputSize The size of the output for the input file in bytes
+     */
+    public Entry(final long size, final long lastModified, final String hash,
+        final long outputSize) {
+      if (hash == null) { throw new NullPointerException(); }
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+      this.outputSize = outputSize;
+    }
+
+    public long getSize() {
+      return this.size;
+    }
+
+    public long getLastModified() {
+      return this.lastModified;
+    }
+
+    public String getHash() {
+      return this.hash;
+    }
+
+    public long getOutputSize() {
+      return this.outputSize;
+    }
+
+  }
+
+}
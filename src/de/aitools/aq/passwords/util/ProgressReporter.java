@@ -0,0 +1,234 @@
+package de.aitools.aq.passwords.util;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps track of the progress of applying a rule to lines of input and
+ * periodically reports lines and bytes per second, the estimated time until
+ * the input is processed, and percentiles of the time per line.
+ * <p>
+ * Use {@link #wrap(Function)} to measure a rule. The bytes of a line are
+ * counted as the length of its UTF-8 encoding plus one terminator byte. For
+ * lines that are passed in pieces, also use {@link #wrapPieces(Consumer)}.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class ProgressReporter {
+
+  private final PrintStream out;
+
+  private final LatencyHistogram latency;
+
+  private final long startTime;
+
+  private ScheduledExecutorService scheduler;
+
+  private volatile long totalBytes;
+
+  private volatile long lines;
+
+  private volatile long bytes;
+
+  /**
+   * The time spent on the pieces of the current line.
+   */
+  private long pieceNanos;
+
+  private long lastReportTime;
+
+  private long lastReportLines;
+
+  private long lastReportBytes;
+
+  private long endTime;
+
+  /**
+   * Creates a new reporter.
+   * @param totalBytes The number of input bytes to process or a non-positive
+   * number if unknown
+   * @param out The stream to report to
+   */
+  public ProgressReporter(final long totalBytes, final PrintStream out) {
+    if (out == null) { throw new NullPointerException(); }
+    this.out = out;
+    this.latency = new LatencyHistogram();
+    this.startTime = System.nanoTime();
+    this.scheduler = null;
+    this.totalBytes = totalBytes;
+    this.lines = 0;
+    this.bytes = 0;
+    this.pieceNanos = 0;
+    this.lastReportTime = this.startTime;
+    this.lastReportLines = 0;
+    this.lastReportBytes = 0;
+    this.endTime = -1;
+  }
+
+  /**
+   * Starts to report periodically in a background thread.
+   * @param intervalSeconds The time between reports
+   * @throws IllegalArgumentException If the interval is not positive
+   */
+  public synchronized void start(final long intervalSeconds)
+  throws IllegalArgumentException {
+    if (intervalSeconds < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive interval: " + intervalSeconds);
+    }
+    if (this.scheduler != null) { return; }
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "progress-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.scheduler.scheduleAtFixedRate(
+        this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops reporting and prints a final report.
+   */
+  public synchronized void finish() {
+    if (this.endTime >= 0) { return; }
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+    }
+    this.endTime = System.nanoTime();
+    this.report();
+  }
+
+  /**
+   * Excludes input bytes from the total that are skipped (e.g., when resuming).
+   * @param skippedBytes The number of bytes
+   */
+  public void skip(final long skippedBytes) {
+    if (this.totalBytes > 0) {
+      this.totalBytes = Math.max(0, this.totalBytes - skippedBytes);
+    }
+  }
+
+  /**
+   * Wraps a rule so that each application is counted and measured. The
+   * returned function must be used by only one thread at a time.
+   * @param rule The rule
+   * @return The measured rule
+   */
+  public Function<String, String> wrap(final Function<String, String> rule) {
+    return input -> {
+      final long start = System.nanoTime();
+      final String output = rule.apply(input);
+      this.latency.record(System.nanoTime() - start + this.pieceNanos);
+      this.pieceNanos = 0;
+      this.bytes += ProgressReporter.getUtf8Length(input) + 1;
+      ++this.lines;
+      return output;
+    };
+  }
+
+  /**
+   * Wraps a receiver of the pieces of lines (see
+   * {@link LineReader#setPieces(Consumer)}) so that their bytes and time are
+   * counted for the line that the rule gets next. The returned receiver must
+   * be used by the thread that uses the measured rule.
+   * @param pieces The receiver
+   * @return The measured receiver
+   */
+  public Consumer<String> wrapPieces(final Consumer<String> pieces) {
+    return piece -> {
+      final long start = System.nanoTime();
+      pieces.accept(piece);
+      this.pieceNanos += System.nanoTime() - start;
+      this.bytes += ProgressReporter.getUtf8Length(piece);
+    };
+  }
+
+  /**
+   * Prints the current progress.
+   */
+  public synchronized void report() {
+    final long now = this.endTime >= 0 ? this.endTime : System.nanoTime();
+    final long currentLines = this.lines;
+    final long currentBytes = this.bytes;
+    final double seconds = (now - this.startTime) / 1e9;
+    final double intervalSeconds =
+        Math.max(1e-9, (now - this.lastReportTime) / 1e9);
+    final double intervalLines =
+        (currentLines - this.lastReportLines) / intervalSeconds;
+    final double intervalBytes =
+        (currentBytes - this.lastReportBytes) / intervalSeconds;
+
+    final StringBuilder report = new StringBuilder();
+    report.append('[').append(ProgressReporter.formatDuration(seconds))
+      .append("] ").append(currentLines).append(" lines");
+    final long total = this.totalBytes;
+    if (total > 0) {
+      report.append(String.format(Locale.ROOT, " (%.1f%%)",
+          Math.min(100.0, 100.0 * currentBytes / total)));
+    }
+    report.append(String.format(Locale.ROOT, ", %.0f lines/s, %.2f MB/s",
+        intervalLines, intervalBytes / 1024 / 1024));
+    if (total > 0 && this.endTime < 0 && currentBytes > 0) {
+      final double remaining = Math.max(0, total - currentBytes)
+          * seconds / currentBytes;
+      report.append(", ETA ").append(ProgressReporter.formatDuration(remaining));
+    }
+    report.append(String.format(Locale.ROOT,
+        ", ms/line p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f",
+        this.latency.getPercentile(50) / 1e6,
+        this.latency.getPercentile(90) / 1e6,
+        this.latency.getPercentile(99) / 1e6,
+        this.latency.getPercentile(99.9) / 1e6,
+        this.latency.getMax() / 1e6));
+    this.out.println(report.toString());
+
+    this.lastReportTime = now;
+    this.lastReportLines = currentLines;
+    this.lastReportBytes = currentBytes;
+  }
+
+  /**
+   * Formats a summary of the run as JSON object.
+   * @return The JSON string
+   */
+  public String toJson() {
+    final long now = this.endTime >= 0 ? this.endTime : System.nanoTime();
+    final double seconds = Math.max(1e-9, (now - this.startTime) / 1e9);
+    return String.format(Locale.ROOT,
+        "{\"lines\":%d,\"bytes\":%d,\"seconds\":%.3f,\"lines_per_s\":%.3f,"
+        + "\"bytes_per_s\":%.3f,\"latency\":%s}",
+        this.lines, this.bytes, seconds, this.lines / seconds,
+        this.bytes / seconds, this.latency.toJson());
+  }
+
+  private static long getUtf8Length(final String string) {
+    final int length = string.length();
+    long bytes = length;
+    for (int i = 0; i < length; ++i) {
+      final char c = string.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          bytes += 1;
+        } else if (Character.isSurrogate(c)) {
+          bytes += 1; // 4 bytes for each pair of 2 chars
+        } else {
+          bytes += 2;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private static String formatDuration(final double seconds) {
+    final long total = (long) seconds;
+    return String.format(Locale.ROOT, "%02d:%02d:%02d",
+        total / 3600, (total / 60) % 60, total % 60);
+  }
+
+}
@@ -0,0 +1,287 @@
+package de.aitools.aq.passwords.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes lines to several files ("shards") in one directory with a bounded
+ * number of open files and a bounded amount of buffer memory.
+ * <p>
+ * Lines are buffered per shard. A buffer is flushed when it reaches the chunk
+ * size or when the buffers of all shards together exceed the memory limit, in
+ * which case the largest buffer is flushed. Only the most recently used files
+ * are kept open, others are closed and re-opened for appending when needed.
+ * Flushing can happen in a background thread, in which case the memory limit
+ * includes buffers that are currently written and writing blocks if the
+ * background thread can not keep up.
+ * </p>
+ *
+ * @author agent@local
+ */
+public class ShardedWriter implements Closeable {
+
+  private static final int MAX_CHUNK_SIZE = 1 << 20;
+
+  private final File directory;
+
+  private final int maxOpenFiles;
+
+  private final long maxBufferBytes;
+
+  private final int chunkSize;
+
+  private final Map<String, ByteArrayOutputStream> buffers;
+
+  private final Set<String> createdShards;
+
+  private final LinkedHashMap<String, OutputStream> openFiles;
+
+  private final ExecutorService flusher;
+
+  private final Object lock;
+
+  private long bufferedBytes;
+
+  private long flushingBytes;
+
+  private IOException flushException;
+
+  /**
+   * Creates a new writer.
+   * @param directory The directory to write the shards to (created if it does
+   * not exist)
+   * @param maxOpenFiles The maximum number of files that are open at the same
+   * time
+   * @param maxBufferBytes The maximum number of bytes to buffer
+   * @param asyncFlush Whether to write buffers to the files in a background
+   * thread
+   * @throws IOException If the directory can not be created
+   * @throws IllegalArgumentException If one of the numbers is not positive
+   */
+  public ShardedWriter(final File directory, final int maxOpenFiles,
+      final long maxBufferBytes, final boolean asyncFlush)
+  throws IOException, IllegalArgumentException {
+    if (maxOpenFiles < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive number of open files: " + maxOpenFiles);
+    }
+    if (maxBufferBytes < 1) {
+      throw new IllegalArgumentException(
+          "Non-positive buffer size: " + maxBufferBytes);
+    }
+    directory.mkdirs();
+    if (!directory.isDirectory()) {
+      throw new IOException("Can not create directory: " + directory);
+    }
+    this.directory = directory;
+    this.maxOpenFiles = maxOpenFiles;
+    this.maxBufferBytes = maxBufferBytes;
+    this.chunkSize = (int) Math.max(1,
+        Math.min(MAX_CHUNK_SIZE, maxBufferBytes / 4));
+    this.buffers = new HashMap<>();
+    this.createdShards = new HashSet<>();
+    this.openFiles = new LinkedHashMap<>(16, 0.75f, true);
+    this.flusher = asyncFlush ? Executors.newSingleThreadExecutor() : null;
+    this.lock = new Object();
+    this.bufferedBytes = 0;
+    this.flushingBytes = 0;
+    this.flushException = null;
+  }
+
+  /**
+   * Writes a line to a shard.
+   * @param shard The name of the shard file
+   * @param line The line (without terminator)
+   * @throws IOException If writing failed (possibly for an earlier line when
+   * flushing in the background)
+   */
+  public void write(final String shard, final String line) throws IOException {
+    final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream buffer = this.buffers.get(shard);
+    if (buffer == null) {
+      buffer = new ByteArrayOutputStream(Math.min(this.chunkSize, 4096));
+      this.buffers.put(shard, buffer);
+    }
+    buffer.write(bytes);
+    buffer.write('\n');
+    synchronized (this.lock) {
+      this.bufferedBytes += bytes.length + 1;
+    }
+
+    if (buffer.size() >= this.chunkSize) {
+      this.flush(shard);
+    }
+    while (this.getPendingBytes() > this.maxBufferBytes) {
+      if (!this.awaitPendingBytesBelowLimit()) {
+        this.flush(this.getLargestBuffer());
+      }
+    }
+  }
+
+  /**
+   * Writes all buffers to their files and waits for that to finish.
+   * @throws IOException If writing failed
+   */
+  public void flush() throws IOException {
+    for (final String shard : this.buffers.keySet().toArray(new String[0])) {
+      this.flush(shard);
+    }
+    this.awaitFlushing();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      this.flush();
+    } finally {
+      if (this.flusher != null) {
+        this.flusher.shutdown();
+      }
+      synchronized (this.openFiles) {
+        IOException exception = null;
+        for (final OutputStream output : this.openFiles.values()) {
+          try {
+            output.close();
+          } catch (final IOException e) {
+            exception = e;
+          }
+        }
+        this.openFiles.clear();
+        if (exception != null) {
+          throw exception;
+        }
+      }
+    }
+  }
+
+  private long getPendingBytes() {
+    synchronized (this.lock) {
+      return this.bufferedBytes + this.flushingBytes;
+    }
+  }
+
+  private String getLargestBuffer() {
+    String largest = null;
+    int largestSize = 0;
+    for (final Map.Entry<String, ByteArrayOutputStream> buffer
+        : this.buffers.entrySet()) {
+      if (buffer.getValue().size() > largestSize) {
+        largest = buffer.getKey();
+        largestSize = buffer.getValue().size();
+      }
+    }
+    return largest;
+  }
+
+  private void flush(final String shard) throws IOException {
+    final ByteArrayOutputStream buffer = this.buffers.remove(shard);
+    if (buffer == null || buffer.size() == 0) { return; }
+    final byte[] bytes = buffer.toByteArray();
+    synchronized (this.lock) {
+      this.checkFlushException();
+      this.bufferedBytes -= bytes.length;
+      this.flushingBytes += bytes.length;
+    }
+
+    if (this.flusher == null) {
+      this.writeToFile(shard, bytes);
+    } else {
+      this.flusher.execute(() -> {
+        try {
+          this.writeToFile(shard, bytes);
+        } catch (final IOException e) {
+          synchronized (this.lock) {
+            if (this.flushException == null) {
+              this.flushException = e;
+            }
+          }
+        }
+      });
+    }
+  }
+
+  private void writeToFile(final String shard, final byte[] bytes)
+  throws IOException {
+    try {
+      synchronized (this.openFiles) {
+        OutputStream output = this.openFiles.get(shard);
+        if (output == null) {
+          if (this.openFiles.size() >= this.maxOpenFiles) {
+            final Iterator<OutputStream> eldest =
+                this.openFiles.values().iterator();
+            eldest.next().close();
+            eldest.remove();
+          }
+          final boolean append = !this.createdShards.add(shard);
+          output = new FileOutputStream(
+              new File(this.directory, shard), append);
+          this.openFiles.put(shard, output);
+        }
+        output.write(bytes);
+      }
+    } finally {
+      synchronized (this.lock) {
+        this.flushingBytes -= bytes.length;
+        this.lock.notifyAll();
+      }
+    }
+  }
+
+  private void awaitFlushing() throws IOException {
+    synchronized (this.lock) {
+      while (this.flushingBytes > 0) {
+        try {
+          this.lock.wait(100);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+      this.checkFlushException();
+    }
+  }
+
+  /**
+   * Waits until buffers currently being written are finished or the pending
+   * bytes are within the limit.
+   * @return <tt>false</tt> if no buffers are currently being written
+   */
+  private boolean awaitPendingBytesBelowLimit() throws IOException {
+    synchronized (this.lock) {
+      if (this.flushingBytes == 0) {
+        return false;
+      }
+      while (this.flushingBytes > 0
+          && this.bufferedBytes + this.flushingBytes > this.maxBufferBytes) {
+        try {
+          this.lock.wait(100);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+      this.checkFlushException();
+      return true;
+    }
+  }
+
+  private void checkFlushException() throws IOException {
+    if (this.flushException != null) {
+      throw new IOException("Writing failed", this.flushException);
+    }
+  }
+
+}